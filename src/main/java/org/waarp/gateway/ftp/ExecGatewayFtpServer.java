@@ -16,6 +16,7 @@
  */
 package org.waarp.gateway.ftp;
 
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.file.filesystembased.FilesystemBasedFileParameterImpl;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
@@ -24,7 +25,11 @@ import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.gateway.ftp.config.FileBasedConfiguration;
 import org.waarp.gateway.ftp.control.ExecBusinessHandler;
 import org.waarp.gateway.ftp.data.FileSystemBasedDataBusinessHandler;
+import org.waarp.gateway.ftp.database.DbConstant;
 import org.waarp.gateway.ftp.service.FtpEngine;
+import org.waarp.gateway.ftp.utils.StartupStages;
+import org.waarp.gateway.ftp.utils.StartupStages.Stage;
+import org.waarp.gateway.ftp.utils.Version;
 import org.waarp.gateway.kernel.exec.AbstractExecutor;
 import org.waarp.openr66.protocol.configuration.Configuration;
 
@@ -66,7 +71,7 @@ public class ExecGatewayFtpServer {
                     .getLogger(ExecGatewayFtpServer.class);
             asAService = true;
         }
-        FileBasedConfiguration configuration = new FileBasedConfiguration(
+        final FileBasedConfiguration configuration = new FileBasedConfiguration(
                 ExecGatewayFtpServer.class, ExecBusinessHandler.class,
                 FileSystemBasedDataBusinessHandler.class,
                 new FilesystemBasedFileParameterImpl());
@@ -78,39 +83,99 @@ public class ExecGatewayFtpServer {
             return false;
         }
         Configuration.configuration.setUseLocalExec(configuration.useLocalExec);
-        if (AbstractExecutor.useDatabase) {
-            // Use R66 module
-            if (r66file != null) {
-                if (!org.waarp.openr66.configuration.FileBasedConfiguration
-                        .setSubmitClientConfigurationFromXml(Configuration.configuration,
-                                r66file)) {
-                    System.err.println("Bad R66 configuration");
+        FileBasedConfiguration.fileBasedConfiguration = configuration;
+        final String r66config = r66file;
+        // Start server: FTP port opens as soon as R66 and LocalExec are ready
+        StartupStages stages = new StartupStages("FtpStartup");
+        stages.add("r66", new Stage() {
+            public boolean run() {
+                if (AbstractExecutor.useDatabase) {
+                    // Use R66 module
+                    if (r66config != null) {
+                        if (!org.waarp.openr66.configuration.FileBasedConfiguration
+                                .setSubmitClientConfigurationFromXml(Configuration.configuration,
+                                        r66config)) {
+                            System.err.println("Bad R66 configuration");
+                            return false;
+                        }
+                    } else {
+                        // Cannot get R66 functional
+                        System.err.println("No R66PrepareTransfer configuration file");
+                    }
+                } else {
+                    System.err.println("No R66PrepareTransfer support");
+                }
+                return true;
+            }
+        });
+        stages.add("localexec", new Stage() {
+            public boolean run() {
+                configuration.configureLExec();
+                return true;
+            }
+        });
+        stages.add("database", new Stage() {
+            public boolean run() {
+                if (DbConstant.gatewayAdmin == null || !DbConstant.gatewayAdmin.isActive()) {
+                    return true;
+                }
+                // tables of a previous version are upgraded before the first transfer
+                try {
+                    if (DbConstant.gatewayAdmin.getDbModel().needUpgradeDb(
+                            DbConstant.gatewayAdmin.getSession(), Version.ID, true)) {
+                        System.err.println("Database cannot be upgraded");
+                        return false;
+                    }
+                } catch (WaarpDatabaseNoConnectionException e) {
+                    System.err.println("Cannot check database: " + e.getMessage());
                     return false;
                 }
-            } else {
-                // Cannot get R66 functional
-                System.err.println("No R66PrepareTransfer configuration file");
+                return true;
             }
-        } else {
-            System.err.println("No R66PrepareTransfer support");
-        }
-        FileBasedConfiguration.fileBasedConfiguration = configuration;
-        // Start server.
-        configuration.configureLExec();
-        try {
-            configuration.serverStartup();
-        } catch (FtpNoConnectionException e1) {
-            e1.printStackTrace();
+        });
+        stages.add("ftp", new Stage() {
+            public boolean run() {
+                try {
+                    configuration.serverStartup();
+                } catch (FtpNoConnectionException e1) {
+                    e1.printStackTrace();
+                    return false;
+                }
+                return true;
+            }
+        }, "r66", "localexec", "database");
+        stages.add("https", new Stage() {
+            public boolean run() {
+                configuration.configureHttps();
+                return true;
+            }
+        }, "ftp");
+        stages.add("constraint", new Stage() {
+            public boolean run() {
+                configuration.configureConstraint();
+                return true;
+            }
+        }, "ftp");
+        stages.add("authentwatcher", new Stage() {
+            public boolean run() {
+                configuration.configureAuthentWatcher();
+                return true;
+            }
+        });
+        stages.add("snmp", new Stage() {
+            public boolean run() {
+                try {
+                    configuration.configureSnmp();
+                } catch (FtpNoConnectionException e) {
+                    System.err.println("Cannot start SNMP support: " + e.getMessage());
+                }
+                return true;
+            }
+        }, "ftp");
+        if (!stages.await()) {
             configuration.releaseResources();
             return false;
         }
-        configuration.configureHttps();
-        configuration.configureConstraint();
-        try {
-            configuration.configureSnmp();
-        } catch (FtpNoConnectionException e) {
-            System.err.println("Cannot start SNMP support: " + e.getMessage());
-        }
         logger.warn("FTP started " +
                 (configuration.getFtpInternalConfiguration().isUsingNativeSsl() ? "Implicit SSL On" :
                         configuration.getFtpInternalConfiguration().isAcceptAuthProt() ? "Explicit SSL On" :
@@ -27,6 +27,7 @@ import org.waarp.gateway.ftp.config.FileBasedConfiguration;
 import org.waarp.gateway.ftp.control.ExecBusinessHandler;
 import org.waarp.gateway.ftp.data.FileSystemBasedDataBusinessHandler;
 import org.waarp.gateway.ftp.database.DbConstant;
+import org.waarp.gateway.ftp.utils.Version;
 
 /**
  * Program to initialize the database for Waarp Ftp Exec
@@ -42,18 +43,21 @@ public class ServerInitDatabase {
 
     static String sxml = null;
     static boolean database = false;
+    static boolean upgradeDb = false;
 
     protected static boolean getParams(String[] args) {
         if (args.length < 1) {
             logger.error("Need at least the configuration file as first argument then optionally\n"
                     +
-                    "    -initdb");
+                    "    -initdb or -upgradeDb");
             return false;
         }
         sxml = args[0];
         for (int i = 1; i < args.length; i++) {
             if (args[i].equalsIgnoreCase("-initdb")) {
                 database = true;
+            } else if (args[i].equalsIgnoreCase("-upgradeDb")) {
+                upgradeDb = true;
             }
         }
         return true;
@@ -71,7 +75,7 @@ public class ServerInitDatabase {
         if (!getParams(args)) {
             logger.error("Need at least the configuration file as first argument then optionally\n"
                     +
-                    "    -initdb");
+                    "    -initdb or -upgradeDb");
             if (DbConstant.gatewayAdmin != null && DbConstant.gatewayAdmin.isActive()) {
                 DbConstant.gatewayAdmin.close();
             }
@@ -102,6 +106,16 @@ public class ServerInitDatabase {
                 }
                 System.out.println("End creation");
             }
+            if (upgradeDb) {
+                // Upgrade database
+                try {
+                    upgradedb();
+                } catch (WaarpDatabaseNoConnectionException e) {
+                    logger.error("Cannot connect to database");
+                    return;
+                }
+                System.out.println("End upgrade");
+            }
             System.out.println("Load done");
         } finally {
             if (DbConstant.gatewayAdmin != null) {
@@ -115,4 +129,10 @@ public class ServerInitDatabase {
         DbConstant.gatewayAdmin.getDbModel().createTables(DbConstant.gatewayAdmin.getSession());
     }
 
+    public static void upgradedb() throws WaarpDatabaseNoConnectionException {
+        // Update tables of a previous version
+        DbConstant.gatewayAdmin.getDbModel().upgradeDb(DbConstant.gatewayAdmin.getSession(),
+                Version.ID);
+    }
+
 }
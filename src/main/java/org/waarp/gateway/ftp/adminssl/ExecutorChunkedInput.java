@@ -0,0 +1,165 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.adminssl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.EventExecutor;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Chunked input reading another chunked input on an executor (the one of the business handler),
+ * such that the IO event loop never waits for the database while a page is sent.<br>
+ * <br>
+ * One chunk is read in advance: when it is not ready yet, null is returned to the
+ * ChunkedWriteHandler, which is resumed once the chunk is read.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class ExecutorChunkedInput implements ChunkedInput<ByteBuf> {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(ExecutorChunkedInput.class);
+
+    private final ChunkedInput<ByteBuf> input;
+    private final EventExecutor executor;
+    private final ChunkedWriteHandler writer;
+    private final ByteBufAllocator allocator;
+    private final Runnable fetch = new Runnable() {
+        public void run() {
+            fetch();
+        }
+    };
+    /**
+     * Chunk read in advance (all under this)
+     */
+    private ByteBuf ready = null;
+    private boolean reading = false;
+    private boolean end = false;
+    private boolean closed = false;
+    private Exception failure = null;
+    private volatile long progress = 0;
+
+    /**
+     *
+     * @param input
+     *            the input (might block)
+     * @param executor
+     *            the executor where the input is read
+     * @param writer
+     *            the ChunkedWriteHandler of the channel
+     * @param allocator
+     */
+    public ExecutorChunkedInput(ChunkedInput<ByteBuf> input, EventExecutor executor,
+            ChunkedWriteHandler writer, ByteBufAllocator allocator) {
+        this.input = input;
+        this.executor = executor;
+        this.writer = writer;
+        this.allocator = allocator;
+    }
+
+    public synchronized boolean isEndOfInput() throws Exception {
+        return end && ready == null;
+    }
+
+    public void close() throws Exception {
+        synchronized (this) {
+            closed = true;
+            if (ready != null) {
+                ready.release();
+                ready = null;
+            }
+            if (reading) {
+                // closed by the fetch once finished
+                return;
+            }
+        }
+        input.close();
+    }
+
+    @Deprecated
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    public synchronized ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (failure != null) {
+            throw failure;
+        }
+        ByteBuf buf = ready;
+        ready = null;
+        if (!reading && !end && !closed) {
+            reading = true;
+            executor.execute(fetch);
+        }
+        if (buf != null) {
+            progress += buf.readableBytes();
+        }
+        return buf;
+    }
+
+    private void fetch() {
+        ByteBuf buf = null;
+        boolean endOfInput = false;
+        Exception error = null;
+        try {
+            buf = input.readChunk(allocator);
+            endOfInput = input.isEndOfInput();
+        } catch (Exception e) {
+            logger.warn("Error while reading chunk", e);
+            error = e;
+        }
+        boolean wasClosed;
+        synchronized (this) {
+            reading = false;
+            wasClosed = closed;
+            if (!closed) {
+                ready = buf;
+                end = endOfInput;
+                failure = error;
+            }
+        }
+        if (wasClosed) {
+            if (buf != null) {
+                buf.release();
+            }
+            try {
+                input.close();
+            } catch (Exception e) {
+            }
+            return;
+        }
+        writer.resumeTransfer();
+    }
+
+    public long length() {
+        return input.length();
+    }
+
+    public long progress() {
+        return progress;
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.adminssl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.waarp.common.crypto.ssl.WaarpSslUtility;
+import org.waarp.gateway.ftp.config.FileBasedConfiguration;
+import org.waarp.gateway.ftp.control.TransferEventBus;
+import org.waarp.gateway.ftp.control.TransferEventBus.Subscription;
+import org.waarp.gateway.ftp.control.TransferEventBus.TransferEvent;
+
+/**
+ * Server-Sent Events feed of the transfer events (see TransferEventBus) on one HTTP channel.<br>
+ * <br>
+ * The feed polls its subscription from the channel event loop and only writes while the channel
+ * is writable: a slow client never blocks publishers, it loses the events overwritten in the
+ * meantime and receives a "lost" event with their number. A comment is sent periodically to keep
+ * the connection alive. The admin session is checked before each write: the feed ends once the
+ * session is closed or expired.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class HttpEventFeed implements Runnable {
+    /**
+     * Delay in ms between two polls
+     */
+    private static final long POLL_DELAY = 500;
+    /**
+     * Delay in ms without event before a keep alive comment
+     */
+    private static final long KEEPALIVE_DELAY = 15000;
+    /**
+     * Maximum number of events written per poll
+     */
+    private static final int MAX_BATCH = 256;
+
+    private final Channel channel;
+    private final String sessionId;
+    private final Subscription subscription;
+    private final StringBuilder builder = new StringBuilder(4096);
+    private volatile ScheduledFuture<?> future = null;
+    private long lastWrite = System.currentTimeMillis();
+
+    private HttpEventFeed(Channel channel, String sessionId, Subscription subscription) {
+        this.channel = channel;
+        this.sessionId = sessionId;
+        this.subscription = subscription;
+    }
+
+    /**
+     * Start a feed on this channel (the response header is written at once)
+     *
+     * @param channel
+     * @param sessionId
+     *            the admin session (cookie value) of the request
+     * @param lastEventId
+     *            value of the Last-Event-ID header (null if none)
+     */
+    public static void start(Channel channel, String sessionId, String lastEventId) {
+        long last = -1;
+        if (lastEventId != null) {
+            try {
+                last = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                last = -1;
+            }
+        }
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        // events must not wait in the compressor
+        response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.IDENTITY);
+        HttpUtil.setTransferEncodingChunked(response, true);
+        channel.writeAndFlush(response);
+        final HttpEventFeed feed = new HttpEventFeed(channel, sessionId,
+                TransferEventBus.subscribe(last));
+        feed.future = channel.eventLoop().scheduleWithFixedDelay(feed, POLL_DELAY, POLL_DELAY,
+                TimeUnit.MILLISECONDS);
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                feed.stop();
+            }
+        });
+    }
+
+    private void stop() {
+        if (future != null) {
+            future.cancel(false);
+        }
+        subscription.close();
+    }
+
+    public void run() {
+        if (!channel.isActive()) {
+            stop();
+            return;
+        }
+        if (!channel.isWritable()) {
+            // slow client: events keep going in the ring and may be lost
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!TransferEventBus.hasNext(subscription) && now - lastWrite < KEEPALIVE_DELAY) {
+            return;
+        }
+        if (!FileBasedConfiguration.fileBasedConfiguration.httpSessionStore.isValid(sessionId)) {
+            // logged out or expired: end of the feed
+            stop();
+            channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(
+                    WaarpSslUtility.SSLCLOSE);
+            return;
+        }
+        builder.setLength(0);
+        int count = 0;
+        TransferEvent event;
+        while (count < MAX_BATCH && (event = TransferEventBus.poll(subscription)) != null) {
+            long lost = subscription.getAndResetLost();
+            if (lost > 0) {
+                builder.append("event: lost\ndata: ").append(lost).append("\n\n");
+            }
+            appendEvent(builder, event);
+            count++;
+        }
+        long lost = subscription.getAndResetLost();
+        if (lost > 0) {
+            builder.append("event: lost\ndata: ").append(lost).append("\n\n");
+        }
+        if (builder.length() == 0) {
+            if (now - lastWrite < KEEPALIVE_DELAY) {
+                return;
+            }
+            builder.append(": keepalive\n\n");
+        }
+        lastWrite = now;
+        ByteBuf buf = channel.alloc().buffer(builder.length());
+        ByteBufUtil.writeUtf8(buf, builder);
+        channel.writeAndFlush(new DefaultHttpContent(buf));
+    }
+
+    private static void appendEvent(StringBuilder builder, TransferEvent event) {
+        builder.append("id: ").append(event.sequence).append("\nevent: ").append(event.type)
+                .append("\ndata: {\"time\":").append(event.time)
+                .append(",\"specialid\":").append(event.specialId).append(",\"user\":");
+        TransferLogJsonInput.appendJsonString(builder, event.user);
+        builder.append(",\"account\":");
+        TransferLogJsonInput.appendJsonString(builder, event.account);
+        builder.append(",\"mode\":");
+        TransferLogJsonInput.appendJsonString(builder, event.mode);
+        builder.append(",\"filename\":");
+        TransferLogJsonInput.appendJsonString(builder, event.file);
+        builder.append(",\"status\":").append(event.status).append(",\"updatedinfo\":");
+        TransferLogJsonInput.appendJsonString(builder, event.info);
+        builder.append(",\"message\":");
+        TransferLogJsonInput.appendJsonString(builder, event.message);
+        builder.append("}\n\n");
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.adminssl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.gateway.ftp.file.FileBasedAuth;
+
+/**
+ * Store of the logged-in administrator sessions (authentication and private database session by
+ * cookie value).<br>
+ * <br>
+ * The store is bounded (the least recently used session is evicted when full) and sessions expire
+ * after an idle time and after an absolute time since logon. A background sweeper removes expired
+ * sessions, releasing their authentication and closing their private database session.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class HttpSessionStore implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(HttpSessionStore.class);
+
+    /**
+     * One administrator session
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static class HttpSession {
+        private final FileBasedAuth auth;
+        private final DbSession dbSession;
+        private final long created;
+        private volatile long lastAccess;
+
+        private HttpSession(FileBasedAuth auth, DbSession dbSession, long now) {
+            this.auth = auth;
+            this.dbSession = dbSession;
+            this.created = now;
+            this.lastAccess = now;
+        }
+
+        /**
+         *
+         * @return the authentication of this session
+         */
+        public FileBasedAuth getAuth() {
+            return auth;
+        }
+
+        /**
+         *
+         * @return the private database session of this session (might be null)
+         */
+        public DbSession getDbSession() {
+            return dbSession;
+        }
+
+        private void close() {
+            auth.clear();
+            if (dbSession != null) {
+                dbSession.disconnect();
+                DbAdmin.decHttpSession();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, HttpSession> sessions =
+            new ConcurrentHashMap<String, HttpSession>();
+    private final int maxSize;
+    private final long idleTtl;
+    private final long absoluteTtl;
+    private final AtomicLong evicted = new AtomicLong();
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     *
+     * @param maxSize
+     *            maximum number of sessions
+     * @param idleTtl
+     *            time in ms after the last access before a session expires (0 for none)
+     * @param absoluteTtl
+     *            time in ms after logon before a session expires (0 for none)
+     */
+    public HttpSessionStore(int maxSize, long idleTtl, long absoluteTtl) {
+        this.maxSize = maxSize;
+        this.idleTtl = idleTtl;
+        this.absoluteTtl = absoluteTtl;
+    }
+
+    /**
+     * Start the background sweeper
+     *
+     * @param delay
+     *            delay in ms between two sweeps
+     */
+    public void start(long delay) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new WaarpThreadFactory("HttpSessionSweeper"));
+        scheduler.scheduleWithFixedDelay(this, delay, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isExpired(HttpSession session, long now) {
+        return (idleTtl > 0 && now - session.lastAccess > idleTtl) ||
+                (absoluteTtl > 0 && now - session.created > absoluteTtl);
+    }
+
+    /**
+     * Add a new session, evicting the least recently used one if the store is full
+     *
+     * @param id
+     * @param auth
+     * @param dbSession
+     *            private database session (might be null)
+     */
+    public void put(String id, FileBasedAuth auth, DbSession dbSession) {
+        if (sessions.size() >= maxSize) {
+            run();
+            while (sessions.size() >= maxSize && evictOldest()) {
+                evicted.incrementAndGet();
+            }
+        }
+        HttpSession previous = sessions.put(id, new HttpSession(auth, dbSession,
+                System.currentTimeMillis()));
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private boolean evictOldest() {
+        String oldest = null;
+        long oldestAccess = Long.MAX_VALUE;
+        for (Map.Entry<String, HttpSession> entry : sessions.entrySet()) {
+            if (entry.getValue().lastAccess < oldestAccess) {
+                oldestAccess = entry.getValue().lastAccess;
+                oldest = entry.getKey();
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        logger.info("Http session evicted since too many sessions: {}", oldest);
+        remove(oldest);
+        return true;
+    }
+
+    /**
+     *
+     * @param id
+     * @return the session if still valid (its last access being updated), else null
+     */
+    public HttpSession get(String id) {
+        HttpSession session = sessions.get(id);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (isExpired(session, now)) {
+            if (sessions.remove(id, session)) {
+                session.close();
+            }
+            return null;
+        }
+        session.lastAccess = now;
+        return session;
+    }
+
+    /**
+     *
+     * @param id
+     * @return True if the session is still valid (its last access being not updated, such that a
+     *         long running request does not keep it alive)
+     */
+    public boolean isValid(String id) {
+        if (id == null) {
+            return false;
+        }
+        HttpSession session = sessions.get(id);
+        return session != null && !isExpired(session, System.currentTimeMillis());
+    }
+
+    /**
+     * Remove the session, releasing its resources
+     *
+     * @param id
+     */
+    public void remove(String id) {
+        HttpSession session = sessions.remove(id);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     *
+     * @return the current number of sessions
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     *
+     * @return the number of sessions evicted since too many sessions
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Remove expired sessions
+     */
+    public void run() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, HttpSession>> iterator = sessions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, HttpSession> entry = iterator.next();
+            HttpSession session = entry.getValue();
+            if (isExpired(session, now) && sessions.remove(entry.getKey(), session)) {
+                logger.debug("Http session expired: {}", entry.getKey());
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Stop the sweeper and release all sessions
+     */
+    public void release() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        for (String id : sessions.keySet()) {
+            remove(id);
+        }
+    }
+}
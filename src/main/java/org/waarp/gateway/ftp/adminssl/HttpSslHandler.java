@@ -18,21 +18,25 @@
 package org.waarp.gateway.ftp.adminssl;
 
 import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
@@ -45,6 +49,8 @@ import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
 import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
 import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.traffic.TrafficCounter;
 
 import org.waarp.common.command.ReplyCode;
@@ -53,6 +59,7 @@ import org.waarp.common.crypto.ssl.WaarpSslUtility;
 import org.waarp.common.database.DbAdmin;
 import org.waarp.common.database.DbPreparedStatement;
 import org.waarp.common.database.DbSession;
+import org.waarp.common.database.data.AbstractDbData.UpdatedInfo;
 import org.waarp.common.database.exception.WaarpDatabaseException;
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
@@ -62,15 +69,18 @@ import org.waarp.common.utility.WaarpStringUtils;
 import org.waarp.ftp.core.file.FtpDir;
 import org.waarp.ftp.core.session.FtpSession;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
+import org.waarp.gateway.ftp.adminssl.HttpSessionStore.HttpSession;
 import org.waarp.gateway.ftp.config.FileBasedConfiguration;
 import org.waarp.gateway.ftp.control.FtpConstraintLimitHandler;
+import org.waarp.gateway.ftp.control.FtpEventRecorder;
+import org.waarp.gateway.ftp.control.FtpSessionRegistry;
+import org.waarp.gateway.ftp.control.FtpSessionRegistry.SessionInfo;
 import org.waarp.gateway.ftp.database.DbConstant;
 import org.waarp.gateway.ftp.database.data.DbTransferLog;
 import org.waarp.gateway.ftp.file.FileBasedAuth;
 import org.waarp.gateway.ftp.utils.Version;
 import org.waarp.gateway.kernel.exec.AbstractExecutor;
 import org.waarp.gateway.kernel.exec.AbstractExecutor.CommandExecutor;
-import org.waarp.gateway.kernel.http.HttpWriteCacheEnable;
 
 /**
  * @author Frederic Bregier
@@ -83,11 +93,6 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
      */
     private static final WaarpLogger logger = WaarpLoggerFactory
             .getLogger(HttpSslHandler.class);
-    /**
-     * Session Management
-     */
-    private static final ConcurrentHashMap<String, FileBasedAuth> sessions = new ConcurrentHashMap<String, FileBasedAuth>();
-    private static final ConcurrentHashMap<String, DbSession> dbSessions = new ConcurrentHashMap<String, DbSession>();
     private static final Random random = new Random();
 
     private FtpSession ftpSession =
@@ -107,6 +112,15 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
     private volatile boolean shutdown = false;
 
     private static final String FTPSESSION = "FTPSESSION";
+    /**
+     * Prefix of the JSON API (same authentication as the HTML pages)
+     */
+    private static final String API_PREFIX = "/api/";
+    /**
+     * Default and maximum page size of the JSON API
+     */
+    private static final int API_DEFAULT_LIMIT = 100;
+    private static final int API_MAX_LIMIT = 1000;
 
     private static enum REQUEST {
         Logon("Logon.html"),
@@ -143,32 +157,52 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
             this.end = end;
         }
 
+        /**
+         * 
+         * @return the compiled template of the unique file (or header)
+         */
+        public HttpTemplate getTemplate() {
+            return HttpTemplate.get(FileBasedConfiguration.fileBasedConfiguration.httpBasePath
+                    + this.header);
+        }
+
+        /**
+         * 
+         * @return the compiled template of the end file
+         */
+        public HttpTemplate getEndTemplate() {
+            return HttpTemplate.get(FileBasedConfiguration.fileBasedConfiguration.httpBasePath
+                    + this.end);
+        }
+
         /**
          * Reader for a unique file
          * 
          * @return the content of the unique file
          */
         public String readFileUnique() {
-            return WaarpStringUtils
-                    .readFile(FileBasedConfiguration.fileBasedConfiguration.httpBasePath
-                            + this.header);
+            return getTemplate().getText();
         }
 
         public String readHeader() {
-            return WaarpStringUtils
-                    .readFile(FileBasedConfiguration.fileBasedConfiguration.httpBasePath
-                            + this.header);
+            return getTemplate().getText();
+        }
+
+        /**
+         * 
+         * @return the compiled template of the body file
+         */
+        public HttpTemplate getBodyTemplate() {
+            return HttpTemplate.get(FileBasedConfiguration.fileBasedConfiguration.httpBasePath
+                    + this.body);
         }
 
         public String readBody() {
-            return WaarpStringUtils
-                    .readFile(FileBasedConfiguration.fileBasedConfiguration.httpBasePath
-                            + this.body);
+            return getBodyTemplate().getText();
         }
 
         public String readEnd() {
-            return WaarpStringUtils
-                    .readFile(FileBasedConfiguration.fileBasedConfiguration.httpBasePath + this.end);
+            return getEndTemplate().getText();
         }
     }
 
@@ -180,7 +214,7 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
      */
     private DbSession dbSession = null;
     /**
-     * Does this dbSession is private and so should be closed
+     * Does this dbSession is private and so should be closed (until given to the session store)
      */
     private volatile boolean isPrivateDbSession = false;
 
@@ -193,9 +227,8 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
     }
 
     private String index() {
-        String index = REQUEST.index.readFileUnique();
-        StringBuilder builder = new StringBuilder(index);
-        WaarpStringUtils.replace(builder, "XXXLOCALXXX",
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("XXXLOCALXXX",
                 Integer.toString(
                         FileBasedConfiguration.fileBasedConfiguration.
                                 getFtpInternalConfiguration().getNumberSessions())
@@ -203,23 +236,23 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         TrafficCounter trafficCounter =
                 FileBasedConfiguration.fileBasedConfiguration.getFtpInternalConfiguration()
                         .getGlobalTrafficShapingHandler().trafficCounter();
-        WaarpStringUtils.replace(builder, "XXXBANDWIDTHXXX",
+        values.put("XXXBANDWIDTHXXX",
                 "IN:" + (trafficCounter.lastReadThroughput() / 131072) +
                         "Mbits&nbsp;<br>&nbsp;OUT:" +
                         (trafficCounter.lastWriteThroughput() / 131072) + "Mbits");
-        WaarpStringUtils.replaceAll(builder, "XXXHOSTIDXXX",
+        values.put("XXXHOSTIDXXX",
                 FileBasedConfiguration.fileBasedConfiguration.HOST_ID);
-        WaarpStringUtils.replaceAll(builder, "XXXADMINXXX",
+        values.put("XXXADMINXXX",
                 "Administrator Connected");
-        WaarpStringUtils.replace(builder, "XXXVERSIONXXX",
+        values.put("XXXVERSIONXXX",
                 Version.ID);
-        return builder.toString();
+        return REQUEST.index.getTemplate().render(values);
     }
 
     private String error(String mesg) {
-        String index = REQUEST.error.readFileUnique();
-        return index.replaceAll("XXXERRORMESGXXX",
-                mesg);
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("XXXERRORMESGXXX", mesg);
+        return REQUEST.error.getTemplate().render(values);
     }
 
     private String Logon() {
@@ -231,17 +264,7 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         FtpConstraintLimitHandler handler =
                 FileBasedConfiguration.fileBasedConfiguration.constraintLimitHandler;
         if (params == null) {
-            String system = REQUEST.System.readFileUnique();
-            StringBuilder builder = new StringBuilder(system);
-            WaarpStringUtils.replace(builder, "XXXXCHANNELLIMITRXXX",
-                    Long.toString(FileBasedConfiguration.fileBasedConfiguration
-                            .getServerGlobalReadLimit()));
-            WaarpStringUtils.replace(builder, "XXXXCPULXXX",
-                    Double.toString(handler.getCpuLimit()));
-            WaarpStringUtils.replace(builder, "XXXXCONLXXX",
-                    Integer.toString(handler.getChannelLimit()));
-            WaarpStringUtils.replace(builder, "XXXRESULTXXX", "");
-            return builder.toString();
+            return renderSystem(handler, "");
         }
         String extraInformation = null;
         if (params.containsKey("ACTION")) {
@@ -261,63 +284,185 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                     shutdown = true;
                     return error;
                 } else if (act.equalsIgnoreCase("Validate")) {
+                    StringBuilder limits = new StringBuilder();
                     String bglobalr = getTrimValue("BGLOBR");
-                    long lglobal = FileBasedConfiguration.fileBasedConfiguration
-                            .getServerGlobalReadLimit();
                     if (bglobalr != null) {
-                        lglobal = Long.parseLong(bglobalr);
+                        limits.append("globallimit=").append(bglobalr).append(';');
                     }
-                    FileBasedConfiguration.fileBasedConfiguration.changeNetworkLimit(lglobal,
-                            lglobal);
                     bglobalr = getTrimValue("CPUL");
-                    double dcpu = handler.getCpuLimit();
                     if (bglobalr != null) {
-                        dcpu = Double.parseDouble(bglobalr);
+                        limits.append("cpulimit=").append(bglobalr).append(';');
                     }
-                    handler.setCpuLimit(dcpu);
                     bglobalr = getTrimValue("CONL");
-                    int iconn = handler.getChannelLimit();
                     if (bglobalr != null) {
-                        iconn = Integer.parseInt(bglobalr);
+                        limits.append("connlimit=").append(bglobalr).append(';');
                     }
-                    handler.setChannelLimit(iconn);
-                    extraInformation = "Configuration Saved";
+                    extraInformation = FileBasedConfiguration.fileBasedConfiguration
+                            .changeLimits(limits.toString());
+                    if (extraInformation == null) {
+                        extraInformation = "Configuration Saved";
+                    }
+                } else if (act.equalsIgnoreCase("ChangeLimits")) {
+                    String limits = getTrimValue("LIMITS");
+                    if (limits != null) {
+                        extraInformation = FileBasedConfiguration.fileBasedConfiguration
+                                .changeLimits(limits);
+                        if (extraInformation == null) {
+                            extraInformation = "Limits changed";
+                        }
+                    }
+                } else if (act.equalsIgnoreCase("StartRecording")) {
+                    FtpEventRecorder.setRecording(true);
+                    extraInformation = "Event Recording started";
+                } else if (act.equalsIgnoreCase("StopRecording")) {
+                    FtpEventRecorder.setRecording(false);
+                    extraInformation = "Event Recording stopped";
+                } else if (act.equalsIgnoreCase("DumpRecording")) {
+                    FileBasedConfiguration config = FileBasedConfiguration.fileBasedConfiguration;
+                    String filename =
+                            config.getBaseDirectory() +
+                                    FtpDir.SEPARATOR + config.ADMINNAME + FtpDir.SEPARATOR +
+                                    config.HOST_ID + "_events_" + System.currentTimeMillis()
+                                    + ".csv";
+                    extraInformation = FtpEventRecorder.dump(filename);
+                } else if (act.equalsIgnoreCase("SessionLimit") ||
+                        act.equalsIgnoreCase("AbortTransfer") ||
+                        act.equalsIgnoreCase("CloseSession")) {
+                    extraInformation = sessionAction(act);
                 }
             }
         }
-        String system = REQUEST.System.readFileUnique();
-        StringBuilder builder = new StringBuilder(system);
-        WaarpStringUtils.replace(builder, "XXXXCHANNELLIMITRXXX",
+        handler = FileBasedConfiguration.fileBasedConfiguration.constraintLimitHandler;
+        return renderSystem(handler, extraInformation != null ? extraInformation : "");
+    }
+
+    private String renderSystem(FtpConstraintLimitHandler handler, String extraInformation) {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("XXXXCHANNELLIMITRXXX",
                 Long.toString(FileBasedConfiguration.fileBasedConfiguration
                         .getServerGlobalReadLimit()));
-        WaarpStringUtils.replace(builder, "XXXXCPULXXX",
+        values.put("XXXXCPULXXX",
                 Double.toString(handler.getCpuLimit()));
-        WaarpStringUtils.replace(builder, "XXXXCONLXXX",
+        values.put("XXXXCONLXXX",
                 Integer.toString(handler.getChannelLimit()));
-        if (extraInformation != null) {
-            WaarpStringUtils.replace(builder, "XXXRESULTXXX", extraInformation);
+        values.put("XXXLIMITSXXX",
+                FileBasedConfiguration.fileBasedConfiguration.getLimits());
+        values.put("XXXPASVPORTSXXX",
+                FileBasedConfiguration.fileBasedConfiguration.getRangePortStatus());
+        values.put("XXXRECORDINGXXX",
+                FtpEventRecorder.getStatus());
+        values.put("XXXSESSIONSXXX", renderSessions());
+        values.put("XXXRESULTXXX", extraInformation);
+        return REQUEST.System.getTemplate().render(values);
+    }
+
+    /**
+     * Apply an administrator action to the sessions selected by SESSIONID or else by SESSIONUSER
+     * 
+     * @param act
+     *            SessionLimit, AbortTransfer or CloseSession
+     * @return the result message
+     */
+    private String sessionAction(String act) {
+        List<SessionInfo> targets = new ArrayList<SessionInfo>();
+        String id = getTrimValue("SESSIONID");
+        String user = getTrimValue("SESSIONUSER");
+        if (id != null) {
+            SessionInfo info = null;
+            try {
+                info = FtpSessionRegistry.get(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                return "Invalid session id: " + id;
+            }
+            if (info != null) {
+                targets.add(info);
+            }
+        } else if (user != null) {
+            targets = FtpSessionRegistry.getByUser(user);
         } else {
-            WaarpStringUtils.replace(builder, "XXXRESULTXXX", "");
+            return "A session id or a user is needed";
+        }
+        if (targets.isEmpty()) {
+            return "No such active session";
+        }
+        if (act.equalsIgnoreCase("SessionLimit")) {
+            long write;
+            long read;
+            try {
+                String value = getTrimValue("SESSIONWRITE");
+                write = value != null ? Long.parseLong(value) : -1;
+                value = getTrimValue("SESSIONREAD");
+                read = value != null ? Long.parseLong(value) : -1;
+            } catch (NumberFormatException e) {
+                return "Invalid limit: " + e.getMessage();
+            }
+            for (SessionInfo info : targets) {
+                info.setLimits(write, read);
+            }
+            logger.warn("Administrator changed limits to W:" + write + " R:" + read +
+                    " for " + targets.size() + " session(s) of " + (id != null ? id : user));
+            return "Limits changed for " + targets.size() + " session(s)";
+        }
+        int done = 0;
+        for (SessionInfo info : targets) {
+            if (act.equalsIgnoreCase("AbortTransfer")) {
+                if (info.abortTransfer()) {
+                    done++;
+                }
+            } else {
+                info.close();
+                done++;
+            }
+        }
+        logger.warn("Administrator " + act + " on " + done + " session(s) of " +
+                (id != null ? id : user));
+        return act + " done on " + done + " session(s)";
+    }
+
+    /**
+     * 
+     * @return the HTML table of the active FTP sessions
+     */
+    private static String renderSessions() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<table border=\"1\" cellspacing=\"0\" cellpadding=\"2\"><tr>")
+                .append("<th>Id</th><th>User</th><th>Account</th><th>Remote</th>")
+                .append("<th>Since</th><th>Command</th><th>Directory</th><th>Bytes</th>")
+                .append("<th>IN (B/s)</th><th>OUT (B/s)</th><th>Limits W/R (B/s)</th></tr>");
+        for (SessionInfo info : FtpSessionRegistry.getSessions()) {
+            builder.append("<tr><td>").append(info.getId()).append("</td>");
+            appendCell(builder, info.getUser());
+            appendCell(builder, info.getAccount());
+            appendCell(builder, info.getRemoteAddress());
+            appendCell(builder, new Timestamp(info.getConnected()).toString());
+            appendCell(builder, info.getCurrentCommand());
+            appendCell(builder, info.getCurrentDir());
+            builder.append("<td>").append(info.getBytes()).append("</td><td>")
+                    .append(info.getReadThroughput()).append("</td><td>")
+                    .append(info.getWriteThroughput()).append("</td><td>")
+                    .append(getLimit(info.getWriteLimit())).append('/')
+                    .append(getLimit(info.getReadLimit())).append("</td></tr>");
         }
+        builder.append("</table>");
         return builder.toString();
     }
 
+    private static String getLimit(long limit) {
+        return limit >= 0 ? Long.toString(limit) : "default";
+    }
+
+    private static void appendCell(StringBuilder builder, String value) {
+        builder.append("<td>");
+        if (value != null) {
+            HttpTemplate.escapeHtml(builder, value);
+        }
+        builder.append("</td>");
+    }
+
     private String Rule() {
         getParams();
         if (params == null) {
-            String system = REQUEST.Rule.readFileUnique();
-            StringBuilder builder = new StringBuilder(system);
-            CommandExecutor exec = AbstractExecutor.getCommandExecutor();
-            WaarpStringUtils.replace(builder, "XXXSTCXXX",
-                    exec.getStorType() + " " + exec.pstorCMD);
-            WaarpStringUtils.replace(builder, "XXXSTDXXX",
-                    Long.toString(exec.pstorDelay));
-            WaarpStringUtils.replace(builder, "XXXRTCXXX",
-                    exec.getRetrType() + " " + exec.pretrCMD);
-            WaarpStringUtils.replace(builder, "XXXRTDXXX",
-                    Long.toString(exec.pretrDelay));
-            WaarpStringUtils.replace(builder, "XXXRESULTXXX", "");
-            return builder.toString();
+            return renderRule("");
         }
         String extraInformation = null;
         if (params.containsKey("ACTION")) {
@@ -353,34 +498,49 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                 }
             }
         }
-        String system = REQUEST.Rule.readFileUnique();
-        StringBuilder builder = new StringBuilder(system);
+        return renderRule(extraInformation != null ? extraInformation : "");
+    }
+
+    private String renderRule(String extraInformation) {
+        Map<String, String> values = new HashMap<String, String>();
         CommandExecutor exec = AbstractExecutor.getCommandExecutor();
-        WaarpStringUtils.replace(builder, "XXXSTCXXX",
+        values.put("XXXSTCXXX",
                 exec.getStorType() + " " + exec.pstorCMD);
-        WaarpStringUtils.replace(builder, "XXXSTDXXX",
+        values.put("XXXSTDXXX",
                 Long.toString(exec.pstorDelay));
-        WaarpStringUtils.replace(builder, "XXXRTCXXX",
+        values.put("XXXRTCXXX",
                 exec.getRetrType() + " " + exec.pretrCMD);
-        WaarpStringUtils.replace(builder, "XXXRTDXXX",
+        values.put("XXXRTDXXX",
                 Long.toString(exec.pretrDelay));
-        if (extraInformation != null) {
-            WaarpStringUtils.replace(builder, "XXXRESULTXXX", extraInformation);
-        } else {
-            WaarpStringUtils.replace(builder, "XXXRESULTXXX", "");
+        values.put("XXXRESULTXXX", extraInformation);
+        return REQUEST.Rule.getTemplate().render(values);
+    }
+
+    /**
+     * 
+     * @param values
+     *            values of the end template
+     * @return the Transfer page as a chunked input of rows
+     */
+    private HttpTableChunkedInput transferPage(Map<String, String> values) {
+        DbSession session = dbSession;
+        if (session == null) {
+            session = DbConstant.gatewayAdmin.getSession();
         }
-        return builder.toString();
+        return new HttpTableChunkedInput(REQUEST.Transfer.readHeader(),
+                REQUEST.Transfer.getBodyTemplate(),
+                FileBasedConfiguration.fileBasedConfiguration.getHtmlTransferSource(session,
+                        LIMITROW),
+                REQUEST.Transfer.getEndTemplate().render(values),
+                HttpTableChunkedInput.CHUNK_SIZE);
     }
 
-    private String Transfer() {
+    private HttpTableChunkedInput Transfer() {
         getParams();
-        String head = REQUEST.Transfer.readHeader();
-        String end = REQUEST.Transfer.readEnd();
-        String body = REQUEST.Transfer.readBody();
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("XXXRESULTXXX", "");
         if (params == null || (!DbConstant.gatewayAdmin.isActive())) {
-            end = end.replace("XXXRESULTXXX", "");
-            body = FileBasedConfiguration.fileBasedConfiguration.getHtmlTransfer(body, LIMITROW);
-            return head + body + end;
+            return transferPage(values);
         }
         String message = "";
         List<String> parms = params.get("ACTION");
@@ -389,43 +549,45 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
             boolean purgeAll = false;
             boolean purgeCorrect = false;
             boolean delete = false;
+            boolean jobStatus = false;
+            boolean cancelJob = false;
             if ("PurgeCorrectTransferLogs".equalsIgnoreCase(parm)) {
                 purgeCorrect = true;
             } else if ("PurgeAllTransferLogs".equalsIgnoreCase(parm)) {
                 purgeAll = true;
             } else if ("Delete".equalsIgnoreCase(parm)) {
                 delete = true;
+            } else if ("JobStatus".equalsIgnoreCase(parm)) {
+                jobStatus = true;
+            } else if ("CancelJob".equalsIgnoreCase(parm)) {
+                cancelJob = true;
             }
             if (purgeCorrect || purgeAll) {
-                DbPreparedStatement preparedStatement = null;
                 ReplyCode status = null;
-                String action = "purgeAll";
-
                 if (purgeCorrect) {
                     status = ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION;
-                    action = "purge";
                 }
+                FileBasedConfiguration config = FileBasedConfiguration.fileBasedConfiguration;
+                String filename =
+                        config.getBaseDirectory() +
+                                FtpDir.SEPARATOR + config.ADMINNAME + FtpDir.SEPARATOR +
+                                config.HOST_ID + "_logs_" + System.currentTimeMillis()
+                                + ".xml";
+                TransferLogJob job = TransferLogJob.submit(status, true, filename,
+                        config.purgeRate);
+                message = "Job " + job.getId() + " submitted";
+            } else if (jobStatus) {
+                message = TransferLogJob.getAllStatus("<br>");
+            } else if (cancelJob) {
+                String jobid = getTrimValue("jobid");
                 try {
-                    preparedStatement =
-                            DbTransferLog.getStatusPrepareStament(dbSession,
-                                    status, 0);
-                } catch (WaarpDatabaseNoConnectionException e) {
-                    message = "Error during " + action;
-                } catch (WaarpDatabaseSqlException e) {
-                    message = "Error during " + action;
-                }
-                if (preparedStatement != null) {
-                    try {
-                        FileBasedConfiguration config = FileBasedConfiguration.fileBasedConfiguration;
-                        String filename =
-                                config.getBaseDirectory() +
-                                        FtpDir.SEPARATOR + config.ADMINNAME + FtpDir.SEPARATOR +
-                                        config.HOST_ID + "_logs_" + System.currentTimeMillis()
-                                        + ".xml";
-                        message = DbTransferLog.saveDbTransferLogFile(preparedStatement, filename);
-                    } finally {
-                        preparedStatement.realClose();
+                    if (jobid != null && TransferLogJob.cancel(Long.parseLong(jobid))) {
+                        message = "Job " + jobid + " cancelled";
+                    } else {
+                        message = "No running Job " + jobid;
                     }
+                } catch (NumberFormatException e) {
+                    message = "Invalid Job id " + jobid;
                 }
             } else if (delete) {
                 String user = getTrimValue("user");
@@ -446,27 +608,36 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
             } else {
                 message = "No Action";
             }
-            end = end.replace("XXXRESULTXXX", message);
+            values.put("XXXRESULTXXX", message);
         }
-        end = end.replace("XXXRESULTXXX", "");
-        body = FileBasedConfiguration.fileBasedConfiguration.getHtmlTransfer(body, LIMITROW);
-        return head + body + end;
+        return transferPage(values);
     }
 
-    private String User() {
+    /**
+     * 
+     * @param values
+     *            values of the end template
+     * @return the User page as a chunked input of rows
+     */
+    private HttpTableChunkedInput userPage(Map<String, String> values) {
+        return new HttpTableChunkedInput(REQUEST.User.readHeader(),
+                REQUEST.User.getBodyTemplate(),
+                FileBasedConfiguration.fileBasedConfiguration.getHtmlAuthSource(),
+                REQUEST.User.getEndTemplate().render(values),
+                HttpTableChunkedInput.CHUNK_SIZE);
+    }
+
+    private HttpTableChunkedInput User() {
         getParams();
-        String head = REQUEST.User.readHeader();
-        String end = REQUEST.User.readEnd();
-        String body = REQUEST.User.readBody();
         FileBasedConfiguration config = FileBasedConfiguration.fileBasedConfiguration;
         String filedefault = config.getBaseDirectory() +
                 FtpDir.SEPARATOR + config.ADMINNAME +
                 FtpDir.SEPARATOR + "authentication.xml";
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("XXXRESULTXXX", "");
+        values.put("XXXFILEXXX", filedefault);
         if (params == null) {
-            end = end.replace("XXXRESULTXXX", "");
-            end = end.replace("XXXFILEXXX", filedefault);
-            body = FileBasedConfiguration.fileBasedConfiguration.getHtmlAuth(body);
-            return head + body + end;
+            return userPage(values);
         }
         List<String> parms = params.get("ACTION");
         if (parms != null) {
@@ -482,7 +653,7 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                 if (file == null) {
                     file = filedefault;
                 }
-                end = end.replace("XXXFILEXXX", file);
+                values.put("XXXFILEXXX", file);
                 if (exportImport.equalsIgnoreCase("import")) {
                     if (!config.initializeAuthent(file, purge)) {
                         message += "Cannot initialize Authentication from " + file;
@@ -505,14 +676,10 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                         message += "Authentications saved into " + file;
                     }
                 }
-                end = end.replace("XXXRESULTXXX", message);
-            } else {
-                end = end.replace("XXXFILEXXX", filedefault);
+                values.put("XXXRESULTXXX", message);
             }
         }
-        end = end.replace("XXXRESULTXXX", "");
-        body = FileBasedConfiguration.fileBasedConfiguration.getHtmlAuth(body);
-        return head + body + end;
+        return userPage(values);
     }
 
     private void getParams() {
@@ -532,16 +699,8 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
 
     private void clearSession() {
         if (admin != null) {
-            FileBasedAuth auth = sessions.remove(admin.value());
-            DbSession ldbsession = dbSessions.remove(admin.value());
+            FileBasedConfiguration.fileBasedConfiguration.httpSessionStore.remove(admin.value());
             admin = null;
-            if (auth != null) {
-                auth.clear();
-            }
-            if (ldbsession != null) {
-                ldbsession.disconnect();
-                DbAdmin.decHttpSession();
-            }
         }
     }
 
@@ -637,6 +796,7 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
             String logon = Logon();
             responseContent.append(logon);
             clearSession();
+            releaseDbSession();
             writeResponse(ctx);
         } else {
             String index = index();
@@ -645,10 +805,10 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
             admin = new DefaultCookie(FTPSESSION,
                     FileBasedConfiguration.fileBasedConfiguration.HOST_ID +
                             Long.toHexString(random.nextLong()));
-            sessions.put(admin.value(), this.authentHttp);
-            if (this.isPrivateDbSession) {
-                dbSessions.put(admin.value(), dbSession);
-            }
+            FileBasedConfiguration.fileBasedConfiguration.httpSessionStore.put(admin.value(),
+                    this.authentHttp, this.isPrivateDbSession ? dbSession : null);
+            // now owned by the session store
+            this.isPrivateDbSession = false;
             logger.debug("CreateSession: " + uriRequest + ":{}", admin);
             writeResponse(ctx);
         }
@@ -661,13 +821,19 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         uriRequest = queryStringDecoder.path();
         if (uriRequest.contains("gre/") || uriRequest.contains("img/") ||
                 uriRequest.contains("res/")) {
-            HttpWriteCacheEnable.writeFile(request,
-                    ctx,
-                    FileBasedConfiguration.fileBasedConfiguration.httpBasePath + uriRequest,
-                    FTPSESSION);
+            HttpStaticFile.writeFile(ctx, request,
+                    FileBasedConfiguration.fileBasedConfiguration.httpBasePath, uriRequest);
             return;
         }
         checkSession(ctx.channel());
+        if (uriRequest.startsWith(API_PREFIX)) {
+            if (!authentHttp.isIdentified()) {
+                sendJson(ctx, HttpResponseStatus.UNAUTHORIZED, "Not authenticated");
+                return;
+            }
+            api(ctx, uriRequest.substring(API_PREFIX.length()));
+            return;
+        }
         if (!authentHttp.isIdentified()) {
             logger.debug("Not Authent: " + uriRequest + ":{}", authentHttp);
             checkAuthent(ctx);
@@ -699,11 +865,11 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                 responseContent.append(Rule());
                 break;
             case User:
-                responseContent.append(User());
-                break;
+                writeChunkedResponse(ctx, User(), "text/html");
+                return;
             case Transfer:
-                responseContent.append(Transfer());
-                break;
+                writeChunkedResponse(ctx, Transfer(), "text/html");
+                return;
             default:
                 responseContent.append(index());
                 break;
@@ -711,6 +877,202 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         writeResponse(ctx);
     }
 
+    /**
+     * Dispatch a JSON API request
+     * 
+     * @param ctx
+     * @param path
+     *            the path after the API prefix
+     */
+    private void api(ChannelHandlerContext ctx, String path) {
+        if ("transfers".equals(path)) {
+            apiTransfers(ctx);
+        } else if ("sessions".equals(path)) {
+            apiSessions(ctx);
+        } else if ("events".equals(path)) {
+            // live feed of transfer events (Server-Sent Events), the channel is kept by the feed
+            HttpEventFeed.start(ctx.channel(), admin != null ? admin.value() : null,
+                    request.headers().get("Last-Event-ID"));
+        } else {
+            sendJson(ctx, HttpResponseStatus.NOT_FOUND, "Unknown API: " + path);
+        }
+    }
+
+    /**
+     * JSON list of the active FTP sessions
+     * 
+     * @param ctx
+     */
+    private void apiSessions(ChannelHandlerContext ctx) {
+        StringBuilder builder = new StringBuilder("{\"sessions\":[");
+        int count = 0;
+        for (SessionInfo info : FtpSessionRegistry.getSessions()) {
+            if (count > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"id\":").append(info.getId()).append(",\"user\":");
+            TransferLogJsonInput.appendJsonString(builder, info.getUser());
+            builder.append(",\"account\":");
+            TransferLogJsonInput.appendJsonString(builder, info.getAccount());
+            builder.append(",\"remote\":");
+            TransferLogJsonInput.appendJsonString(builder, info.getRemoteAddress());
+            builder.append(",\"connected\":").append(info.getConnected())
+                    .append(",\"command\":");
+            TransferLogJsonInput.appendJsonString(builder, info.getCurrentCommand());
+            builder.append(",\"directory\":");
+            TransferLogJsonInput.appendJsonString(builder, info.getCurrentDir());
+            builder.append(",\"dataconnected\":").append(info.isDataConnected())
+                    .append(",\"bytes\":").append(info.getBytes())
+                    .append(",\"readthroughput\":").append(info.getReadThroughput())
+                    .append(",\"writethroughput\":").append(info.getWriteThroughput())
+                    .append(",\"writelimit\":").append(info.getWriteLimit())
+                    .append(",\"readlimit\":").append(info.getReadLimit())
+                    .append('}');
+            count++;
+        }
+        builder.append("],\"count\":").append(count).append('}');
+        writeJson(ctx, HttpResponseStatus.OK, builder);
+    }
+
+    /**
+     * 
+     * @param name
+     * @return the trimmed value of this query parameter or null if absent or empty
+     */
+    private String getQueryValue(String name) {
+        List<String> values = queryStringDecoder.parameters().get(name);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        String value = values.get(0).trim();
+        return value.length() == 0 ? null : value;
+    }
+
+    /**
+     * 
+     * @param value
+     *            as milliseconds since epoch or as yyyy-mm-dd hh:mm:ss[.f...]
+     * @return the associated Timestamp or null
+     */
+    private static Timestamp getTimestamp(String value) {
+        if (value == null) {
+            return null;
+        }
+        boolean digits = true;
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                digits = false;
+                break;
+            }
+        }
+        if (digits) {
+            return new Timestamp(Long.parseLong(value));
+        }
+        return Timestamp.valueOf(value);
+    }
+
+    /**
+     * Search of the transfer logs (GET /api/transfers), with the optional parameters user,
+     * account, mode, status (reply code), updatedinfo, start and stop (on start time), fileprefix,
+     * before (keyset paging: SPECIALID given as next by the previous page) and limit.
+     * 
+     * @param ctx
+     */
+    private void apiTransfers(ChannelHandlerContext ctx) {
+        if (!DbConstant.gatewayAdmin.isActive()) {
+            sendJson(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE, "No database");
+            return;
+        }
+        int status = -1;
+        UpdatedInfo info = null;
+        Timestamp start;
+        Timestamp stop;
+        long before = Long.MAX_VALUE;
+        int limit = API_DEFAULT_LIMIT;
+        try {
+            String value = getQueryValue("status");
+            if (value != null) {
+                status = Integer.parseInt(value);
+            }
+            value = getQueryValue("updatedinfo");
+            if (value != null) {
+                info = UpdatedInfo.valueOf(value.toUpperCase());
+            }
+            start = getTimestamp(getQueryValue("start"));
+            stop = getTimestamp(getQueryValue("stop"));
+            value = getQueryValue("before");
+            if (value != null) {
+                before = Long.parseLong(value);
+            }
+            value = getQueryValue("limit");
+            if (value != null) {
+                limit = Integer.parseInt(value);
+                if (limit <= 0 || limit > API_MAX_LIMIT) {
+                    limit = API_MAX_LIMIT;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            sendJson(ctx, HttpResponseStatus.BAD_REQUEST, "Invalid parameter: " + e.getMessage());
+            return;
+        }
+        DbSession session = dbSession;
+        if (session == null) {
+            session = DbConstant.gatewayAdmin.getSession();
+        }
+        DbPreparedStatement preparedStatement;
+        try {
+            preparedStatement = DbTransferLog.getSearchPrepareStatement(session,
+                    getQueryValue("user"), getQueryValue("account"), getQueryValue("mode"),
+                    status, info, start, stop, getQueryValue("fileprefix"), before, limit);
+        } catch (WaarpDatabaseNoConnectionException e) {
+            sendJson(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Database error");
+            return;
+        } catch (WaarpDatabaseSqlException e) {
+            sendJson(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Database error");
+            return;
+        }
+        writeChunkedResponse(ctx, new TransferLogJsonInput(preparedStatement, limit),
+                "application/json");
+    }
+
+    /**
+     * Send a JSON error message
+     * 
+     * @param ctx
+     * @param status
+     * @param message
+     */
+    private void sendJson(ChannelHandlerContext ctx, HttpResponseStatus status, String message) {
+        StringBuilder builder = new StringBuilder("{\"error\":");
+        TransferLogJsonInput.appendJsonString(builder, message);
+        builder.append('}');
+        writeJson(ctx, status, builder);
+    }
+
+    /**
+     * Write the JSON content as a full response
+     * 
+     * @param ctx
+     * @param status
+     * @param builder
+     */
+    private void writeJson(ChannelHandlerContext ctx, HttpResponseStatus status,
+            StringBuilder builder) {
+        ByteBuf buf = ctx.alloc().buffer(builder.length());
+        ByteBufUtil.writeUtf8(buf, builder);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, buf);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, buf.readableBytes());
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            future.addListener(WaarpSslUtility.SSLCLOSE);
+        }
+    }
+
     private void checkSession(Channel channel) {
         String cookieString = request.headers().get(HttpHeaderNames.COOKIE);
         if (cookieString != null) {
@@ -725,19 +1087,36 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
             }
         }
         if (admin != null) {
-            FileBasedAuth auth = sessions.get(admin.value());
-            if (auth != null) {
-                authentHttp = auth;
-            }
-            DbSession dbSession = dbSessions.get(admin.value());
-            if (dbSession != null) {
-                this.dbSession = dbSession;
+            HttpSession session =
+                    FileBasedConfiguration.fileBasedConfiguration.httpSessionStore.get(admin
+                            .value());
+            if (session != null) {
+                authentHttp = session.getAuth();
+                if (session.getDbSession() != null) {
+                    this.dbSession = session.getDbSession();
+                }
+            } else {
+                // expired or evicted: its DbSession is closed by the store
+                this.dbSession = null;
+                this.isPrivateDbSession = false;
             }
         } else {
             logger.debug("NoSession: " + uriRequest + ":{}", admin);
         }
     }
 
+    /**
+     * Close the private DbSession not given to the session store (failed logon)
+     */
+    private void releaseDbSession() {
+        if (isPrivateDbSession && dbSession != null) {
+            dbSession.disconnect();
+            DbAdmin.decHttpSession();
+        }
+        dbSession = null;
+        isPrivateDbSession = false;
+    }
+
     private void handleCookies(HttpResponse response) {
         String cookieString = request.headers().get(HttpHeaderNames.COOKIE);
         if (cookieString != null) {
@@ -777,9 +1156,9 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
      * @param ctx
      */
     private void writeResponse(ChannelHandlerContext ctx) {
-        // Convert the response content to a ByteBuf.
-        ByteBuf buf = Unpooled.copiedBuffer(responseContent.toString(),
-                WaarpStringUtils.UTF8);
+        // Encode the response content directly into a pooled ByteBuf.
+        ByteBuf buf = ctx.alloc().buffer(responseContent.length());
+        ByteBufUtil.writeUtf8(buf, responseContent);
         responseContent.setLength(0);
 
         // Decide whether to close the connection or not.
@@ -823,6 +1202,46 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         }
     }
 
+    /**
+     * Write the response as chunks from the input (the content length being unknown)
+     * 
+     * @param ctx
+     * @param input
+     * @param contentType
+     */
+    private void writeChunkedResponse(ChannelHandlerContext ctx, ChunkedInput<ByteBuf> input,
+            String contentType) {
+        responseContent.setLength(0);
+        // Decide whether to close the connection or not.
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        boolean close = HttpHeaderValues.CLOSE.contentEqualsIgnoreCase(request
+                .headers().get(HttpHeaderNames.CONNECTION)) ||
+                (!keepAlive) || forceClose;
+
+        // Build the response header, the content follows as chunks
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        HttpUtil.setTransferEncodingChunked(response, true);
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+
+        handleCookies(response);
+
+        // Write the response: rows are rendered as the channel becomes writable, read on the
+        // executor of this handler such that the IO event loop does not wait for the database
+        ChunkedWriteHandler writer = ctx.pipeline().get(ChunkedWriteHandler.class);
+        if (writer != null && ctx.executor() != ctx.channel().eventLoop()) {
+            input = new ExecutorChunkedInput(input, ctx.executor(), writer, ctx.alloc());
+        }
+        ctx.write(response);
+        ChannelFuture future = ctx.writeAndFlush(new HttpChunkedInput(input));
+        // Close the connection after the write operation is done if necessary.
+        if (close) {
+            future.addListener(WaarpSslUtility.SSLCLOSE);
+        }
+    }
+
     /**
      * Send an error and close
      * 
@@ -832,8 +1251,10 @@ public class HttpSslHandler extends SimpleChannelInboundHandler<FullHttpRequest>
     private void sendError(ChannelHandlerContext ctx, HttpResponseStatus status) {
         responseContent.setLength(0);
         responseContent.append(error(status.toString()));
+        ByteBuf buf = ctx.alloc().buffer(responseContent.length());
+        ByteBufUtil.writeUtf8(buf, responseContent);
         FullHttpResponse response = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer(responseContent.toString(), WaarpStringUtils.UTF8));
+                HttpVersion.HTTP_1_1, status, buf);
         response.headers().add(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html");
         clearSession();
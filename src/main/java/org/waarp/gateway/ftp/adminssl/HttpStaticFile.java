@@ -0,0 +1,277 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.adminssl;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.waarp.common.crypto.ssl.WaarpSslUtility;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Writer of the static files of the administrator interface (res, img and gre directories).<br>
+ * <br>
+ * Files are sent with a long Cache-Control lifetime, an ETag and a Last-Modified date, such that
+ * browsers revalidate them with a 304 answer. A precompressed variant (file.gz) is sent when the
+ * browser accepts it, and other files are marked as identity so that the HTTP compression only
+ * applies to dynamic pages. The file is sent by zero-copy when the channel is not encrypted, and as
+ * chunks otherwise. Paths going out of the base directory are refused.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class HttpStaticFile {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(HttpStaticFile.class);
+
+    /**
+     * Cache lifetime in seconds (7 days)
+     */
+    public static final long MAX_AGE = 604800;
+    private static final int CHUNK_SIZE = 8192;
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private static final Map<String, String> contentTypes = new HashMap<String, String>();
+    static {
+        contentTypes.put("css", "text/css");
+        contentTypes.put("js", "application/javascript");
+        contentTypes.put("html", "text/html");
+        contentTypes.put("htm", "text/html");
+        contentTypes.put("txt", "text/plain");
+        contentTypes.put("png", "image/png");
+        contentTypes.put("gif", "image/gif");
+        contentTypes.put("jpg", "image/jpeg");
+        contentTypes.put("jpeg", "image/jpeg");
+        contentTypes.put("ico", "image/x-icon");
+        contentTypes.put("svg", "image/svg+xml");
+    }
+
+    private HttpStaticFile() {
+    }
+
+    /**
+     * Write the static file of the request
+     *
+     * @param ctx
+     * @param request
+     * @param basePath
+     *            base directory of the static files
+     * @param uri
+     *            path of the file (relative to basePath)
+     */
+    public static void writeFile(ChannelHandlerContext ctx, HttpRequest request,
+            String basePath, String uri) {
+        if (request.method() != HttpMethod.GET && request.method() != HttpMethod.HEAD) {
+            sendStatus(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED);
+            return;
+        }
+        File file = getFile(basePath, uri);
+        if (file == null || !file.isFile() || !file.canRead()) {
+            sendStatus(ctx, request, HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) +
+                "\"";
+        if (isNotModified(request, etag, lastModified)) {
+            HttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.NOT_MODIFIED);
+            response.headers().set(HttpHeaderNames.ETAG, etag);
+            setCacheHeaders(response, lastModified);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+            write(ctx, request, response);
+            return;
+        }
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, getContentType(file.getName()));
+        response.headers().set(HttpHeaderNames.ETAG, etag);
+        response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        setCacheHeaders(response, lastModified);
+        // precompressed variant if accepted and up to date
+        File gzFile = new File(file.getPath() + ".gz");
+        String accept = request.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+        if (accept != null && accept.contains(HttpHeaderValues.GZIP.toString()) &&
+                gzFile.isFile() && gzFile.lastModified() >= lastModified) {
+            file = gzFile;
+            length = gzFile.length();
+            response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+        } else {
+            // no compression by the pipeline for static files
+            response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.IDENTITY);
+        }
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            sendStatus(ctx, request, HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+        HttpUtil.setContentLength(response, length);
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        ctx.write(response);
+        ChannelFuture future;
+        if (request.method() == HttpMethod.HEAD) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+            }
+            future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        } else if (ctx.pipeline().get(SslHandler.class) == null) {
+            // zero-copy
+            ctx.write(new DefaultFileRegion(raf.getChannel(), 0, length));
+            future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        } else {
+            try {
+                future = ctx.writeAndFlush(new HttpChunkedInput(new ChunkedFile(raf, 0, length,
+                        CHUNK_SIZE)));
+            } catch (IOException e) {
+                logger.warn("Cannot send static file: " + file.getPath(), e);
+                try {
+                    raf.close();
+                } catch (IOException e1) {
+                }
+                ctx.close();
+                return;
+            }
+        }
+        if (!keepAlive) {
+            future.addListener(WaarpSslUtility.SSLCLOSE);
+        }
+    }
+
+    /**
+     *
+     * @param basePath
+     * @param uri
+     * @return the file under basePath or null if the path goes out of basePath
+     */
+    private static File getFile(String basePath, String uri) {
+        if (uri.indexOf('\0') >= 0 || uri.contains("..")) {
+            return null;
+        }
+        try {
+            File base = new File(basePath).getCanonicalFile();
+            File file = new File(base, uri).getCanonicalFile();
+            if (!file.getPath().startsWith(base.getPath() + File.separator)) {
+                return null;
+            }
+            return file;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.equals("*") || ifNoneMatch.contains(etag);
+        }
+        String ifModifiedSince = request.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null && ifModifiedSince.length() > 0) {
+            try {
+                Date since = getDateFormat().parse(ifModifiedSince);
+                // HTTP dates have a precision of one second
+                return since.getTime() / 1000 >= lastModified / 1000;
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static SimpleDateFormat getDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static void setCacheHeaders(HttpResponse response, long lastModified) {
+        SimpleDateFormat format = getDateFormat();
+        response.headers().set(HttpHeaderNames.DATE, format.format(new Date()));
+        response.headers().set(HttpHeaderNames.LAST_MODIFIED,
+                format.format(new Date(lastModified)));
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, "public, max-age=" + MAX_AGE);
+    }
+
+    private static String getContentType(String name) {
+        int pos = name.lastIndexOf('.');
+        if (pos >= 0) {
+            String type = contentTypes.get(name.substring(pos + 1).toLowerCase());
+            if (type != null) {
+                return type;
+            }
+        }
+        return "application/octet-stream";
+    }
+
+    private static void sendStatus(ChannelHandlerContext ctx, HttpRequest request,
+            HttpResponseStatus status) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                Unpooled.EMPTY_BUFFER);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+        write(ctx, request, response);
+    }
+
+    private static void write(ChannelHandlerContext ctx, HttpRequest request,
+            HttpResponse response) {
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            future.addListener(WaarpSslUtility.SSLCLOSE);
+        }
+    }
+}
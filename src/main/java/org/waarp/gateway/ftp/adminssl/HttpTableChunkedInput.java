@@ -0,0 +1,186 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.adminssl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Chunked input of an HTML page made of a head, one row per element of a RowSource and an end.
+ * <br>
+ * <br>
+ * Rows are rendered (values being HTML escaped) only when the channel asks for the next chunk, so
+ * the memory used is bounded by the chunk size whatever the number of rows. Since the rows might
+ * come from the database, it is read through an ExecutorChunkedInput, out of the IO event loop.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class HttpTableChunkedInput implements ChunkedInput<ByteBuf> {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(HttpTableChunkedInput.class);
+
+    /**
+     * Default size of one chunk
+     */
+    public static final int CHUNK_SIZE = 8192;
+
+    /**
+     * Source of rows
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static interface RowSource {
+        /**
+         * Fill the values of the next row
+         *
+         * @param values
+         *            values by placeholder (as XXXNAMEXXX)
+         * @return False if there is no more row
+         */
+        public boolean next(Map<String, String> values);
+
+        /**
+         * Release the resources of this source
+         */
+        public void close();
+    }
+
+    private final String head;
+    private final HttpTemplate row;
+    private final RowSource source;
+    private final String end;
+    private final int chunkSize;
+    private final StringBuilder builder;
+    private final Map<String, String> values = new HashMap<String, String>();
+    private boolean headDone = false;
+    private boolean rowsDone = false;
+    private boolean endDone = false;
+    private long progress = 0;
+
+    /**
+     *
+     * @param head
+     * @param row
+     *            template of one row
+     * @param source
+     * @param end
+     * @param chunkSize
+     */
+    public HttpTableChunkedInput(String head, HttpTemplate row, RowSource source, String end,
+            int chunkSize) {
+        this.head = head;
+        this.row = row;
+        this.source = source;
+        this.end = end;
+        this.chunkSize = chunkSize;
+        this.builder = new StringBuilder(chunkSize + 1024);
+    }
+
+    public boolean isEndOfInput() throws Exception {
+        return endDone;
+    }
+
+    public void close() throws Exception {
+        if (!rowsDone) {
+            rowsDone = true;
+            source.close();
+        }
+        endDone = true;
+    }
+
+    @Deprecated
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (endDone) {
+            return null;
+        }
+        builder.setLength(0);
+        if (!headDone) {
+            builder.append(head);
+            headDone = true;
+        }
+        while (!rowsDone && builder.length() < chunkSize) {
+            values.clear();
+            boolean next;
+            try {
+                next = source.next(values);
+            } catch (RuntimeException e) {
+                logger.warn("Error while rendering rows", e);
+                next = false;
+            }
+            if (next) {
+                row.renderEscaped(builder, values);
+            } else {
+                rowsDone = true;
+                source.close();
+            }
+        }
+        if (rowsDone) {
+            builder.append(end);
+            endDone = true;
+        }
+        ByteBuf buf = allocator.buffer(builder.length());
+        ByteBufUtil.writeUtf8(buf, builder);
+        progress += buf.readableBytes();
+        return buf;
+    }
+
+    public long length() {
+        return -1;
+    }
+
+    public long progress() {
+        return progress;
+    }
+
+    /**
+     * Render the whole page at once (for small tables)
+     *
+     * @param builder
+     * @param row
+     * @param source
+     */
+    public static void renderAll(StringBuilder builder, HttpTemplate row, RowSource source) {
+        Map<String, String> values = new HashMap<String, String>();
+        try {
+            while (source.next(values)) {
+                row.renderEscaped(builder, values);
+                values.clear();
+            }
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.adminssl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.waarp.common.utility.WaarpStringUtils;
+
+/**
+ * HTML template of the administrator interface, read once and kept in memory in a compiled form:
+ * the text is split once into literal segments and placeholders (XXX...XXX), such that rendering
+ * is a single pass without any search.<br>
+ * <br>
+ * Templates are cached by file name until clear() is called (when the files change).
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class HttpTemplate {
+    /**
+     * Placeholder pattern as XXXNAMEXXX
+     */
+    private static final Pattern PLACEHOLDER = Pattern.compile("XXX[A-Z0-9]+?XXX");
+
+    /**
+     * Cache of compiled templates by file name
+     */
+    private static final ConcurrentHashMap<String, HttpTemplate> templates =
+            new ConcurrentHashMap<String, HttpTemplate>();
+
+    /**
+     * Original text
+     */
+    private final String text;
+    /**
+     * Literal segments: segments[i] is followed by placeholders[i] (if any)
+     */
+    private final String[] segments;
+    private final String[] placeholders;
+
+    /**
+     *
+     * @param text
+     */
+    public HttpTemplate(String text) {
+        this.text = text == null ? "" : text;
+        List<String> literals = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        Matcher matcher = PLACEHOLDER.matcher(this.text);
+        int pos = 0;
+        while (matcher.find()) {
+            literals.add(this.text.substring(pos, matcher.start()));
+            names.add(matcher.group());
+            pos = matcher.end();
+        }
+        literals.add(this.text.substring(pos));
+        segments = literals.toArray(new String[0]);
+        placeholders = names.toArray(new String[0]);
+    }
+
+    /**
+     *
+     * @param filename
+     * @return the compiled template of this file (read only once until cleared)
+     */
+    public static HttpTemplate get(String filename) {
+        HttpTemplate template = templates.get(filename);
+        if (template == null) {
+            template = new HttpTemplate(WaarpStringUtils.readFile(filename));
+            HttpTemplate previous = templates.putIfAbsent(filename, template);
+            if (previous != null) {
+                template = previous;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Forget all compiled templates (to be called when files change)
+     */
+    public static void clear() {
+        templates.clear();
+    }
+
+    /**
+     *
+     * @return the original text of the template
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Render the template into the builder
+     *
+     * @param builder
+     * @param values
+     *            values by placeholder (as XXXNAMEXXX); placeholders without value are kept as is
+     */
+    public void render(StringBuilder builder, Map<String, String> values) {
+        for (int i = 0; i < placeholders.length; i++) {
+            builder.append(segments[i]);
+            String value = values.get(placeholders[i]);
+            builder.append(value != null ? value : placeholders[i]);
+        }
+        builder.append(segments[placeholders.length]);
+    }
+
+    /**
+     * Render the template into the builder, values being HTML escaped
+     *
+     * @param builder
+     * @param values
+     *            values by placeholder (as XXXNAMEXXX); placeholders without value are kept as is
+     */
+    public void renderEscaped(StringBuilder builder, Map<String, String> values) {
+        for (int i = 0; i < placeholders.length; i++) {
+            builder.append(segments[i]);
+            String value = values.get(placeholders[i]);
+            if (value != null) {
+                escapeHtml(builder, value);
+            } else {
+                builder.append(placeholders[i]);
+            }
+        }
+        builder.append(segments[placeholders.length]);
+    }
+
+    /**
+     * Append the value HTML escaped (for text as for attribute values)
+     *
+     * @param builder
+     * @param value
+     */
+    public static void escapeHtml(StringBuilder builder, String value) {
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    builder.append("&lt;");
+                    break;
+                case '>':
+                    builder.append("&gt;");
+                    break;
+                case '&':
+                    builder.append("&amp;");
+                    break;
+                case '"':
+                    builder.append("&quot;");
+                    break;
+                case '\'':
+                    builder.append("&#39;");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param values
+     *            values by placeholder (as XXXNAMEXXX); placeholders without value are kept as is
+     * @return the rendered template
+     */
+    public String render(Map<String, String> values) {
+        StringBuilder builder = new StringBuilder(text.length() + 256);
+        render(builder, values);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,372 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.adminssl;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.command.ReplyCode;
+import org.waarp.common.database.DbPreparedStatement;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.gateway.ftp.database.DbConstant;
+import org.waarp.gateway.ftp.database.data.DbTransferLog;
+import org.waarp.gateway.ftp.database.data.DbTransferLog.ExportMonitor;
+
+/**
+ * Background export (and purge) of transfer logs, submitted from the administrator interface.<br>
+ * <br>
+ * Jobs run one at a time on a dedicated thread with their own database session, such that the
+ * HTTP handler only submits and polls them. Each job has an id, its progress can be polled, it can
+ * be cancelled (what was already purged is still exported), and its deletion rate is throttled so
+ * as not to compete with the insertion of live transfer logs.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class TransferLogJob implements Runnable, ExportMonitor {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(TransferLogJob.class);
+
+    /**
+     * Status of a job
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static enum JobStatus {
+        PENDING, RUNNING, DONE, CANCELLED, ERROR
+    }
+
+    /**
+     * Number of finished jobs kept for polling
+     */
+    private static final int MAX_FINISHED = 16;
+
+    private static final AtomicLong ids = new AtomicLong();
+    private static final ConcurrentSkipListMap<Long, TransferLogJob> jobs =
+            new ConcurrentSkipListMap<Long, TransferLogJob>();
+    private static ExecutorService executor = null;
+
+    private final long id;
+    private final ReplyCode status;
+    private final boolean purge;
+    private final String filename;
+    private final int rate;
+    private final AtomicLong count = new AtomicLong();
+    private volatile JobStatus jobStatus = JobStatus.PENDING;
+    private volatile boolean cancelled = false;
+    private volatile boolean failed = false;
+    private volatile String message = null;
+    private volatile long start = 0;
+    private volatile long end = 0;
+    private Future<?> future = null;
+
+    /**
+     *
+     * @param status
+     *            status of the logs to export (null for all)
+     * @param purge
+     *            True if the exported logs are purged
+     * @param filename
+     *            the export file
+     * @param rate
+     *            maximum number of logs purged per second (0 for no limit)
+     */
+    private TransferLogJob(ReplyCode status, boolean purge, String filename, int rate) {
+        this.id = ids.incrementAndGet();
+        this.status = status;
+        this.purge = purge;
+        this.filename = filename;
+        this.rate = rate;
+    }
+
+    /**
+     * Submit a new job
+     *
+     * @param status
+     *            status of the logs to export (null for all)
+     * @param purge
+     *            True if the exported logs are purged
+     * @param filename
+     *            the export file
+     * @param rate
+     *            maximum number of logs purged per second (0 for no limit)
+     * @return the job
+     */
+    public static TransferLogJob submit(ReplyCode status, boolean purge, String filename,
+            int rate) {
+        TransferLogJob job = new TransferLogJob(status, purge, filename, rate);
+        synchronized (jobs) {
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor(
+                        new WaarpThreadFactory("TransferLogJob"));
+            }
+            jobs.put(job.id, job);
+            job.future = executor.submit(job);
+            removeOldJobs();
+        }
+        logger.info("Job submitted: {}", job);
+        return job;
+    }
+
+    /**
+     * Keep only the last finished jobs
+     */
+    private static void removeOldJobs() {
+        int finished = 0;
+        for (TransferLogJob job : jobs.descendingMap().values()) {
+            if (job.isFinished()) {
+                finished++;
+                if (finished > MAX_FINISHED) {
+                    jobs.remove(job.id);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @param id
+     * @return the job or null if unknown
+     */
+    public static TransferLogJob get(long id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Cancel the job
+     *
+     * @param id
+     * @return True if the job was found and not yet finished
+     */
+    public static boolean cancel(long id) {
+        TransferLogJob job = jobs.get(id);
+        if (job == null || job.isFinished()) {
+            return false;
+        }
+        job.cancelled = true;
+        synchronized (jobs) {
+            if (job.jobStatus == JobStatus.PENDING && job.future != null &&
+                    job.future.cancel(false)) {
+                job.jobStatus = JobStatus.CANCELLED;
+                job.message = "Cancelled before start";
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param separator
+     *            separator between jobs
+     * @return the status of all known jobs, most recent first
+     */
+    public static String getAllStatus(String separator) {
+        StringBuilder builder = new StringBuilder();
+        Iterator<Map.Entry<Long, TransferLogJob>> iterator =
+                jobs.descendingMap().entrySet().iterator();
+        while (iterator.hasNext()) {
+            builder.append(iterator.next().getValue().toString());
+            if (iterator.hasNext()) {
+                builder.append(separator);
+            }
+        }
+        if (builder.length() == 0) {
+            return "No Job";
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Cancel all jobs and stop the executor
+     */
+    public static void release() {
+        for (TransferLogJob job : jobs.values()) {
+            job.cancelled = true;
+        }
+        synchronized (jobs) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+
+    public void run() {
+        if (cancelled) {
+            jobStatus = JobStatus.CANCELLED;
+            message = "Cancelled before start";
+            return;
+        }
+        jobStatus = JobStatus.RUNNING;
+        start = System.currentTimeMillis();
+        DbSession session = null;
+        boolean privateSession = false;
+        try {
+            try {
+                session = new DbSession(DbConstant.gatewayAdmin, false);
+                privateSession = true;
+            } catch (WaarpDatabaseNoConnectionException e) {
+                logger.warn("Use default database connection");
+                session = DbConstant.gatewayAdmin.getSession();
+            }
+            DbPreparedStatement preparedStatement;
+            try {
+                preparedStatement = DbTransferLog.getStatusPrepareStament(session, status, 0);
+            } catch (WaarpDatabaseNoConnectionException e) {
+                message = "Error during " + getAction();
+                jobStatus = JobStatus.ERROR;
+                return;
+            } catch (WaarpDatabaseSqlException e) {
+                message = "Error during " + getAction();
+                jobStatus = JobStatus.ERROR;
+                return;
+            }
+            Writer writer;
+            try {
+                writer = new FileWriter(filename);
+            } catch (IOException e) {
+                preparedStatement.realClose();
+                message = "Cannot open file " + filename + ": " + e.getMessage();
+                jobStatus = JobStatus.ERROR;
+                return;
+            }
+            try {
+                message = DbTransferLog.saveDbTransferLogFile(preparedStatement, writer, purge,
+                        this);
+            } finally {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                }
+            }
+            if (failed) {
+                jobStatus = JobStatus.ERROR;
+            } else {
+                jobStatus = cancelled ? JobStatus.CANCELLED : JobStatus.DONE;
+            }
+        } finally {
+            end = System.currentTimeMillis();
+            if (privateSession) {
+                session.disconnect();
+            }
+            logger.info("Job finished: {}", this);
+        }
+    }
+
+    public void failed(String message) {
+        logger.warn("Job failed: " + message);
+        failed = true;
+    }
+
+    public boolean exported(long exported) {
+        count.set(exported);
+        if (cancelled || Thread.currentThread().isInterrupted()) {
+            cancelled = true;
+            return false;
+        }
+        if (purge && rate > 0) {
+            // throttle the deletions to the given rate
+            long expected = exported * 1000 / rate;
+            long elapsed = System.currentTimeMillis() - start;
+            if (expected > elapsed) {
+                try {
+                    Thread.sleep(expected - elapsed);
+                } catch (InterruptedException e) {
+                    cancelled = true;
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private String getAction() {
+        if (!purge) {
+            return "export";
+        }
+        return status == null ? "purgeAll" : "purge";
+    }
+
+    /**
+     *
+     * @return the id of this job
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     *
+     * @return the status of this job
+     */
+    public JobStatus getJobStatus() {
+        return jobStatus;
+    }
+
+    /**
+     *
+     * @return the number of logs exported so far
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     *
+     * @return True if this job is finished
+     */
+    public boolean isFinished() {
+        JobStatus current = jobStatus;
+        return current == JobStatus.DONE || current == JobStatus.CANCELLED ||
+                current == JobStatus.ERROR;
+    }
+
+    @Override
+    public String toString() {
+        long elapsed = 0;
+        if (start > 0) {
+            elapsed = (end > 0 ? end : System.currentTimeMillis()) - start;
+        }
+        String result = "Job " + id + " " + getAction() + " into " + filename + ": " +
+                jobStatus.name() + " " + count.get() + " logs in " + elapsed + " ms";
+        if (elapsed > 0) {
+            result += " (" + (count.get() * 1000 / elapsed) + " logs/s)";
+        }
+        if (message != null) {
+            result += " " + message;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.adminssl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import org.waarp.common.database.DbPreparedStatement;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.gateway.ftp.database.data.DbTransferLog;
+
+/**
+ * Chunked input of the JSON result of a transfer log search, read from the database cursor as the
+ * channel asks for the next chunk:<br>
+ * {"transfers":[{...},...],"count":n,"next":id}<br>
+ * where next is the SPECIALID to give as "before" for the next page (null if this page is the
+ * last one). If the search fails while it is read, an "error" member is added and next is the
+ * SPECIALID of the last sent transfer, such that the client can go on from there.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class TransferLogJsonInput implements ChunkedInput<ByteBuf> {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(TransferLogJsonInput.class);
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final DbPreparedStatement preparedStatement;
+    private final int limit;
+    private final StringBuilder builder = new StringBuilder(CHUNK_SIZE + 1024);
+    private boolean started = false;
+    private boolean rowsDone = false;
+    private boolean endDone = false;
+    private long count = 0;
+    private long lastId = -1;
+    private String error = null;
+    private long progress = 0;
+
+    /**
+     *
+     * @param preparedStatement
+     *            the executed search (see DbTransferLog.getSearchPrepareStatement)
+     * @param limit
+     *            the page size used for the search
+     */
+    public TransferLogJsonInput(DbPreparedStatement preparedStatement, int limit) {
+        this.preparedStatement = preparedStatement;
+        this.limit = limit;
+    }
+
+    public boolean isEndOfInput() throws Exception {
+        return endDone;
+    }
+
+    public void close() throws Exception {
+        if (!rowsDone) {
+            rowsDone = true;
+            preparedStatement.realClose();
+        }
+        endDone = true;
+    }
+
+    @Deprecated
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (endDone) {
+            return null;
+        }
+        builder.setLength(0);
+        if (!started) {
+            builder.append("{\"transfers\":[");
+            started = true;
+        }
+        while (!rowsDone && builder.length() < CHUNK_SIZE) {
+            DbTransferLog log = null;
+            try {
+                if (preparedStatement.getNext()) {
+                    log = DbTransferLog.getFromStatement(preparedStatement);
+                }
+            } catch (WaarpDatabaseNoConnectionException e) {
+                logger.warn("Error while reading transfer logs: " + e.getMessage());
+                error = "Database not available";
+            } catch (WaarpDatabaseSqlException e) {
+                logger.warn("Error while reading transfer logs: " + e.getMessage());
+                error = "Error while reading transfer logs";
+            }
+            if (log == null) {
+                rowsDone = true;
+                preparedStatement.realClose();
+            } else {
+                if (count > 0) {
+                    builder.append(',');
+                }
+                appendLog(builder, log);
+                count++;
+                lastId = log.getSpecialId();
+            }
+        }
+        if (rowsDone) {
+            builder.append("],\"count\":").append(count);
+            if (error != null) {
+                appendField(builder, "error", error);
+            }
+            builder.append(",\"next\":");
+            if ((error != null && lastId >= 0) || (limit > 0 && count >= limit)) {
+                builder.append(lastId);
+            } else {
+                builder.append("null");
+            }
+            builder.append('}');
+            endDone = true;
+        }
+        ByteBuf buf = allocator.buffer(builder.length());
+        ByteBufUtil.writeUtf8(buf, builder);
+        progress += buf.readableBytes();
+        return buf;
+    }
+
+    public long length() {
+        return -1;
+    }
+
+    public long progress() {
+        return progress;
+    }
+
+    private static void appendLog(StringBuilder builder, DbTransferLog log) {
+        builder.append("{\"specialid\":").append(log.getSpecialId());
+        appendField(builder, "user", log.getUser());
+        appendField(builder, "account", log.getAccount());
+        appendField(builder, "filename", log.getFilename());
+        appendField(builder, "mode", log.getMode());
+        builder.append(",\"status\":").append(log.getErrorInfo().getCode());
+        appendField(builder, "statusmesg", log.getErrorInfo().getMesg());
+        appendField(builder, "info", log.getInfotransf());
+        appendField(builder, "updatedinfo", log.getUpdatedInfo().name());
+        appendField(builder, "start", log.getStart() != null ? log.getStart().toString() : null);
+        appendField(builder, "stop", log.getStop() != null ? log.getStop().toString() : null);
+        appendField(builder, "digest", log.getDigest());
+        builder.append('}');
+    }
+
+    private static void appendField(StringBuilder builder, String name, String value) {
+        builder.append(",\"").append(name).append("\":");
+        appendJsonString(builder, value);
+    }
+
+    /**
+     * Append the value as a JSON string (or null)
+     *
+     * @param builder
+     * @param value
+     */
+    public static void appendJsonString(StringBuilder builder, String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        String hex = Integer.toHexString(c);
+                        builder.append("\\u");
+                        for (int j = hex.length(); j < 4; j++) {
+                            builder.append('0');
+                        }
+                        builder.append(hex);
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+}
@@ -16,18 +16,38 @@
  */
 package org.waarp.gateway.ftp.config;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InvalidObjectException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.io.SAXReader;
@@ -41,6 +61,7 @@ import io.netty.channel.group.ChannelGroupFutureListener;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.handler.traffic.AbstractTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import io.netty.util.concurrent.EventExecutorGroup;
 
 import org.waarp.common.crypto.Des;
@@ -48,11 +69,11 @@ import org.waarp.common.crypto.ssl.WaarpSecureKeyStore;
 import org.waarp.common.crypto.ssl.WaarpSslContextFactory;
 import org.waarp.common.database.DbAdmin;
 import org.waarp.common.database.DbPreparedStatement;
+import org.waarp.common.database.DbSession;
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
 import org.waarp.common.digest.FilesystemBasedDigest;
 import org.waarp.common.exception.CryptoException;
-import org.waarp.common.exception.InvalidArgumentException;
 import org.waarp.common.file.DirInterface;
 import org.waarp.common.file.FileParameterInterface;
 import org.waarp.common.file.filesystembased.FilesystemBasedDirImpl;
@@ -74,15 +95,35 @@ import org.waarp.ftp.core.control.ftps.FtpsInitializer;
 import org.waarp.ftp.core.data.handler.DataBusinessHandler;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.exception.FtpUnknownFieldException;
+import org.waarp.gateway.ftp.adminssl.HttpSessionStore;
 import org.waarp.gateway.ftp.adminssl.HttpSslInitializer;
+import org.waarp.gateway.ftp.adminssl.HttpTableChunkedInput;
+import org.waarp.gateway.ftp.adminssl.HttpTableChunkedInput.RowSource;
+import org.waarp.gateway.ftp.adminssl.HttpTemplate;
+import org.waarp.gateway.ftp.adminssl.TransferLogJob;
 import org.waarp.gateway.ftp.control.FtpConstraintLimitHandler;
+import org.waarp.gateway.ftp.control.PreAuthLimiter;
 import org.waarp.gateway.ftp.database.DbConstant;
+import org.waarp.gateway.ftp.database.data.DbFtpAuthent;
 import org.waarp.gateway.ftp.database.data.DbTransferLog;
 import org.waarp.gateway.ftp.database.model.DbModelFactory;
+import org.waarp.gateway.ftp.file.CredentialCache;
+import org.waarp.gateway.ftp.file.DbAuthentStore;
+import org.waarp.gateway.ftp.file.DbAuthentStore.SimpleAuthFactory;
+import org.waarp.gateway.ftp.file.FileBasedFile.Preallocation;
+import org.waarp.gateway.ftp.file.FileBasedFile.StoreSync;
+import org.waarp.gateway.ftp.file.RestartJournal;
+import org.waarp.gateway.ftp.file.StreamDigest.Algorithm;
+import org.waarp.gateway.ftp.file.PasswordHash;
 import org.waarp.gateway.ftp.file.SimpleAuth;
 import org.waarp.gateway.ftp.snmp.FtpMonitoring;
 import org.waarp.gateway.ftp.snmp.FtpPrivateMib;
+import org.waarp.gateway.ftp.snmp.FtpTrapAggregator;
 import org.waarp.gateway.ftp.snmp.FtpVariableFactory;
+import org.waarp.gateway.ftp.utils.FileWatcher;
+import org.waarp.gateway.ftp.utils.FileWatcher.FileChangeListener;
+import org.waarp.gateway.ftp.utils.StartupStages;
+import org.waarp.gateway.ftp.utils.StartupStages.Stage;
 import org.waarp.gateway.kernel.exec.AbstractExecutor;
 import org.waarp.gateway.kernel.exec.LocalExecClient;
 import org.waarp.snmp.SnmpConfiguration;
@@ -109,6 +150,31 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * Authentication
      */
     private static final String XML_AUTHENTIFICATION_FILE = "authentfile";
+    /**
+     * Maximum number of verified credentials kept in cache (0 meaning no cache)
+     */
+    private static final String XML_AUTHENTIFICATION_CACHESIZE = "authentcachesize";
+    /**
+     * Delay in ms between two checks of the authentication file for automatic reload (0 meaning
+     * no automatic reload)
+     */
+    private static final String XML_AUTHENTIFICATION_CHECKDELAY = "authentcheckdelay";
+    /**
+     * Use the database (FTPUSERS and FTPACCOUNTS) for users not found in the authentication file
+     */
+    private static final String XML_AUTHENTIFICATION_DB = "authentdb";
+    /**
+     * Maximum number of users from database kept in cache
+     */
+    private static final String XML_AUTHENTIFICATION_DBCACHESIZE = "authentdbcachesize";
+    /**
+     * Time to live in ms of a user from database in cache
+     */
+    private static final String XML_AUTHENTIFICATION_DBTTL = "authentdbttl";
+    /**
+     * Time to live in ms of an unknown user in cache
+     */
+    private static final String XML_AUTHENTIFICATION_DBNEGATIVETTL = "authentdbnegativettl";
     /**
      * SERVER CRYPTO for Password
      */
@@ -122,7 +188,13 @@ public class FileBasedConfiguration extends FtpConfiguration {
             // identity
             new XmlDecl(XmlType.STRING, XML_SERVER_HOSTID),
             new XmlDecl(XmlType.STRING, XML_PATH_CRYPTOKEY),
-            new XmlDecl(XmlType.STRING, XML_AUTHENTIFICATION_FILE)
+            new XmlDecl(XmlType.STRING, XML_AUTHENTIFICATION_FILE),
+            new XmlDecl(XmlType.INTEGER, XML_AUTHENTIFICATION_CACHESIZE),
+            new XmlDecl(XmlType.LONG, XML_AUTHENTIFICATION_CHECKDELAY),
+            new XmlDecl(XmlType.BOOLEAN, XML_AUTHENTIFICATION_DB),
+            new XmlDecl(XmlType.INTEGER, XML_AUTHENTIFICATION_DBCACHESIZE),
+            new XmlDecl(XmlType.LONG, XML_AUTHENTIFICATION_DBTTL),
+            new XmlDecl(XmlType.LONG, XML_AUTHENTIFICATION_DBNEGATIVETTL)
     };
     /**
      * Use HTTP compression for R66 HTTP connection
@@ -168,10 +240,30 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * HTTP Admin Directory
      */
     private static final String XML_HTTPADMINPATH = "httpadmin";
+    /**
+     * Maximum number of logged-in administrator sessions
+     */
+    private static final String XML_HTTPSESSION_MAX = "httpsessionmax";
+    /**
+     * Time in ms after the last request before an administrator session expires
+     */
+    private static final String XML_HTTPSESSION_IDLE = "httpsessionidle";
+    /**
+     * Time in ms after logon before an administrator session expires
+     */
+    private static final String XML_HTTPSESSION_TTL = "httpsessionttl";
     /**
      * Monitoring: snmp configuration file (if empty, no snmp support)
      */
     private static final String XML_MONITOR_SNMP_CONFIG = "snmpconfig";
+    /**
+     * Window in ms within which similar SNMP traps are coalesced (0 meaning no coalescing)
+     */
+    private static final String XML_MONITOR_SNMP_TRAPWINDOW = "snmptrapwindow";
+    /**
+     * Maximum number of SNMP traps sent per second (0 meaning no limit)
+     */
+    private static final String XML_MONITOR_SNMP_TRAPRATE = "snmptraprate";
 
     /**
      * Structure of the Configuration file
@@ -186,10 +278,15 @@ public class FileBasedConfiguration extends FtpConfiguration {
             new XmlDecl(XmlType.STRING, XML_SERVER_PASSWD),
             new XmlDecl(XmlType.BOOLEAN, XML_USEHTTPCOMP),
             new XmlDecl(XmlType.STRING, XML_HTTPADMINPATH),
+            new XmlDecl(XmlType.INTEGER, XML_HTTPSESSION_MAX),
+            new XmlDecl(XmlType.LONG, XML_HTTPSESSION_IDLE),
+            new XmlDecl(XmlType.LONG, XML_HTTPSESSION_TTL),
             new XmlDecl(XmlType.STRING, XML_PATH_ADMIN_KEYPATH),
             new XmlDecl(XmlType.STRING, XML_PATH_ADMIN_KEYSTOREPASS),
             new XmlDecl(XmlType.STRING, XML_PATH_ADMIN_KEYPASS),
-            new XmlDecl(XmlType.STRING, XML_MONITOR_SNMP_CONFIG)
+            new XmlDecl(XmlType.STRING, XML_MONITOR_SNMP_CONFIG),
+            new XmlDecl(XmlType.LONG, XML_MONITOR_SNMP_TRAPWINDOW),
+            new XmlDecl(XmlType.INTEGER, XML_MONITOR_SNMP_TRAPRATE)
     };
     /**
      * SERVER PORT
@@ -208,6 +305,11 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * RANGE of PORT for Passive Mode
      */
     private static final String XML_RANGE_PORT_MAX = "portmax";
+
+    /**
+     * Delay in ms before a released passive port can be proposed again
+     */
+    private static final String XML_RANGE_PORT_QUARANTINE = "portquarantine";
     /**
      * SERVER HTTP PORT MONITORING
      */
@@ -227,6 +329,7 @@ public class FileBasedConfiguration extends FtpConfiguration {
             new XmlDecl(XmlType.STRING, XML_SERVER_ADDRESS),
             new XmlDecl(XmlType.INTEGER, XML_RANGE_PORT_MIN),
             new XmlDecl(XmlType.INTEGER, XML_RANGE_PORT_MAX),
+            new XmlDecl(XmlType.LONG, XML_RANGE_PORT_QUARANTINE),
             new XmlDecl(XmlType.INTEGER, XML_SERVER_HTTP_PORT),
             new XmlDecl(XmlType.INTEGER, XML_SERVER_HTTPS_PORT)
     };
@@ -292,6 +395,10 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * Delay between two checks for Limit
      */
     private static final String XML_LIMITDELAY = "delaylimit";
+    /**
+     * Journal file of the limits changed at runtime (replayed at startup)
+     */
+    private static final String XML_LIMITJOURNAL = "limitjournal";
     /**
      * Nb of milliseconds after connection is in timeout
      */
@@ -301,6 +408,38 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * (maximum = 64K due to block limitation to 2 bytes)
      */
     private static final String XML_BLOCKSIZE = "blocksize";
+    /**
+     * Should RETR use zero-copy (sendfile) on plain binary stream data connections
+     */
+    private static final String XML_ZEROCOPYRETRIEVE = "zerocopyretrieve";
+    /**
+     * Size of the buffer coalescing STOR writes (0 for the standard block writes)
+     */
+    private static final String XML_STOREBUFFER = "storebuffer";
+    /**
+     * Durability policy of STOR with a store buffer: none, close or periodic
+     */
+    private static final String XML_STORESYNC = "storesync";
+    /**
+     * Size in MB between two syncs for the periodic policy
+     */
+    private static final String XML_STORESYNCSIZE = "storesyncsize";
+    /**
+     * Pre-allocation of uploads announced by ALLO: none, extend or full
+     */
+    private static final String XML_PREALLOCATION = "preallocation";
+    /**
+     * Digest computed while uploads are written: none, crc32, md5 or sha256
+     */
+    private static final String XML_STOREDIGEST = "storedigest";
+    /**
+     * Block size in KB of the restart journal of uploads (0 for no journal)
+     */
+    private static final String XML_RESTARTJOURNAL = "restartjournal";
+    /**
+     * Directory of the restart journals (outside of the user directories)
+     */
+    private static final String XML_RESTARTJOURNALPATH = "restartjournalpath";
     /**
      * Should a file MD5 SHA1 be computed using NIO
      */
@@ -353,6 +492,20 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * Bandwidth low limit to not got below
      */
     private static final String XML_CSTRT_LIMITLOWBANDWIDTH = "limitlowbandwidth";
+    /**
+     * Maximum number of failed authentications from one address in the window before its
+     * connections are refused, 0 meaning no limit
+     */
+    private static final String XML_PREAUTH_MAXFAIL = "preauthmaxfail";
+    /**
+     * Window in ms of the failed authentications count
+     */
+    private static final String XML_PREAUTH_WINDOW = "preauthwindow";
+    /**
+     * Maximum number of transfer logs purged per second by background purge jobs, 0 meaning no
+     * limit
+     */
+    private static final String XML_PURGERATE = "purgerate";
     /**
      * Structure of the Configuration file
      * 
@@ -363,6 +516,7 @@ public class FileBasedConfiguration extends FtpConfiguration {
             new XmlDecl(XmlType.LONG, XML_LIMITSESSION),
             new XmlDecl(XmlType.LONG, XML_LIMITGLOBAL),
             new XmlDecl(XmlType.LONG, XML_LIMITDELAY),
+            new XmlDecl(XmlType.STRING, XML_LIMITJOURNAL),
             new XmlDecl(XmlType.INTEGER, XML_SERVER_THREAD),
             new XmlDecl(XmlType.INTEGER, XML_CLIENT_THREAD),
             new XmlDecl(XmlType.LONG, XML_MEMORY_LIMIT),
@@ -376,10 +530,21 @@ public class FileBasedConfiguration extends FtpConfiguration {
             new XmlDecl(XmlType.LONG, XML_CSTRT_LIMITLOWBANDWIDTH),
             new XmlDecl(XmlType.LONG, XML_CSTRT_DELAYTHROTTLE),
             new XmlDecl(XmlType.LONG, XML_TIMEOUTCON),
+            new XmlDecl(XmlType.INTEGER, XML_PREAUTH_MAXFAIL),
+            new XmlDecl(XmlType.LONG, XML_PREAUTH_WINDOW),
+            new XmlDecl(XmlType.INTEGER, XML_PURGERATE),
             new XmlDecl(XmlType.BOOLEAN, XML_USENIO),
             new XmlDecl(XmlType.BOOLEAN, XML_USEFASTMD5),
             new XmlDecl(XmlType.STRING, XML_FASTMD5),
-            new XmlDecl(XmlType.INTEGER, XML_BLOCKSIZE)
+            new XmlDecl(XmlType.INTEGER, XML_BLOCKSIZE),
+            new XmlDecl(XmlType.BOOLEAN, XML_ZEROCOPYRETRIEVE),
+            new XmlDecl(XmlType.INTEGER, XML_STOREBUFFER),
+            new XmlDecl(XmlType.STRING, XML_STORESYNC),
+            new XmlDecl(XmlType.INTEGER, XML_STORESYNCSIZE),
+            new XmlDecl(XmlType.STRING, XML_PREALLOCATION),
+            new XmlDecl(XmlType.STRING, XML_STOREDIGEST),
+            new XmlDecl(XmlType.INTEGER, XML_RESTARTJOURNAL),
+            new XmlDecl(XmlType.STRING, XML_RESTARTJOURNALPATH)
     };
 
     /**
@@ -515,11 +680,6 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * Authentication Fields
      */
     private static final String XML_AUTHENTIFICATION_ENTRY = "entry";
-    /**
-     * Authentication Fields
-     */
-    private static final String XML_AUTHENTIFICATION_BASED = "/" +
-            XML_AUTHENTIFICATION_ROOT + "/" + XML_AUTHENTIFICATION_ENTRY;
 
     /**
      * Authentication Fields
@@ -534,6 +694,10 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * Authentication Fields
      */
     private static final String XML_AUTHENTICATION_PASSWDFILE = "passwdfile";
+    /**
+     * Authentication Fields
+     */
+    private static final String XML_AUTHENTICATION_PASSWDHASH = "passwdhash";
 
     /**
      * Authentication Fields
@@ -544,32 +708,6 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * Authentication Fields
      */
     private static final String XML_AUTHENTICATION_ADMIN = "admin";
-    /**
-     * Structure of the Configuration file
-     * 
-     */
-    private static final XmlDecl[] configAuthenticationDecls = {
-            // identity
-            new XmlDecl(XmlType.STRING, XML_AUTHENTICATION_USER),
-            new XmlDecl(XmlType.STRING, XML_AUTHENTICATION_PASSWDFILE),
-            new XmlDecl(XmlType.STRING, XML_AUTHENTICATION_PASSWD),
-            new XmlDecl(XML_AUTHENTICATION_ACCOUNT, XmlType.STRING, XML_AUTHENTICATION_ACCOUNT,
-                    true),
-            new XmlDecl(XmlType.BOOLEAN, XML_AUTHENTICATION_ADMIN),
-            // Exec
-            new XmlDecl(XmlType.STRING, XML_RETRIEVE_COMMAND),
-            new XmlDecl(XmlType.LONG, XML_DELAYRETRIEVE_COMMAND),
-            new XmlDecl(XmlType.STRING, XML_STORE_COMMAND),
-            new XmlDecl(XmlType.LONG, XML_DELAYSTORE_COMMAND)
-    };
-    /**
-     * Global Structure for Server Configuration
-     */
-    private static final XmlDecl[] authentElements = {
-            new XmlDecl(XML_AUTHENTIFICATION_ENTRY, XmlType.XVAL, XML_AUTHENTIFICATION_BASED,
-                    configAuthenticationDecls, true)
-    };
-
     /**
      * RANGE of PORT for Passive Mode
      */
@@ -587,6 +725,47 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * File containing the authentications
      */
     private String authenticationFile;
+    /**
+     * Maximum number of verified credentials kept in cache (0 meaning no cache)
+     */
+    public int authentCacheSize = 1000;
+    /**
+     * Cache of verified credentials for hashed passwords (null if none)
+     */
+    private CredentialCache credentialCache = null;
+    /**
+     * Delay in ms between two checks of the authentication file (0 meaning no automatic reload)
+     */
+    public long authentCheckDelay = 10000;
+    /**
+     * Watcher of the authentication file (null if none)
+     */
+    private FileWatcher authentWatcher = null;
+    /**
+     * Use the database for users not found in the authentication file
+     */
+    public boolean authentDb = false;
+    /**
+     * Maximum number of users from database kept in cache
+     */
+    public int authentDbCacheSize = 10000;
+    /**
+     * Time to live in ms of a user from database in cache
+     */
+    public long authentDbTtl = 300000;
+    /**
+     * Time to live in ms of an unknown user in cache
+     */
+    public long authentDbNegativeTtl = 30000;
+    /**
+     * Database authentication store (null if none)
+     */
+    private DbAuthentStore authentStore = null;
+
+    /**
+     * Delay in ms before a released passive port can be proposed again
+     */
+    public long portQuarantine = 1000;
 
     /**
      * Default HTTP server port
@@ -596,6 +775,31 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * Http Admin base
      */
     public String httpBasePath = "src/main/admin/";
+    /**
+     * Delay in ms between two checks of the Http Admin templates (0 meaning templates never
+     * reloaded)
+     */
+    public long httpTemplateCheckDelay = 5000;
+    /**
+     * Watcher of the Http Admin templates (null if none)
+     */
+    private FileWatcher httpTemplateWatcher = null;
+    /**
+     * Maximum number of logged-in administrator sessions
+     */
+    public int httpSessionMax = 64;
+    /**
+     * Time in ms after the last request before an administrator session expires (0 for none)
+     */
+    public long httpSessionIdle = 1800000;
+    /**
+     * Time in ms after logon before an administrator session expires (0 for none)
+     */
+    public long httpSessionTtl = 28800000;
+    /**
+     * Store of the logged-in administrator sessions
+     */
+    public HttpSessionStore httpSessionStore = null;
     /**
      * Delay in ms between two checks
      */
@@ -629,7 +833,63 @@ public class FileBasedConfiguration extends FtpConfiguration {
     /**
      * Limit on CPU and Connection
      */
-    public FtpConstraintLimitHandler constraintLimitHandler = null;
+    public volatile FtpConstraintLimitHandler constraintLimitHandler = null;
+    /**
+     * Journal file of the limits changed at runtime (null if none)
+     */
+    public String limitJournal = null;
+    /**
+     * Current limits (as changeable at runtime)
+     */
+    private volatile LimitValues currentLimits = null;
+    /**
+     * Maximum number of failed authentications from one address in the window (0 for no limit)
+     */
+    public int preAuthMaxFail = 20;
+    /**
+     * Window in ms of the failed authentications count
+     */
+    public long preAuthWindow = 60000;
+    /**
+     * Limiter of failed authentications per address (null if none)
+     */
+    public PreAuthLimiter preAuthLimiter = null;
+    /**
+     * Maximum number of transfer logs purged per second by background purge jobs (0 for no limit)
+     */
+    public int purgeRate = 1000;
+    /**
+     * Should RETR use zero-copy (sendfile) when the data connection allows it
+     */
+    public boolean zeroCopyRetrieve = true;
+    /**
+     * Size of the pooled direct buffer coalescing STOR writes (0 for the standard block writes)
+     */
+    public int storeBufferSize = 262144;
+    /**
+     * Durability policy of STOR with a store buffer
+     */
+    public StoreSync storeSync = StoreSync.NONE;
+    /**
+     * Size in MB between two syncs for the periodic policy
+     */
+    public int storeSyncSize = 64;
+    /**
+     * Pre-allocation of uploads announced by ALLO (with a store buffer)
+     */
+    public Preallocation preallocation = Preallocation.NONE;
+    /**
+     * Digest computed while uploads are written
+     */
+    public Algorithm storeDigest = Algorithm.NONE;
+    /**
+     * Block size in bytes of the restart journal of uploads (0 for no journal)
+     */
+    public int restartJournalBlock = 0;
+    /**
+     * Directory of the restart journals (null for a directory next to the FTP home)
+     */
+    public String restartJournalPath = null;
 
     /**
      * List of all Http Channels to enable the close call on them using Netty ChannelGroup
@@ -656,6 +916,14 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * Monitoring: snmp configuration file (empty means no snmp support)
      */
     public String snmpConfig = null;
+    /**
+     * Monitoring: window in ms within which similar traps are coalesced (0 meaning none)
+     */
+    public long snmpTrapWindow = 10000;
+    /**
+     * Monitoring: maximum number of traps per second (0 meaning no limit)
+     */
+    public int snmpTrapRateLimit = 0;
     /**
      * SNMP Agent (if any)
      */
@@ -702,19 +970,64 @@ public class FileBasedConfiguration extends FtpConfiguration {
 
     private boolean loadAuthentication() {
         // if no database, must load authentication from file
-        XmlValue value = hashConfig.get(XML_AUTHENTIFICATION_FILE);
+        XmlValue value = hashConfig.get(XML_AUTHENTIFICATION_CACHESIZE);
+        if (value != null && (!value.isEmpty())) {
+            authentCacheSize = value.getInteger();
+        }
+        if (authentCacheSize > 0) {
+            credentialCache = new CredentialCache(authentCacheSize);
+        }
+        value = hashConfig.get(XML_AUTHENTIFICATION_CHECKDELAY);
+        if (value != null && (!value.isEmpty())) {
+            authentCheckDelay = value.getLong();
+        }
+        value = hashConfig.get(XML_AUTHENTIFICATION_DB);
+        if (value != null && (!value.isEmpty())) {
+            authentDb = value.getBoolean();
+        }
+        if (authentDb) {
+            if (!loadAuthentStore()) {
+                return false;
+            }
+        }
+        value = hashConfig.get(XML_AUTHENTIFICATION_FILE);
         if (value != null && (!value.isEmpty())) {
             setAuthenticationFile(value.getString());
             if (!initializeAuthent(getAuthenticationFile(), false)) {
                 return false;
             }
-        } else {
+        } else if (authentStore == null) {
             logger.warn("Unable to find Authentication file in Config file");
             return false;
         }
         return true;
     }
 
+    private boolean loadAuthentStore() {
+        XmlValue value = hashConfig.get(XML_AUTHENTIFICATION_DBCACHESIZE);
+        if (value != null && (!value.isEmpty())) {
+            authentDbCacheSize = value.getInteger();
+        }
+        value = hashConfig.get(XML_AUTHENTIFICATION_DBTTL);
+        if (value != null && (!value.isEmpty())) {
+            authentDbTtl = value.getLong();
+        }
+        value = hashConfig.get(XML_AUTHENTIFICATION_DBNEGATIVETTL);
+        if (value != null && (!value.isEmpty())) {
+            authentDbNegativeTtl = value.getLong();
+        }
+        if (!DbConstant.gatewayAdmin.isActive()) {
+            logger.error("Authentication from database needs a database");
+            return false;
+        }
+        authentStore = new DbAuthentStore(DbConstant.gatewayAdmin, new SimpleAuthFactory() {
+            public SimpleAuth getSimpleAuth(DbFtpAuthent definition, SimpleAuth previous) {
+                return getSimpleAuthFromDb(definition, previous);
+            }
+        }, authentDbCacheSize, authentDbTtl, authentDbNegativeTtl);
+        return true;
+    }
+
     private boolean loadServerParam() {
         XmlValue value = hashConfig.get(XML_USEHTTPCOMP);
         if (value != null && (!value.isEmpty())) {
@@ -786,6 +1099,18 @@ public class FileBasedConfiguration extends FtpConfiguration {
             return false;
         }
         setSERVERKEY(decodedByteKeys);
+        value = hashConfig.get(XML_HTTPSESSION_MAX);
+        if (value != null && (!value.isEmpty())) {
+            httpSessionMax = value.getInteger();
+        }
+        value = hashConfig.get(XML_HTTPSESSION_IDLE);
+        if (value != null && (!value.isEmpty())) {
+            httpSessionIdle = value.getLong();
+        }
+        value = hashConfig.get(XML_HTTPSESSION_TTL);
+        if (value != null && (!value.isEmpty())) {
+            httpSessionTtl = value.getLong();
+        }
         value = hashConfig.get(XML_HTTPADMINPATH);
         if (value == null || (value.isEmpty())) {
             logger.error("Unable to find Http Admin Base in Config file");
@@ -871,6 +1196,20 @@ public class FileBasedConfiguration extends FtpConfiguration {
         } else {
             logger.warn("NO SNMP configuration file");
         }
+        value = hashConfig.get(XML_MONITOR_SNMP_TRAPWINDOW);
+        if (value != null && (!value.isEmpty())) {
+            snmpTrapWindow = value.getLong();
+            if (snmpTrapWindow < 0) {
+                snmpTrapWindow = 0;
+            }
+        }
+        value = hashConfig.get(XML_MONITOR_SNMP_TRAPRATE);
+        if (value != null && (!value.isEmpty())) {
+            snmpTrapRateLimit = value.getInteger();
+            if (snmpTrapRateLimit < 0) {
+                snmpTrapRateLimit = 0;
+            }
+        }
         return true;
     }
 
@@ -897,95 +1236,42 @@ public class FileBasedConfiguration extends FtpConfiguration {
     }
 
     private boolean loadLimit(boolean updateLimit) {
-        XmlValue value = hashConfig.get(XML_LIMITGLOBAL);
-        if (value != null && (!value.isEmpty())) {
-            serverGlobalReadLimit = value.getLong();
-            if (serverGlobalReadLimit <= 0) {
-                serverGlobalReadLimit = 0;
-            }
-            serverGlobalWriteLimit = serverGlobalReadLimit;
-            logger.info("Global Limit: {}",
-                    serverGlobalReadLimit);
-        }
-        value = hashConfig.get(XML_LIMITSESSION);
-        if (value != null && (!value.isEmpty())) {
-            serverChannelReadLimit = value.getLong();
-            if (serverChannelReadLimit <= 0) {
-                serverChannelReadLimit = 0;
-            }
-            serverChannelWriteLimit = serverChannelReadLimit;
-            logger.info("SessionInterface Limit: {}",
-                    serverChannelReadLimit);
-        }
-        delayLimit = AbstractTrafficShapingHandler.DEFAULT_CHECK_INTERVAL;
-        value = hashConfig.get(XML_LIMITDELAY);
-        if (value != null && (!value.isEmpty())) {
-            delayLimit = (value.getLong() / 10) * 10;
-            if (delayLimit <= 0) {
-                delayLimit = 0;
-            }
-            logger.info("Delay Limit: {}",
-                    delayLimit);
-        }
-        boolean useCpuLimit = false;
-        boolean useCpuLimitJDK = false;
-        double cpulimit = 1.0;
-        value = hashConfig.get(XML_CSTRT_USECPULIMIT);
-        if (value != null && (!value.isEmpty())) {
-            useCpuLimit = value.getBoolean();
-            value = hashConfig.get(XML_CSTRT_USECPUJDKLIMIT);
+        LimitValues limits = new LimitValues(this);
+        for (String key : LIMIT_KEYS) {
+            XmlValue value = hashConfig.get(key);
             if (value != null && (!value.isEmpty())) {
-                useCpuLimitJDK = value.getBoolean();
-            }
-            value = hashConfig.get(XML_CSTRT_CPULIMIT);
-            if (value != null && (!value.isEmpty())) {
-                cpulimit = value.getDouble();
+                limits.set(key, getLimitValue(value));
             }
         }
-        int connlimit = 0;
-        value = hashConfig.get(XML_CSTRT_CONNLIMIT);
-        if (value != null && (!value.isEmpty())) {
-            connlimit = value.getInteger();
-        }
-        double lowcpuLimit = 0;
-        double highcpuLimit = 0;
-        double percentageDecrease = 0;
-        long delay = 1000000;
-        long limitLowBandwidth = 4096;
-        value = hashConfig.get(XML_CSTRT_LOWCPULIMIT);
-        if (value != null && (!value.isEmpty())) {
-            lowcpuLimit = value.getDouble();
+        if (!limits.isUseCpuLimit) {
+            limits.cpuLimit = 1.0;
         }
-        value = hashConfig.get(XML_CSTRT_HIGHCPULIMIT);
+        XmlValue value = hashConfig.get(XML_LIMITJOURNAL);
         if (value != null && (!value.isEmpty())) {
-            highcpuLimit = value.getDouble();
+            limitJournal = value.getString();
+            replayLimitJournal(limits);
         }
-        value = hashConfig.get(XML_CSTRT_PERCENTDECREASE);
+        applyLimitValues(limits, false);
+        logger.info("Limits: {}", limits);
+        value = hashConfig.get(XML_TIMEOUTCON);
         if (value != null && (!value.isEmpty())) {
-            percentageDecrease = value.getDouble();
+            setTIMEOUTCON((value.getLong() / 10) * 10);
         }
-        value = hashConfig.get(XML_CSTRT_DELAYTHROTTLE);
+        constraintLimitHandler = createConstraintLimitHandler(limits);
+        value = hashConfig.get(XML_PREAUTH_MAXFAIL);
         if (value != null && (!value.isEmpty())) {
-            delay = (value.getLong() / 10) * 10;
+            preAuthMaxFail = value.getInteger();
         }
-        value = hashConfig.get(XML_CSTRT_LIMITLOWBANDWIDTH);
+        value = hashConfig.get(XML_PREAUTH_WINDOW);
         if (value != null && (!value.isEmpty())) {
-            limitLowBandwidth = value.getLong();
+            preAuthWindow = value.getLong();
         }
-        value = hashConfig.get(XML_TIMEOUTCON);
-        if (value != null && (!value.isEmpty())) {
-            setTIMEOUTCON((value.getLong() / 10) * 10);
+        if (preAuthMaxFail > 0 && preAuthWindow > 0) {
+            preAuthLimiter = new PreAuthLimiter(preAuthMaxFail, preAuthWindow);
         }
-        if (highcpuLimit > 0) {
-            constraintLimitHandler =
-                    new FtpConstraintLimitHandler(getTIMEOUTCON(), useCpuLimit, useCpuLimitJDK,
-                            cpulimit, connlimit,
-                            lowcpuLimit, highcpuLimit, percentageDecrease, null, delay,
-                            limitLowBandwidth);
-        } else {
-            constraintLimitHandler =
-                    new FtpConstraintLimitHandler(getTIMEOUTCON(), useCpuLimit, useCpuLimitJDK,
-                            cpulimit, connlimit);
+        value = hashConfig.get(XML_PURGERATE);
+        if (value != null && (!value.isEmpty())) {
+            purgeRate = value.getInteger();
         }
         value = hashConfig.get(XML_SERVER_THREAD);
         if (value != null && (!value.isEmpty())) {
@@ -998,10 +1284,6 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (getSERVER_THREAD() == 0 || getCLIENT_THREAD() == 0) {
             computeNbThreads();
         }
-        value = hashConfig.get(XML_MEMORY_LIMIT);
-        if (value != null && (!value.isEmpty())) {
-            setMaxGlobalMemory(value.getLong());
-        }
         ((FilesystemBasedFileParameterImpl) getFileParameter()).deleteOnAbort = false;
         value = hashConfig.get(XML_USENIO);
         if (value != null && (!value.isEmpty())) {
@@ -1015,6 +1297,71 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (value != null && (!value.isEmpty())) {
             setBLOCKSIZE(value.getInteger());
         }
+        value = hashConfig.get(XML_ZEROCOPYRETRIEVE);
+        if (value != null && (!value.isEmpty())) {
+            zeroCopyRetrieve = value.getBoolean();
+        }
+        value = hashConfig.get(XML_STOREBUFFER);
+        if (value != null && (!value.isEmpty())) {
+            storeBufferSize = value.getInteger();
+            if (storeBufferSize > 0) {
+                // aligned writes
+                storeBufferSize = ((storeBufferSize + 4095) / 4096) * 4096;
+            }
+        }
+        value = hashConfig.get(XML_STORESYNC);
+        if (value != null && (!value.isEmpty())) {
+            try {
+                storeSync = StoreSync.valueOf(value.getString().trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown " + XML_STORESYNC + ": " + value.getString() +
+                        ", no sync used");
+                storeSync = StoreSync.NONE;
+            }
+        }
+        value = hashConfig.get(XML_STORESYNCSIZE);
+        if (value != null && (!value.isEmpty())) {
+            storeSyncSize = value.getInteger();
+            if (storeSyncSize <= 0) {
+                storeSyncSize = 1;
+            }
+        }
+        value = hashConfig.get(XML_PREALLOCATION);
+        if (value != null && (!value.isEmpty())) {
+            try {
+                preallocation = Preallocation.valueOf(value.getString().trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown " + XML_PREALLOCATION + ": " + value.getString() +
+                        ", no pre-allocation used");
+                preallocation = Preallocation.NONE;
+            }
+        }
+        value = hashConfig.get(XML_STOREDIGEST);
+        if (value != null && (!value.isEmpty())) {
+            try {
+                storeDigest = Algorithm.valueOf(value.getString().trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown " + XML_STOREDIGEST + ": " + value.getString() +
+                        ", no digest computed");
+                storeDigest = Algorithm.NONE;
+            }
+        }
+        value = hashConfig.get(XML_RESTARTJOURNAL);
+        if (value != null && (!value.isEmpty())) {
+            restartJournalBlock = value.getInteger();
+            if (restartJournalBlock < 0) {
+                restartJournalBlock = 0;
+            } else if (restartJournalBlock > RestartJournal.MAX_BLOCK_SIZE / 1024) {
+                logger.warn(XML_RESTARTJOURNAL + " too big: " + restartJournalBlock +
+                        " KB, set to " + RestartJournal.MAX_BLOCK_SIZE / 1024 + " KB");
+                restartJournalBlock = RestartJournal.MAX_BLOCK_SIZE / 1024;
+            }
+            restartJournalBlock *= 1024;
+        }
+        value = hashConfig.get(XML_RESTARTJOURNALPATH);
+        if (value != null && (!value.isEmpty())) {
+            restartJournalPath = value.getString();
+        }
         value = hashConfig.get(XML_DELETEONABORT);
         if (value != null && (!value.isEmpty())) {
             setDeleteOnAbort(value.getBoolean());
@@ -1049,8 +1396,13 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (value != null && (!value.isEmpty())) {
             max = value.getInteger();
         }
-        logger.warn("Passive Port range Min: " + min + " Max: " + max);
-        CircularIntValue rangePort = new CircularIntValue(min, max);
+        value = hashConfig.get(XML_RANGE_PORT_QUARANTINE);
+        if (value != null && (!value.isEmpty())) {
+            portQuarantine = value.getLong();
+        }
+        logger.warn("Passive Port range Min: " + min + " Max: " + max + " Quarantine: " +
+                portQuarantine);
+        PassivePortAllocator rangePort = new PassivePortAllocator(min, max, portQuarantine);
         setRangePort(rangePort);
         value = hashConfig.get(XML_SERVER_HTTPS_PORT);
         int httpsport = 8067;
@@ -1300,45 +1652,99 @@ public class FileBasedConfiguration extends FtpConfiguration {
         }
         configuration = XmlUtil.read(document, configServer);
         hashConfig = new XmlHash(configuration);
-        // Now read the configuration
-        if (!loadIdentity()) {
-            logger.error("Cannot load Identity");
-            return false;
-        }
-        if (!loadDatabase()) {
-            logger.error("Cannot load Database configuration");
-            return false;
-        }
-        if (!loadServerParam()) {
-            logger.error("Cannot load Server Parameters");
-            return false;
-        }
-        if (!loadDirectory()) {
-            logger.error("Cannot load Directory configuration");
-            return false;
-        }
-        if (!loadLimit(false)) {
-            logger.error("Cannot load Limit configuration");
-            return false;
-        }
-        if (!loadNetworkServer()) {
-            logger.error("Cannot load Network configuration");
-            return false;
-        }
-        if (!loadExec()) {
-            logger.error("Cannot load Exec configuration");
-            return false;
-        }
-        // if (!DbConstant.admin.isActive) {
-        // if no database, must load authentication from file
-        if (!loadAuthentication()) {
-            logger.error("Cannot load Authentication configuration");
-            return false;
-        }
-        if (!loadSsl()) {
-            // ignore and continue => No SSL
-            getFtpInternalConfiguration().setUsingNativeSsl(false);
-            getFtpInternalConfiguration().setAcceptAuthProt(false);
+        // Now read the configuration, independent parts in parallel
+        StartupStages stages = new StartupStages("FtpConfiguration");
+        stages.add("identity", new Stage() {
+            public boolean run() {
+                if (!loadIdentity()) {
+                    logger.error("Cannot load Identity");
+                    return false;
+                }
+                return true;
+            }
+        });
+        stages.add("database", new Stage() {
+            public boolean run() {
+                if (!loadDatabase()) {
+                    logger.error("Cannot load Database configuration");
+                    return false;
+                }
+                return true;
+            }
+        });
+        stages.add("serverparam", new Stage() {
+            public boolean run() {
+                if (!loadServerParam()) {
+                    logger.error("Cannot load Server Parameters");
+                    return false;
+                }
+                return true;
+            }
+        }, "identity");
+        stages.add("directory", new Stage() {
+            public boolean run() {
+                if (!loadDirectory()) {
+                    logger.error("Cannot load Directory configuration");
+                    return false;
+                }
+                return true;
+            }
+        });
+        stages.add("limit", new Stage() {
+            public boolean run() {
+                if (!loadLimit(false)) {
+                    logger.error("Cannot load Limit configuration");
+                    return false;
+                }
+                return true;
+            }
+        });
+        stages.add("network", new Stage() {
+            public boolean run() {
+                if (!loadNetworkServer()) {
+                    logger.error("Cannot load Network configuration");
+                    return false;
+                }
+                return true;
+            }
+        });
+        stages.add("exec", new Stage() {
+            public boolean run() {
+                if (!loadExec()) {
+                    logger.error("Cannot load Exec configuration");
+                    return false;
+                }
+                return true;
+            }
+        });
+        Stage authentication = new Stage() {
+            public boolean run() {
+                if (!loadAuthentication()) {
+                    logger.error("Cannot load Authentication configuration");
+                    return false;
+                }
+                return true;
+            }
+        };
+        // the database is only needed for authentication if used as authentication store
+        XmlValue value = hashConfig.get(XML_AUTHENTIFICATION_DB);
+        if (value != null && (!value.isEmpty()) && value.getBoolean()) {
+            stages.add("authentication", authentication, "identity", "exec", "database");
+        } else {
+            stages.add("authentication", authentication, "identity", "exec");
+        }
+        stages.add("ssl", new Stage() {
+            public boolean run() {
+                if (!loadSsl()) {
+                    // ignore and continue => No SSL
+                    logger.warn("Cannot load SSL configuration, SSL is disabled");
+                    getFtpInternalConfiguration().setUsingNativeSsl(false);
+                    getFtpInternalConfiguration().setAcceptAuthProt(false);
+                }
+                return true;
+            }
+        });
+        if (!stages.await()) {
             return false;
         }
         // }
@@ -1352,6 +1758,13 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * Configure HTTPS
      */
     public void configureHttps() {
+        // Logged-in administrator sessions, swept in background
+        httpSessionStore = new HttpSessionStore(httpSessionMax, httpSessionIdle, httpSessionTtl);
+        long sweep = 60000;
+        if (httpSessionIdle > 0 && httpSessionIdle / 2 < sweep) {
+            sweep = Math.max(1000, httpSessionIdle / 2);
+        }
+        httpSessionStore.start(sweep);
         // Now start the HTTPS support
         // Configure the server.
         httpsBootstrap = new ServerBootstrap();
@@ -1371,6 +1784,371 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (future.awaitUninterruptibly().isSuccess()) {
             httpChannelGroup.add(future.channel());
         }
+        // Compiled templates are kept in memory until the files change
+        if (httpTemplateCheckDelay > 0 && httpBasePath != null) {
+            httpTemplateWatcher = new FileWatcher("HttpTemplateWatcher", new File(httpBasePath),
+                    httpTemplateCheckDelay, new FileChangeListener() {
+                        public boolean fileChanged(File file) {
+                            logger.info("Http Admin templates changed: " + file.getPath());
+                            HttpTemplate.clear();
+                            return true;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Configure the automatic reload of the authentication file when it changes
+     */
+    public void configureAuthentWatcher() {
+        if (authentCheckDelay <= 0) {
+            return;
+        }
+        if (authentStore != null) {
+            authentStore.startVersionCheck(authentCheckDelay);
+        }
+        if (getAuthenticationFile() == null) {
+            return;
+        }
+        authentWatcher = new FileWatcher("AuthentWatcher", new File(getAuthenticationFile()),
+                authentCheckDelay, new FileChangeListener() {
+                    public boolean fileChanged(File file) {
+                        logger.warn("Authentication file changed, reload it: " + file.getPath());
+                        return initializeAuthent(file.getPath(), true);
+                    }
+                });
+    }
+
+    /**
+     * Limits that can be changed at runtime (same keys as in the configuration file)
+     */
+    private static final String[] LIMIT_KEYS = {
+            XML_LIMITSESSION, XML_LIMITGLOBAL, XML_LIMITDELAY, XML_MEMORY_LIMIT,
+            XML_CSTRT_USECPULIMIT, XML_CSTRT_USECPUJDKLIMIT, XML_CSTRT_CPULIMIT,
+            XML_CSTRT_CONNLIMIT, XML_CSTRT_LOWCPULIMIT, XML_CSTRT_HIGHCPULIMIT,
+            XML_CSTRT_PERCENTDECREASE, XML_CSTRT_DELAYTHROTTLE, XML_CSTRT_LIMITLOWBANDWIDTH
+    };
+    /**
+     * Size from which the limit journal is compacted to its last entry
+     */
+    private static final long LIMITJOURNAL_COMPACT_SIZE = 65536;
+
+    /**
+     * Snapshot of all limits
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static class LimitValues {
+        private long sessionLimit;
+        private long globalLimit;
+        private long delayLimit;
+        private long memoryLimit;
+        private boolean isUseCpuLimit = false;
+        private boolean isUseCpuLimitJdk = false;
+        private double cpuLimit = 1.0;
+        private int connLimit = 0;
+        private double lowCpuLimit = 0;
+        private double highCpuLimit = 0;
+        private double percentDecrease = 0;
+        private long delayThrottle = 1000000;
+        private long limitLowBandwidth = 4096;
+
+        /**
+         * Initialize from the current limits of the configuration
+         * 
+         * @param config
+         */
+        private LimitValues(FileBasedConfiguration config) {
+            LimitValues current = config.currentLimits;
+            if (current != null) {
+                sessionLimit = current.sessionLimit;
+                globalLimit = current.globalLimit;
+                delayLimit = current.delayLimit;
+                memoryLimit = current.memoryLimit;
+                isUseCpuLimit = current.isUseCpuLimit;
+                isUseCpuLimitJdk = current.isUseCpuLimitJdk;
+                cpuLimit = current.cpuLimit;
+                connLimit = current.connLimit;
+                lowCpuLimit = current.lowCpuLimit;
+                highCpuLimit = current.highCpuLimit;
+                percentDecrease = current.percentDecrease;
+                delayThrottle = current.delayThrottle;
+                limitLowBandwidth = current.limitLowBandwidth;
+            } else {
+                sessionLimit = config.serverChannelReadLimit;
+                globalLimit = config.serverGlobalReadLimit;
+                delayLimit = AbstractTrafficShapingHandler.DEFAULT_CHECK_INTERVAL;
+                memoryLimit = config.getMaxGlobalMemory();
+            }
+        }
+
+        /**
+         * 
+         * @param key
+         * @param value
+         * @throws NumberFormatException
+         *             if the value is not valid
+         * @throws IllegalArgumentException
+         *             if the key is unknown
+         */
+        private void set(String key, String value) {
+            value = value.trim();
+            if (XML_LIMITSESSION.equals(key)) {
+                sessionLimit = Math.max(0, Long.parseLong(value));
+            } else if (XML_LIMITGLOBAL.equals(key)) {
+                globalLimit = Math.max(0, Long.parseLong(value));
+            } else if (XML_LIMITDELAY.equals(key)) {
+                delayLimit = Math.max(0, (Long.parseLong(value) / 10) * 10);
+            } else if (XML_MEMORY_LIMIT.equals(key)) {
+                memoryLimit = Long.parseLong(value);
+            } else if (XML_CSTRT_USECPULIMIT.equals(key)) {
+                isUseCpuLimit = Boolean.parseBoolean(value);
+            } else if (XML_CSTRT_USECPUJDKLIMIT.equals(key)) {
+                isUseCpuLimitJdk = Boolean.parseBoolean(value);
+            } else if (XML_CSTRT_CPULIMIT.equals(key)) {
+                cpuLimit = Double.parseDouble(value);
+            } else if (XML_CSTRT_CONNLIMIT.equals(key)) {
+                connLimit = Integer.parseInt(value);
+            } else if (XML_CSTRT_LOWCPULIMIT.equals(key)) {
+                lowCpuLimit = Double.parseDouble(value);
+            } else if (XML_CSTRT_HIGHCPULIMIT.equals(key)) {
+                highCpuLimit = Double.parseDouble(value);
+            } else if (XML_CSTRT_PERCENTDECREASE.equals(key)) {
+                percentDecrease = Double.parseDouble(value);
+            } else if (XML_CSTRT_DELAYTHROTTLE.equals(key)) {
+                delayThrottle = (Long.parseLong(value) / 10) * 10;
+            } else if (XML_CSTRT_LIMITLOWBANDWIDTH.equals(key)) {
+                limitLowBandwidth = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException("Unknown limit: " + key);
+            }
+        }
+
+        /**
+         * Set the values from a "key=value;key=value" definition
+         * 
+         * @param definition
+         * @throws NumberFormatException
+         *             if a value is not valid
+         * @throws IllegalArgumentException
+         *             if a key is unknown or the definition is malformed
+         */
+        private void setAll(String definition) {
+            for (String item : definition.split(";")) {
+                item = item.trim();
+                if (item.isEmpty()) {
+                    continue;
+                }
+                int pos = item.indexOf('=');
+                if (pos <= 0) {
+                    throw new IllegalArgumentException("Malformed limit: " + item);
+                }
+                set(item.substring(0, pos).trim(), item.substring(pos + 1));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return XML_LIMITSESSION + "=" + sessionLimit + ";" +
+                    XML_LIMITGLOBAL + "=" + globalLimit + ";" +
+                    XML_LIMITDELAY + "=" + delayLimit + ";" +
+                    XML_MEMORY_LIMIT + "=" + memoryLimit + ";" +
+                    XML_CSTRT_USECPULIMIT + "=" + isUseCpuLimit + ";" +
+                    XML_CSTRT_USECPUJDKLIMIT + "=" + isUseCpuLimitJdk + ";" +
+                    XML_CSTRT_CPULIMIT + "=" + cpuLimit + ";" +
+                    XML_CSTRT_CONNLIMIT + "=" + connLimit + ";" +
+                    XML_CSTRT_LOWCPULIMIT + "=" + lowCpuLimit + ";" +
+                    XML_CSTRT_HIGHCPULIMIT + "=" + highCpuLimit + ";" +
+                    XML_CSTRT_PERCENTDECREASE + "=" + percentDecrease + ";" +
+                    XML_CSTRT_DELAYTHROTTLE + "=" + delayThrottle + ";" +
+                    XML_CSTRT_LIMITLOWBANDWIDTH + "=" + limitLowBandwidth;
+        }
+    }
+
+    /**
+     * 
+     * @param value
+     * @return the value of a limit from the configuration file as a String
+     */
+    private static String getLimitValue(XmlValue value) {
+        switch (value.getType()) {
+            case BOOLEAN:
+                return Boolean.toString(value.getBoolean());
+            case INTEGER:
+                return Integer.toString(value.getInteger());
+            case LONG:
+                return Long.toString(value.getLong());
+            case DOUBLE:
+                return Double.toString(value.getDouble());
+            default:
+                return value.getString();
+        }
+    }
+
+    /**
+     * 
+     * @param limits
+     * @return a new ConstraintLimitHandler according to the limits
+     */
+    private FtpConstraintLimitHandler createConstraintLimitHandler(LimitValues limits) {
+        if (limits.highCpuLimit > 0) {
+            return new FtpConstraintLimitHandler(getTIMEOUTCON(), limits.isUseCpuLimit,
+                    limits.isUseCpuLimitJdk, limits.cpuLimit, limits.connLimit,
+                    limits.lowCpuLimit, limits.highCpuLimit, limits.percentDecrease, null,
+                    limits.delayThrottle, limits.limitLowBandwidth);
+        }
+        return new FtpConstraintLimitHandler(getTIMEOUTCON(), limits.isUseCpuLimit,
+                limits.isUseCpuLimitJdk, limits.cpuLimit, limits.connLimit);
+    }
+
+    /**
+     * Set the limits into the configuration and, if live, into the traffic shaping and constraint
+     * handlers
+     * 
+     * @param limits
+     * @param live
+     *            True if the server is running
+     */
+    private void applyLimitValues(LimitValues limits, boolean live) {
+        serverGlobalReadLimit = limits.globalLimit;
+        serverGlobalWriteLimit = limits.globalLimit;
+        serverChannelReadLimit = limits.sessionLimit;
+        serverChannelWriteLimit = limits.sessionLimit;
+        delayLimit = limits.delayLimit;
+        setMaxGlobalMemory(limits.memoryLimit);
+        currentLimits = limits;
+        if (!live) {
+            return;
+        }
+        GlobalTrafficShapingHandler global =
+                getFtpInternalConfiguration().getGlobalTrafficShapingHandler();
+        if (global != null) {
+            global.configure(limits.globalLimit, limits.globalLimit, limits.delayLimit);
+        }
+        FtpConstraintLimitHandler newHandler = createConstraintLimitHandler(limits);
+        newHandler.setHandler(global);
+        FtpConstraintLimitHandler oldHandler = constraintLimitHandler;
+        constraintLimitHandler = newHandler;
+        if (oldHandler != null) {
+            oldHandler.release();
+        }
+    }
+
+    /**
+     * 
+     * @return the current limits as "key=value;key=value"
+     */
+    public String getLimits() {
+        LimitValues limits = currentLimits;
+        return limits == null ? "" : limits.toString();
+    }
+
+    /**
+     * Change at runtime some limits, all at once: nothing is changed if one value is not valid.
+     * The change is written into the limit journal (if any) to be replayed at next startup.
+     * 
+     * @param definition
+     *            "key=value;key=value" with the same keys as in the configuration file
+     *            (sessionlimit, globallimit, delaylimit, memorylimit, usecpulimit, usejdkcpulimit,
+     *            cpulimit, connlimit, lowcpulimit, highcpulimit, percentdecrease, delaythrottle,
+     *            limitlowbandwidth)
+     * @return null if OK, else the error message
+     */
+    public synchronized String changeLimits(String definition) {
+        LimitValues limits = new LimitValues(this);
+        try {
+            limits.setAll(definition);
+        } catch (IllegalArgumentException e) {
+            // including NumberFormatException
+            return "Invalid limits: " + e.getMessage();
+        }
+        applyLimitValues(limits, true);
+        logger.warn("Limits changed: " + limits);
+        if (limitJournal != null && !writeLimitJournal(limits)) {
+            return "Limits changed but cannot be written into the journal";
+        }
+        return null;
+    }
+
+    /**
+     * Append the limits into the journal (compacted if too big)
+     * 
+     * @param limits
+     * @return True if written
+     */
+    private boolean writeLimitJournal(LimitValues limits) {
+        File file = new File(limitJournal);
+        boolean compact = file.length() > LIMITJOURNAL_COMPACT_SIZE;
+        File target = compact ? new File(limitJournal + ".tmp") : file;
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(target, !compact);
+            outputStream.write((System.currentTimeMillis() + " " + limits + "\n")
+                    .getBytes(WaarpStringUtils.UTF8));
+            outputStream.flush();
+            outputStream.getFD().sync();
+        } catch (IOException e) {
+            logger.error("Cannot write limit journal: " + target.getPath(), e);
+            return false;
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (compact) {
+            if (!file.delete() || !target.renameTo(file)) {
+                logger.error("Cannot compact limit journal: " + file.getPath());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replay the limit journal (if any) over the limits from the configuration file
+     * 
+     * @param limits
+     */
+    private void replayLimitJournal(LimitValues limits) {
+        File file = new File(limitJournal);
+        if (!file.canRead()) {
+            return;
+        }
+        BufferedReader reader = null;
+        int nb = 0;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    WaarpStringUtils.UTF8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int pos = line.indexOf(' ');
+                if (pos < 0) {
+                    continue;
+                }
+                try {
+                    limits.setAll(line.substring(pos + 1));
+                    nb++;
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Ignore invalid entry in limit journal: " + line);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Cannot read limit journal: " + file.getPath(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (nb > 0) {
+            logger.warn("Limits replayed from journal: " + limits);
+        }
     }
 
     /**
@@ -1402,6 +2180,10 @@ public class FileBasedConfiguration extends FtpConfiguration {
             ftpMib =
                     new FtpPrivateMib(snmpPortShow);
             WaarpMOFactory.setFactory(new FtpVariableFactory());
+            if (snmpTrapWindow > 0 || snmpTrapRateLimit > 0) {
+                ftpMib.setTrapAggregator(new FtpTrapAggregator(ftpMib, snmpTrapWindow,
+                        snmpTrapRateLimit));
+            }
             agentSnmp = new WaarpSnmpAgent(new File(snmpConfig), monitoring, ftpMib);
             try {
                 agentSnmp.start();
@@ -1409,6 +2191,7 @@ public class FileBasedConfiguration extends FtpConfiguration {
             } catch (IOException e) {
                 monitoring.releaseResources();
                 monitoring = null;
+                ftpMib.releaseResources();
                 ftpMib = null;
                 agentSnmp = null;
                 throw new FtpNoConnectionException("AgentSnmp Error while starting", e);
@@ -1438,7 +2221,108 @@ public class FileBasedConfiguration extends FtpConfiguration {
     }
 
     /**
-     * Initialize Authentication from current authenticationFile
+     * One entry of the authentication file while parsing
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static class AuthentEntry {
+        private String user = null;
+        private String passwdFile = null;
+        private String passwd = null;
+        private String passwdHash = null;
+        private final List<String> accounts = new ArrayList<String>();
+        private boolean isAdmin = false;
+        private String retrcmd = null;
+        private long retrdelay = 0;
+        private String storcmd = null;
+        private long stordelay = 0;
+    }
+
+    /**
+     * Set the field of the current entry from one element of the authentication file
+     * 
+     * @param entry
+     * @param name
+     *            the element name
+     * @param text
+     *            the non empty value
+     */
+    private static void setAuthentField(AuthentEntry entry, String name, String text) {
+        if (XML_AUTHENTICATION_USER.equals(name)) {
+            entry.user = text;
+        } else if (XML_AUTHENTICATION_PASSWDFILE.equals(name)) {
+            entry.passwdFile = text;
+        } else if (XML_AUTHENTICATION_PASSWD.equals(name)) {
+            entry.passwd = text;
+        } else if (XML_AUTHENTICATION_PASSWDHASH.equals(name)) {
+            entry.passwdHash = text;
+        } else if (XML_AUTHENTICATION_ACCOUNT.equals(name)) {
+            entry.accounts.add(text);
+        } else if (XML_AUTHENTICATION_ADMIN.equals(name)) {
+            entry.isAdmin = Boolean.parseBoolean(text);
+        } else if (XML_RETRIEVE_COMMAND.equals(name)) {
+            entry.retrcmd = text;
+        } else if (XML_DELAYRETRIEVE_COMMAND.equals(name)) {
+            entry.retrdelay = (Long.parseLong(text) / 10) * 10;
+        } else if (XML_STORE_COMMAND.equals(name)) {
+            entry.storcmd = text;
+        } else if (XML_DELAYSTORE_COMMAND.equals(name)) {
+            entry.stordelay = (Long.parseLong(text) / 10) * 10;
+        }
+    }
+
+    /**
+     * Decrypt the password of the entry (from passwdfile or passwd) if it is not hashed
+     * 
+     * @param entry
+     * @return True if the entry has a valid password
+     */
+    private boolean decryptAuthentPassword(AuthentEntry entry) {
+        if (entry.passwdHash != null) {
+            if (!PasswordHash.isValidFormat(entry.passwdHash)) {
+                logger.error("Invalid Password Hash for user " + entry.user);
+                return false;
+            }
+            entry.passwd = null;
+            return true;
+        }
+        if (entry.passwdFile != null) {
+            // load key from file
+            File key = new File(entry.passwdFile);
+            if (!key.canRead()) {
+                logger.error("Cannot read key for user " + entry.user + ":" + key.getName());
+                return false;
+            }
+            try {
+                byte[] byteKeys = cryptoKey.decryptHexFile(key);
+                entry.passwd = new String(byteKeys, WaarpStringUtils.UTF8);
+            } catch (Exception e2) {
+                logger.error("Cannot read key for user " + entry.user, e2);
+                return false;
+            }
+        } else if (entry.passwd != null) {
+            try {
+                byte[] byteKeys = cryptoKey.decryptHexInBytes(entry.passwd);
+                entry.passwd = new String(byteKeys, WaarpStringUtils.UTF8);
+            } catch (Exception e) {
+                logger.error(
+                        "Unable to Decrypt Key for user " + entry.user, e);
+                return false;
+            }
+        } else {
+            logger.error("Unable to find Password in Config file");
+            // DO NOT Allow empty key
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Initialize Authentication from current authenticationFile.<br>
+     * <br>
+     * The file is parsed in streaming: only the added or changed entries are kept until the end of
+     * the parsing, where they are applied all at once (nothing is changed if the file is invalid).
      * 
      * @param filename
      *            the filename from which authentication will be loaded
@@ -1446,221 +2330,241 @@ public class FileBasedConfiguration extends FtpConfiguration {
      *            if True, the current authentications are totally replaced by the new ones
      * @return True if OK
      */
-    @SuppressWarnings("unchecked")
-    public boolean initializeAuthent(String filename, boolean purge) {
-        Document document = null;
+    public synchronized boolean initializeAuthent(String filename, boolean purge) {
+        if (filename == null) {
+            if (authentStore != null) {
+                // no authentication file: only reload the users from database
+                authentStore.clear();
+                return true;
+            }
+            logger.error("No Authentication file to load");
+            return false;
+        }
+        // Only added or changed users are replaced, unchanged ones are kept as is
+        Set<String> seen = new HashSet<String>();
+        Map<String, SimpleAuth> updated = new HashMap<String, SimpleAuth>();
+        InputStream inputStream = null;
+        XMLStreamReader reader = null;
         try {
-            document = new SAXReader().read(filename);
-        } catch (DocumentException e) {
+            inputStream = new FileInputStream(filename);
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            reader = factory.createXMLStreamReader(inputStream);
+            AuthentEntry entry = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (XML_AUTHENTIFICATION_ENTRY.equals(name)) {
+                        entry = new AuthentEntry();
+                    } else if (entry != null) {
+                        String text = reader.getElementText().trim();
+                        if (!text.isEmpty()) {
+                            setAuthentField(entry, name, text);
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && entry != null &&
+                        XML_AUTHENTIFICATION_ENTRY.equals(reader.getLocalName())) {
+                    AuthentEntry current = entry;
+                    entry = null;
+                    if (current.user == null) {
+                        logger.error("Unable to find a User in Config file");
+                        continue;
+                    }
+                    if (current.accounts.isEmpty()) {
+                        logger.error("Unable to find a Account in Config file: " + current.user);
+                        continue;
+                    }
+                    if (!decryptAuthentPassword(current)) {
+                        continue;
+                    }
+                    seen.add(current.user);
+                    String[] account = current.accounts.toArray(new String[0]);
+                    SimpleAuth previous = authentications.get(current.user);
+                    if (previous != null && previous.isSameDefinition(current.passwd,
+                            current.passwdHash, account, current.isAdmin, current.storcmd,
+                            current.stordelay, current.retrcmd, current.retrdelay)) {
+                        updated.remove(current.user);
+                        previous.invalidateRoots();
+                        continue;
+                    }
+                    // directories are created on first login (FileBasedAuth)
+                    SimpleAuth auth = new SimpleAuth(current.user, current.passwd, account,
+                            current.storcmd, current.stordelay, current.retrcmd,
+                            current.retrdelay);
+                    auth.setAdmin(current.isAdmin);
+                    if (current.passwdHash != null) {
+                        auth.setPasswordHash(current.passwdHash, credentialCache);
+                    }
+                    updated.put(current.user, auth);
+                }
+            }
+        } catch (IOException e) {
             logger.error("Unable to read the XML Authentication file: " +
                     filename, e);
             return false;
-        }
-        if (document == null) {
+        } catch (XMLStreamException e) {
             logger.error("Unable to read the XML Authentication file: " +
-                    filename);
+                    filename, e);
             return false;
-        }
-        XmlValue[] configuration = XmlUtil.read(document, authentElements);
-        XmlHash hashConfig = new XmlHash(configuration);
-
-        XmlValue value = hashConfig.get(XML_AUTHENTIFICATION_ENTRY);
-        List<XmlValue[]> list = (List<XmlValue[]>) value.getList();
-        ConcurrentHashMap<String, SimpleAuth> newAuthents =
-                new ConcurrentHashMap<String, SimpleAuth>();
-        for (XmlValue[] xmlValues : list) {
-            hashConfig = new XmlHash(xmlValues);
-            value = hashConfig.get(XML_AUTHENTICATION_USER);
-            if (value == null || (value.isEmpty())) {
-                logger.error("Unable to find a User in Config file");
-                continue;
-            }
-            String user = value.getString();
-            value = hashConfig.get(XML_AUTHENTICATION_ACCOUNT);
-            if (value == null || (value.isEmpty())) {
-                logger.error("Unable to find a Account in Config file: " + user);
-                continue;
-            }
-            String[] account = null;
-            List<String> listaccount = (List<String>) value.getList();
-            if (!listaccount.isEmpty()) {
-                account = new String[listaccount.size()];
-                int i = 0;
-                Iterator<String> iteratoraccount = listaccount.iterator();
-                while (iteratoraccount.hasNext()) {
-                    account[i] = iteratoraccount.next();
-                    // logger.debug("User: {} Acct: {}", user, account[i]);
-                    File directory = new File(getBaseDirectory() + "/" + user + "/" + account[i]);
-                    directory.mkdirs();
-                    i++;
+        } catch (NumberFormatException e) {
+            logger.error("Unable to read the XML Authentication file: " +
+                    filename, e);
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
                 }
-            } else {
-                logger.error("Unable to find a Account in Config file: " + user);
-                continue;
-            }
-            value = hashConfig.get(XML_AUTHENTICATION_ADMIN);
-            boolean isAdmin = false;
-            if (value != null && (!value.isEmpty())) {
-                isAdmin = value.getBoolean();
-            }
-            String retrcmd = null;
-            long retrdelay = 0;
-            String storcmd = null;
-            long stordelay = 0;
-            value = hashConfig.get(XML_RETRIEVE_COMMAND);
-            if (value != null && (!value.isEmpty())) {
-                retrcmd = value.getString();
-            }
-            value = hashConfig.get(XML_DELAYRETRIEVE_COMMAND);
-            if (value != null && (!value.isEmpty())) {
-                retrdelay = (value.getLong() / 10) * 10;
-            }
-            value = hashConfig.get(XML_STORE_COMMAND);
-            if (value != null && (!value.isEmpty())) {
-                storcmd = value.getString();
             }
-            value = hashConfig.get(XML_DELAYSTORE_COMMAND);
-            if (value != null && (!value.isEmpty())) {
-                stordelay = (value.getLong() / 10) * 10;
-            }
-            String passwd;
-            value = hashConfig.get(XML_AUTHENTICATION_PASSWDFILE);
-            if (value != null && (!value.isEmpty())) {
-                // load key from file
-                File key = new File(value.getString());
-                if (!key.canRead()) {
-                    logger.error("Cannot read key for user " + user + ":" + key.getName());
-                    continue;
-                }
+            if (inputStream != null) {
                 try {
-                    byte[] byteKeys = cryptoKey.decryptHexFile(key);
-                    passwd = new String(byteKeys, WaarpStringUtils.UTF8);
-                } catch (Exception e2) {
-                    logger.error("Cannot read key for user " + user, e2);
-                    continue;
-                }
-            } else {
-                value = hashConfig.get(XML_AUTHENTICATION_PASSWD);
-                if (value != null && (!value.isEmpty())) {
-                    String encrypted = value.getString();
-                    byte[] byteKeys = null;
-                    try {
-                        byteKeys =
-                                cryptoKey.decryptHexInBytes(encrypted);
-                        passwd = new String(byteKeys, WaarpStringUtils.UTF8);
-                    } catch (Exception e) {
-                        logger.error(
-                                "Unable to Decrypt Key for user " + user, e);
-                        continue;
-                    }
-                } else {
-                    logger.error("Unable to find Password in Config file");
-                    // DO NOT Allow empty key
-                    continue;
+                    inputStream.close();
+                } catch (IOException e) {
                 }
             }
-            SimpleAuth auth = new SimpleAuth(user, passwd, account,
-                    storcmd, stordelay, retrcmd, retrdelay);
-            auth.setAdmin(isAdmin);
-            newAuthents.put(user, auth);
-            hashConfig.clear();
         }
-        hashConfig.clear();
-        configuration = null;
+        int added = 0;
+        for (Entry<String, SimpleAuth> entry : updated.entrySet()) {
+            if (authentications.put(entry.getKey(), entry.getValue()) == null) {
+                added++;
+            }
+        }
+        int removed = 0;
         if (purge) {
-            ConcurrentHashMap<String, SimpleAuth> previousOne = authentications;
-            authentications = newAuthents;
-            previousOne.clear();
-        } else {
-            authentications.putAll(newAuthents);
-            newAuthents.clear();
+            Iterator<String> users = authentications.keySet().iterator();
+            while (users.hasNext()) {
+                if (!seen.contains(users.next())) {
+                    users.remove();
+                    removed++;
+                }
+            }
         }
-        document = null;
+        logger.info("Authentications loaded from " + filename + ": " + added + " added, " +
+                (updated.size() - added) + " changed, " + removed + " removed, " +
+                (seen.size() - updated.size()) + " unchanged");
         return true;
     }
 
     /**
-     * Export the Authentication to the original files
+     * Write one element if the value is not null
+     * 
+     * @param writer
+     * @param name
+     * @param value
+     * @throws XMLStreamException
+     */
+    private static void writeAuthentField(XMLStreamWriter writer, String name, String value)
+            throws XMLStreamException {
+        if (value == null) {
+            return;
+        }
+        writer.writeCharacters("\n        ");
+        writer.writeStartElement(name);
+        writer.writeCharacters(value);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Export the Authentication to the original files (written into a temporary file of the same
+     * directory, then renamed over the original one, such that it is never partially written)
      * 
      * @param filename
      *            the filename where the authentication will be exported
      * @return True if successful
      */
     public boolean saveAuthenticationFile(String filename) {
-        Document document = XmlUtil.createEmptyDocument();
-        XmlValue[] roots = new XmlValue[1];
-        XmlValue root = new XmlValue(authentElements[0]);
-        roots[0] = root;
-        Enumeration<SimpleAuth> auths = authentications.elements();
-        while (auths.hasMoreElements()) {
-            SimpleAuth auth = auths.nextElement();
-            XmlValue[] values = new XmlValue[configAuthenticationDecls.length];
-            for (int i = 0; i < configAuthenticationDecls.length; i++) {
-                values[i] = new XmlValue(configAuthenticationDecls[i]);
-            }
-            try {
-                values[0].setFromString(auth.getUser());
-                // PasswdFile: none values[1].setFromString();
-                values[2].setFromString(auth.getPassword());
-            } catch (InvalidArgumentException e1) {
-                logger.error("Error during Write Authentication file", e1);
-                return false;
+        if (filename == null) {
+            logger.error("No Authentication file to save");
+            return false;
+        }
+        File file = new File(filename).getAbsoluteFile();
+        File temp;
+        try {
+            temp = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+        } catch (IOException e) {
+            logger.error("Cannot write to file: " + filename + " since {}", e.getMessage());
+            return false;
+        }
+        FileOutputStream fileOutputStream = null;
+        OutputStream outputStream = null;
+        XMLStreamWriter writer = null;
+        boolean written = false;
+        try {
+            fileOutputStream = new FileOutputStream(temp);
+            outputStream = new BufferedOutputStream(fileOutputStream);
+            writer = XMLOutputFactory.newInstance().createXMLStreamWriter(outputStream,
+                    WaarpStringUtils.UTF8.name());
+            writer.writeStartDocument(WaarpStringUtils.UTF8.name(), "1.0");
+            writer.writeCharacters("\n");
+            writer.writeStartElement(XML_AUTHENTIFICATION_ROOT);
+            Enumeration<SimpleAuth> auths = authentications.elements();
+            while (auths.hasMoreElements()) {
+                SimpleAuth auth = auths.nextElement();
+                writer.writeCharacters("\n    ");
+                writer.writeStartElement(XML_AUTHENTIFICATION_ENTRY);
+                writeAuthentField(writer, XML_AUTHENTICATION_USER, auth.getUser());
+                // PasswdFile: none
+                if (auth.getPasswordHash() != null) {
+                    writeAuthentField(writer, XML_AUTHENTICATION_PASSWDHASH,
+                            auth.getPasswordHash());
+                } else {
+                    writeAuthentField(writer, XML_AUTHENTICATION_PASSWD, auth.getPassword());
+                }
+                // Accounts
+                String[] accts = auth.getAccounts();
+                if (accts != null) {
+                    for (String string : accts) {
+                        writeAuthentField(writer, XML_AUTHENTICATION_ACCOUNT, string);
+                    }
+                }
+                writeAuthentField(writer, XML_AUTHENTICATION_ADMIN,
+                        Boolean.toString(auth.isAdmin()));
+                writeAuthentField(writer, XML_RETRIEVE_COMMAND, auth.getRetrCmd());
+                writeAuthentField(writer, XML_DELAYRETRIEVE_COMMAND,
+                        Long.toString(auth.getRetrDelay()));
+                writeAuthentField(writer, XML_STORE_COMMAND, auth.getStorCmd());
+                writeAuthentField(writer, XML_DELAYSTORE_COMMAND,
+                        Long.toString(auth.getStorDelay()));
+                writer.writeCharacters("\n    ");
+                writer.writeEndElement();
             }
-            // Accounts
-            String[] accts = auth.getAccounts();
-            for (String string : accts) {
+            writer.writeCharacters("\n");
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+            written = true;
+        } catch (IOException e1) {
+            logger.error("Cannot write to file: " + filename + " since {}", e1.getMessage());
+            return false;
+        } catch (XMLStreamException e) {
+            logger.error("Error during Write Authentication file", e);
+            return false;
+        } finally {
+            if (writer != null) {
                 try {
-                    values[3].addFromString(string);
-                } catch (InvalidObjectException e) {
-                    logger.error("Error during Write Authentication file", e);
-                    return false;
-                } catch (InvalidArgumentException e) {
-                    logger.error("Error during Write Authentication file", e);
-                    return false;
+                    writer.close();
+                } catch (XMLStreamException e) {
                 }
             }
-            try {
-                values[4].setValue(auth.isAdmin());
-            } catch (InvalidObjectException e) {
-                logger.error("Error during Write Authentication file", e);
-                return false;
-            }
-            try {
-                values[5].setFromString(auth.getRetrCmd());
-            } catch (InvalidArgumentException e1) {
-                logger.error("Error during Write Authentication file", e1);
-                return false;
-            }
-            try {
-                values[6].setValue(auth.getRetrDelay());
-            } catch (InvalidObjectException e) {
-                logger.error("Error during Write Authentication file", e);
-                return false;
-            }
-            try {
-                values[7].setFromString(auth.getStorCmd());
-            } catch (InvalidArgumentException e1) {
-                logger.error("Error during Write Authentication file", e1);
-                return false;
-            }
-            try {
-                values[8].setValue(auth.getStorDelay());
-            } catch (InvalidObjectException e) {
-                logger.error("Error during Write Authentication file", e);
-                return false;
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                }
             }
-            try {
-                root.addValue(values);
-            } catch (InvalidObjectException e) {
-                logger.error("Error during Write Authentication file", e);
-                return false;
+            if (!written) {
+                temp.delete();
             }
         }
-        XmlUtil.write(document, roots);
-        try {
-            XmlUtil.saveDocument(filename, document);
-        } catch (IOException e1) {
-            logger.error("Cannot write to file: " + filename + " since {}", e1.getMessage());
+        // rename fails on some systems if the original file exists
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            logger.error("Cannot replace Authentication file: " + filename);
+            temp.delete();
             return false;
         }
         return true;
@@ -1671,7 +2575,48 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * @return the SimpleAuth if any for this user
      */
     public SimpleAuth getSimpleAuth(String user) {
-        return authentications.get(user);
+        SimpleAuth auth = authentications.get(user);
+        if (auth == null && authentStore != null) {
+            auth = authentStore.getSimpleAuth(user);
+        }
+        return auth;
+    }
+
+    /**
+     * 
+     * @param definition
+     *            the definition of the user from the database
+     * @param previous
+     *            the previous SimpleAuth for this user if any
+     * @return the previous SimpleAuth if unchanged, a new one if changed, or null if invalid
+     */
+    private SimpleAuth getSimpleAuthFromDb(DbFtpAuthent definition, SimpleAuth previous) {
+        AuthentEntry entry = new AuthentEntry();
+        entry.user = definition.getUser();
+        entry.passwd = definition.getPasswd();
+        entry.passwdHash = definition.getPasswdHash();
+        entry.isAdmin = definition.isAdmin();
+        entry.retrcmd = definition.getRetrCmd();
+        entry.retrdelay = definition.getRetrDelay();
+        entry.storcmd = definition.getStorCmd();
+        entry.stordelay = definition.getStorDelay();
+        if (!decryptAuthentPassword(entry)) {
+            return null;
+        }
+        String[] account = definition.getAccounts();
+        if (previous != null && previous.isSameDefinition(entry.passwd,
+                entry.passwdHash, account, entry.isAdmin, entry.storcmd,
+                entry.stordelay, entry.retrcmd, entry.retrdelay)) {
+            previous.invalidateRoots();
+            return previous;
+        }
+        SimpleAuth auth = new SimpleAuth(entry.user, entry.passwd, account,
+                entry.storcmd, entry.stordelay, entry.retrcmd, entry.retrdelay);
+        auth.setAdmin(entry.isAdmin);
+        if (entry.passwdHash != null) {
+            auth.setPasswordHash(entry.passwdHash, credentialCache);
+        }
+        return auth;
     }
 
     /**
@@ -1680,42 +2625,48 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * @return the Html String containing the table of all Authentication entries
      */
     public String getHtmlAuth(String format) {
-        String result;
         StringBuilder builder = new StringBuilder();
-        /*
-         * XXXUSERXXX XXXPWDXXX XXXACTSXXX XXXADMXXX XXXSTCXXX XXXSTDXXX XXXRTCXXX XXXRTDXXX
-         */
-        Enumeration<SimpleAuth> simpleAuths = authentications.elements();
-        SimpleAuth auth = null;
-        while (simpleAuths.hasMoreElements()) {
-            auth = simpleAuths.nextElement();
-            String newElt = format.replace("XXXUSERXXX", auth.getUser());
-            newElt = newElt.replace("XXXPWDXXX", auth.getPassword());
-            if (auth.getStorCmd() != null)
-                newElt = newElt.replace("XXXSTCXXX", auth.getStorCmd());
-            else
-                newElt = newElt.replace("XXXSTCXXX", "");
-            if (auth.getRetrCmd() != null)
-                newElt = newElt.replace("XXXRTCXXX", auth.getRetrCmd());
-            else
-                newElt = newElt.replace("XXXRTCXXX", "");
-            newElt = newElt.replace("XXXSTDXXX", Long.toString(auth.getStorDelay()));
-            newElt = newElt.replace("XXXRTDXXX", Long.toString(auth.getRetrDelay()));
-            newElt = newElt.replace("XXXADMXXX", Boolean.toString(auth.isAdmin()));
-            if (auth.getAccounts() != null) {
-                StringBuilder accts = new StringBuilder();
-                for (int i = 0; i < auth.getAccounts().length - 1; i++) {
-                    accts.append(auth.getAccounts()[i]).append(", ");
+        HttpTableChunkedInput.renderAll(builder, new HttpTemplate(format), getHtmlAuthSource());
+        return builder.toString();
+    }
+
+    /**
+     * 
+     * @return the source of rows of all Authentication entries (XXXUSERXXX XXXPWDXXX XXXACTSXXX
+     *         XXXADMXXX XXXSTCXXX XXXSTDXXX XXXRTCXXX XXXRTDXXX)
+     */
+    public RowSource getHtmlAuthSource() {
+        final Enumeration<SimpleAuth> simpleAuths = authentications.elements();
+        return new RowSource() {
+            public boolean next(Map<String, String> values) {
+                if (!simpleAuths.hasMoreElements()) {
+                    return false;
                 }
-                accts.append(auth.getAccounts()[auth.getAccounts().length - 1]);
-                newElt = newElt.replace("XXXACTSXXX", accts.toString());
-            } else {
-                newElt = newElt.replace("XXXACTSXXX", "No Account");
+                SimpleAuth auth = simpleAuths.nextElement();
+                values.put("XXXUSERXXX", auth.getUser());
+                values.put("XXXPWDXXX", auth.getPassword() != null ?
+                        auth.getPassword() : "(hashed)");
+                values.put("XXXSTCXXX", auth.getStorCmd() != null ? auth.getStorCmd() : "");
+                values.put("XXXRTCXXX", auth.getRetrCmd() != null ? auth.getRetrCmd() : "");
+                values.put("XXXSTDXXX", Long.toString(auth.getStorDelay()));
+                values.put("XXXRTDXXX", Long.toString(auth.getRetrDelay()));
+                values.put("XXXADMXXX", Boolean.toString(auth.isAdmin()));
+                String[] accounts = auth.getAccounts();
+                if (accounts != null && accounts.length > 0) {
+                    StringBuilder accts = new StringBuilder(accounts[0]);
+                    for (int i = 1; i < accounts.length; i++) {
+                        accts.append(", ").append(accounts[i]);
+                    }
+                    values.put("XXXACTSXXX", accts.toString());
+                } else {
+                    values.put("XXXACTSXXX", "No Account");
+                }
+                return true;
             }
-            builder.append(newElt);
-        }
-        result = builder.toString();
-        return result;
+
+            public void close() {
+            }
+        };
     }
 
     /**
@@ -1728,55 +2679,78 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * @return the Html String containing the table of all Transfer entries
      */
     public String getHtmlTransfer(String format, int limit) {
-        String result;
-        StringBuilder builder = new StringBuilder();
-        /*
-         * XXXIDXXX XXXUSERXXX XXXACCTXXX XXXFILEXXX XXXMODEXXX XXXSTATUSXXX XXXINFOXXX XXXUPINFXXX
-         * XXXSTARTXXX XXXSTOPXXX
-         */
         if (!DbConstant.gatewayAdmin.isActive()) {
             return "";
         }
-        DbPreparedStatement preparedStatement = null;
-        try {
+        StringBuilder builder = new StringBuilder();
+        HttpTableChunkedInput.renderAll(builder, new HttpTemplate(format),
+                getHtmlTransferSource(DbConstant.gatewayAdmin.getSession(), limit));
+        return builder.toString();
+    }
+
+    /**
+     * Only available with Database support for Waarp
+     * 
+     * @param session
+     *            the database session to use
+     * @param limit
+     *            number of TransferLog to populate
+     * @return the source of rows of the Transfer entries (XXXIDXXX XXXUSERXXX XXXACCTXXX
+     *         XXXFILEXXX XXXMODEXXX XXXSTATUSXXX XXXINFOXXX XXXUPINFXXX XXXSTARTXXX XXXSTOPXXX)
+     */
+    public RowSource getHtmlTransferSource(DbSession session, int limit) {
+        DbPreparedStatement statement = null;
+        if (DbConstant.gatewayAdmin.isActive()) {
             try {
-                preparedStatement =
-                        DbTransferLog
-                                .getStatusPrepareStament(DbConstant.gatewayAdmin.getSession(), null, limit);
-                preparedStatement.executeQuery();
+                statement = DbTransferLog.getStatusPrepareStament(session, null, limit);
+                statement.executeQuery();
             } catch (WaarpDatabaseNoConnectionException e) {
-                return "";
+                if (statement != null) {
+                    statement.realClose();
+                }
+                statement = null;
             } catch (WaarpDatabaseSqlException e) {
-                return "";
+                if (statement != null) {
+                    statement.realClose();
+                }
+                statement = null;
             }
-            try {
-                while (preparedStatement.getNext()) {
+        }
+        final DbPreparedStatement preparedStatement = statement;
+        return new RowSource() {
+            public boolean next(Map<String, String> values) {
+                if (preparedStatement == null) {
+                    return false;
+                }
+                try {
+                    if (!preparedStatement.getNext()) {
+                        return false;
+                    }
                     DbTransferLog log = DbTransferLog.getFromStatement(preparedStatement);
-                    String newElt = format
-                            .replaceAll("XXXIDXXX", Long.toString(log.getSpecialId()));
-                    newElt = newElt.replaceAll("XXXUSERXXX", log.getUser());
-                    newElt = newElt.replaceAll("XXXACCTXXX", log.getAccount());
-                    newElt = newElt.replace("XXXFILEXXX", log.getFilename());
-                    newElt = newElt.replace("XXXMODEXXX", log.getMode());
-                    newElt = newElt.replace("XXXSTATUSXXX", log.getErrorInfo().getMesg());
-                    newElt = newElt.replace("XXXINFOXXX", log.getInfotransf());
-                    newElt = newElt.replace("XXXUPINFXXX", log.getUpdatedInfo().name());
-                    newElt = newElt.replace("XXXSTARTXXX", log.getStart().toString());
-                    newElt = newElt.replace("XXXSTOPXXX", log.getStop().toString());
-                    builder.append(newElt);
+                    values.put("XXXIDXXX", Long.toString(log.getSpecialId()));
+                    values.put("XXXUSERXXX", log.getUser());
+                    values.put("XXXACCTXXX", log.getAccount());
+                    values.put("XXXFILEXXX", log.getFilename());
+                    values.put("XXXMODEXXX", log.getMode());
+                    values.put("XXXSTATUSXXX", log.getErrorInfo().getMesg());
+                    values.put("XXXINFOXXX", log.getInfotransf());
+                    values.put("XXXUPINFXXX", log.getUpdatedInfo().name());
+                    values.put("XXXSTARTXXX", log.getStart().toString());
+                    values.put("XXXSTOPXXX", log.getStop().toString());
+                    return true;
+                } catch (WaarpDatabaseNoConnectionException e) {
+                    return false;
+                } catch (WaarpDatabaseSqlException e) {
+                    return false;
                 }
-            } catch (WaarpDatabaseNoConnectionException e) {
-                return "";
-            } catch (WaarpDatabaseSqlException e) {
-                return "";
             }
-            result = builder.toString();
-            return result;
-        } finally {
-            if (preparedStatement != null) {
-                preparedStatement.realClose();
+
+            public void close() {
+                if (preparedStatement != null) {
+                    preparedStatement.realClose();
+                }
             }
-        }
+        };
     }
 
     /**
@@ -1785,18 +2759,61 @@ public class FileBasedConfiguration extends FtpConfiguration {
     @Override
     public int getNextRangePort() {
         try {
-            return ((CircularIntValue) getProperty(RANGE_PORT)).getNext();
+            int port = ((PassivePortAllocator) getProperty(RANGE_PORT)).getNext();
+            lastRangePort.set(port);
+            return port;
         } catch (FtpUnknownFieldException e) {
             return -1;
         }
     }
 
+    /**
+     * 
+     * @return the last port given by getNextRangePort in the current thread (then forgotten), or
+     *         -1 if none
+     */
+    public int takeLastRangePort() {
+        Integer port = lastRangePort.get();
+        lastRangePort.remove();
+        return port != null ? port : -1;
+    }
+
+    /**
+     * Last port given by getNextRangePort in the current thread, such that the port of a PASV or
+     * EPSV command is known when the command fails (commands run in one thread)
+     */
+    private static final ThreadLocal<Integer> lastRangePort = new ThreadLocal<Integer>();
+
+    /**
+     * Release a port previously given by getNextRangePort
+     * 
+     * @param port
+     */
+    public void releaseRangePort(int port) {
+        try {
+            ((PassivePortAllocator) getProperty(RANGE_PORT)).release(port);
+        } catch (FtpUnknownFieldException e) {
+        }
+    }
+
+    /**
+     * 
+     * @return the status of the passive ports (in use, allocations and exhaustions)
+     */
+    public String getRangePortStatus() {
+        try {
+            return ((PassivePortAllocator) getProperty(RANGE_PORT)).getStatus();
+        } catch (FtpUnknownFieldException e) {
+            return "unknown";
+        }
+    }
+
     /**
      * 
      * @param rangePort
      *            the range of available ports for Passive connections
      */
-    private void setRangePort(CircularIntValue rangePort) {
+    private void setRangePort(PassivePortAllocator rangePort) {
         setProperty(RANGE_PORT, rangePort);
     }
 
@@ -1868,6 +2885,22 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (agentSnmp != null) {
             agentSnmp.stop();
         }
+        if (ftpMib != null) {
+            ftpMib.releaseResources();
+        }
+        if (authentWatcher != null) {
+            authentWatcher.release();
+        }
+        if (httpTemplateWatcher != null) {
+            httpTemplateWatcher.release();
+        }
+        if (authentStore != null) {
+            authentStore.release();
+        }
+        TransferLogJob.release();
+        if (httpSessionStore != null) {
+            httpSessionStore.release();
+        }
         DbAdmin.closeAllConnection();
     }
 
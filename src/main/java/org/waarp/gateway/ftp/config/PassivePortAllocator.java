@@ -0,0 +1,146 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.config;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Allocator of ports used by passive connections, replacing the simple circular value: ports still
+ * in use, or released since less than the quarantine delay (as the socket may still be in
+ * TIME_WAIT), are skipped.<br>
+ * <br>
+ * The state of each port is kept in one slot of an AtomicLongArray (0 for free, the allocation
+ * time for in use, minus the end of quarantine for quarantined), such that allocation and release
+ * are lock free. If no port is available, no port is given (PASV and EPSV are refused with 425)
+ * and the exhaustion is counted: a port given twice would be released while still in use.
+ *
+ * @author Frederic Bregier
+ *
+ */
+class PassivePortAllocator {
+    /**
+     * Min value
+     */
+    private final int min;
+
+    /**
+     * Number of ports
+     */
+    private final int size;
+
+    /**
+     * Delay in ms before a released port can be allocated again
+     */
+    private final long quarantine;
+
+    /**
+     * State of each port
+     */
+    private final AtomicLongArray states;
+
+    /**
+     * Start of the next search
+     */
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong exhaustions = new AtomicLong();
+
+    /**
+     * Create an allocator for the range of ports
+     *
+     * @param min
+     * @param max
+     * @param quarantine
+     *            delay in ms before a released port can be allocated again
+     */
+    public PassivePortAllocator(int min, int max, long quarantine) {
+        this.min = min;
+        this.size = max - min + 1;
+        this.quarantine = quarantine;
+        states = new AtomicLongArray(size);
+    }
+
+    /**
+     * Get the next available port, marked as in use
+     *
+     * @return the next port, or -1 if no port is available
+     */
+    public int getNext() {
+        long now = System.currentTimeMillis();
+        int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % size;
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % size;
+            long state = states.get(index);
+            if ((state == 0 || (state < 0 && -state <= now)) &&
+                    states.compareAndSet(index, state, now)) {
+                inUse.incrementAndGet();
+                allocations.incrementAndGet();
+                cursor.set(index + 1);
+                return min + index;
+            }
+        }
+        // all ports are in use or in quarantine
+        exhaustions.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * Release the port, which enters in quarantine
+     *
+     * @param port
+     */
+    public void release(int port) {
+        int index = port - min;
+        if (index < 0 || index >= size) {
+            return;
+        }
+        long state = states.get(index);
+        if (state > 0 && states.compareAndSet(index, state,
+                -(System.currentTimeMillis() + quarantine))) {
+            inUse.decrementAndGet();
+        }
+    }
+
+    /**
+     *
+     * @return the number of ports currently in use
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     *
+     * @return the number of allocations without any available port
+     */
+    public long getExhaustions() {
+        return exhaustions.get();
+    }
+
+    /**
+     *
+     * @return a short status of the allocator
+     */
+    public String getStatus() {
+        return "in use " + inUse.get() + "/" + size + ", allocations " + allocations.get() +
+                ", exhaustions " + exhaustions.get();
+    }
+}
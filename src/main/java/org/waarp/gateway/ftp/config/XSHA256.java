@@ -0,0 +1,51 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.config;
+
+import org.waarp.common.command.ReplyCode;
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply501Exception;
+import org.waarp.common.command.exception.Reply502Exception;
+import org.waarp.ftp.core.command.AbstractCommand;
+import org.waarp.gateway.ftp.file.FileBasedDir;
+import org.waarp.gateway.ftp.file.StreamDigest;
+
+/**
+ * XSHA256 command: returns the SHA-256 digest of the file given as argument, as XMD5 and XSHA1
+ * do, taken from the digest computed during the upload when the file is unchanged since.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class XSHA256 extends AbstractCommand {
+
+    @Override
+    public void exec() throws CommandAbstractException {
+        if (!hasArg()) {
+            invalidCurrentCommand();
+            throw new Reply501Exception("Need a pathname as argument");
+        }
+        if (!(getSession().getDir() instanceof FileBasedDir)) {
+            throw new Reply502Exception("XSHA256 not implemented");
+        }
+        String filename = getArg();
+        byte[] digest = ((FileBasedDir) getSession().getDir()).getSHA256(filename);
+        getSession().setReplyCode(ReplyCode.REPLY_250_REQUESTED_FILE_ACTION_OKAY,
+                StreamDigest.getHex(digest) + " is the digest of " + filename);
+    }
+
+}
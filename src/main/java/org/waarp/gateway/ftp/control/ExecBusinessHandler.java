@@ -18,12 +18,18 @@ package org.waarp.gateway.ftp.control;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.netty.channel.Channel;
 import org.waarp.common.command.ReplyCode;
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.command.exception.Reply421Exception;
 import org.waarp.common.command.exception.Reply451Exception;
+import org.waarp.common.command.exception.Reply452Exception;
 import org.waarp.common.command.exception.Reply502Exception;
 import org.waarp.common.command.exception.Reply504Exception;
 import org.waarp.common.database.DbSession;
@@ -43,9 +49,14 @@ import org.waarp.ftp.core.session.FtpSession;
 import org.waarp.ftp.filesystembased.FilesystemBasedFtpRestart;
 import org.waarp.gateway.ftp.config.AUTHUPDATE;
 import org.waarp.gateway.ftp.config.FileBasedConfiguration;
+import org.waarp.gateway.ftp.config.XRESUME;
+import org.waarp.gateway.ftp.config.XSHA256;
+import org.waarp.gateway.ftp.control.FtpEventRecorder.EventType;
+import org.waarp.gateway.ftp.control.FtpSessionRegistry.SessionInfo;
 import org.waarp.gateway.ftp.database.DbConstant;
 import org.waarp.gateway.ftp.file.FileBasedAuth;
 import org.waarp.gateway.ftp.file.FileBasedDir;
+import org.waarp.gateway.ftp.file.FileBasedFile;
 import org.waarp.gateway.kernel.exec.AbstractExecutor;
 import org.waarp.gateway.kernel.exec.R66PreparedTransferExecutor;
 
@@ -72,6 +83,73 @@ public class ExecBusinessHandler extends BusinessHandler {
      */
     private DbSession dbR66Session = null;
     private boolean internalDb = false;
+    /**
+     * Start of the current command for the event recorder (0 if not recorded)
+     */
+    private long commandStart = 0;
+    /**
+     * Start of the current transfer for the event recorder (0 if not recorded), kept while other
+     * commands run during the transfer
+     */
+    private long transferStart = 0;
+    /**
+     * Remote address of the control connection (for the pre-authentication limiter)
+     */
+    private InetAddress remoteAddress = null;
+    /**
+     * Passive port allocated for this session (-1 if none)
+     */
+    private final AtomicInteger passivePort = new AtomicInteger(-1);
+    /**
+     * Entry of this session in the session registry (null if not connected)
+     */
+    private volatile SessionInfo sessionInfo = null;
+    /**
+     * Size announced by ALLO for the next upload (0 if none)
+     */
+    private final AtomicLong allocation = new AtomicLong(0);
+
+    /**
+     * Record the end of the current command
+     * 
+     * @param replyCode
+     * @param success
+     */
+    private void recordCommand(ReplyCode replyCode, boolean success) {
+        if (commandStart == 0) {
+            return;
+        }
+        AbstractCommand command = getFtpSession().getCurrentCommand();
+        FtpEventRecorder.end(commandStart, EventType.COMMAND,
+                command != null ? command.getCode().name() : "UNKNOWN",
+                replyCode != null ? Integer.toString(replyCode.getCode()) : null, 0, success);
+        commandStart = 0;
+    }
+
+    /**
+     * Record the end of the current transfer
+     * 
+     * @param transfer
+     * @param success
+     */
+    private void recordTransfer(FtpTransfer transfer, boolean success) {
+        if (transferStart == 0) {
+            return;
+        }
+        long bytes = 0;
+        try {
+            FtpFile file = transfer.getFtpFile();
+            if (file instanceof FileBasedFile) {
+                // bytes of this transfer, not the length of a resumed or appended file
+                bytes = ((FileBasedFile) file).getTransferred();
+            }
+        } catch (FtpNoFileException e) {
+        }
+        FtpEventRecorder.end(transferStart, EventType.TRANSFER, transfer.getCommand().name(),
+                transfer.getPath() + " " + getFtpSession().getDataConn().getType() + "/" +
+                        getFtpSession().getDataConn().getMode(), bytes, success);
+        transferStart = 0;
+    }
 
     @Override
     public void afterTransferDoneBeforeAnswer(FtpTransfer transfer)
@@ -86,6 +164,8 @@ public class ExecBusinessHandler extends BusinessHandler {
         }
         long specialId = auth.getSpecialId();
         ReplyCode replyCode = getFtpSession().getReplyCode();
+        recordTransfer(transfer, replyCode == ReplyCode.REPLY_250_REQUESTED_FILE_ACTION_OKAY ||
+                replyCode == ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION);
         logger.debug("Transfer done but action needed: "+(!(replyCode != ReplyCode.REPLY_250_REQUESTED_FILE_ACTION_OKAY && replyCode != ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION)));
         if (replyCode != ReplyCode.REPLY_250_REQUESTED_FILE_ACTION_OKAY && replyCode != ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION) {
             // Do nothing
@@ -109,7 +189,7 @@ public class ExecBusinessHandler extends BusinessHandler {
             case STOU:
                 // execute the store command
                 WaarpFuture futureCompletion = new WaarpFuture(true);
-                String[] args = new String[6];
+                String[] args = new String[7];
                 args[0] = auth.getUser();
                 args[1] = auth.getAccount();
                 args[2] = auth.getBaseDirectory();
@@ -173,21 +253,31 @@ public class ExecBusinessHandler extends BusinessHandler {
                 }
                 args[4] = transfer.getCommand().toString();
                 args[5] = Long.toString(specialId);
+                // digest computed while writing (ALGORITHM:value), empty if none
+                String digest = null;
+                if (file instanceof FileBasedFile) {
+                    digest = ((FileBasedFile) file).getDigest();
+                }
+                args[6] = digest != null ? digest : "";
                 AbstractExecutor executor =
                         AbstractExecutor.createAbstractExecutor(auth, args, true, futureCompletion);
                 if (executor instanceof R66PreparedTransferExecutor) {
                     ((R66PreparedTransferExecutor) executor).setDbsession(dbR66Session);
                 }
+                long execStart = FtpEventRecorder.begin();
                 executor.run();
                 try {
                     futureCompletion.await();
                 } catch (InterruptedException e) {
                 }
+                FtpEventRecorder.end(execStart, EventType.POSTEXEC,
+                        executor.getClass().getSimpleName(), args[3], 0,
+                        futureCompletion.isSuccess());
                 if (futureCompletion.isSuccess()) {
                     // All done
                     WaarpActionLogger.logAction(dbFtpSession, specialId,
                             "Post-Command executed: OK", this, getFtpSession().getReplyCode(),
-                            UpdatedInfo.RUNNING);
+                            UpdatedInfo.RUNNING, digest);
                 } else {
                     // File cannot be sent
                     String message =
@@ -218,6 +308,34 @@ public class ExecBusinessHandler extends BusinessHandler {
 
     @Override
     public void afterRunCommandKo(CommandAbstractException e) {
+        recordCommand(e.code, false);
+        // a failed command does not keep the size announced by ALLO
+        allocation.set(0);
+        if (getFtpSession().getCurrentCommand() != null) {
+            FtpCommandCode code = getFtpSession().getCurrentCommand().getCode();
+            if (code == FtpCommandCode.PASV || code == FtpCommandCode.EPSV) {
+                // the port allocated by the failed command is given back
+                int port = FileBasedConfiguration.fileBasedConfiguration.takeLastRangePort();
+                if (port >= 0 && port != passivePort.get()) {
+                    FileBasedConfiguration.fileBasedConfiguration.releaseRangePort(port);
+                }
+            } else if (FtpCommandCode.isStorOrRetrLikeCommand(code)) {
+                // refused before its transfer started
+                transferStart = 0;
+            }
+        }
+        if (e.code == ReplyCode.REPLY_530_NOT_LOGGED_IN &&
+                !getFtpSession().getAuth().isIdentified()) {
+            PreAuthLimiter limiter = FileBasedConfiguration.fileBasedConfiguration.preAuthLimiter;
+            if (limiter != null) {
+                limiter.recordFailure(remoteAddress);
+            }
+        }
+        if (e.code == ReplyCode.REPLY_421_SERVICE_NOT_AVAILABLE_CLOSING_CONTROL_CONNECTION ||
+                e.code == ReplyCode.REPLY_451_REQUESTED_ACTION_ABORTED) {
+            // possible filesystem error: check again the home directory on next login
+            ((FileBasedAuth) getFtpSession().getAuth()).invalidateBusinessRoot();
+        }
         String message = "ExecHandler: KO: " + getFtpSession() + " " + e.getMessage();
         long specialId =
                 ((FileBasedAuth) getFtpSession().getAuth()).getSpecialId();
@@ -228,6 +346,24 @@ public class ExecBusinessHandler extends BusinessHandler {
 
     @Override
     public void afterRunCommandOk() throws CommandAbstractException {
+        recordCommand(getFtpSession().getReplyCode(), true);
+        FtpCommandCode code = getFtpSession().getCurrentCommand().getCode();
+        if (!isAllocationKept(code)) {
+            // ALLO only applies to the next STOR/STOU
+            allocation.set(0);
+        }
+        if (code == FtpCommandCode.PASV || code == FtpCommandCode.EPSV) {
+            // a new passive port replaces the previous one of this session
+            int port = getFtpSession().getDataConn().getLocalPort();
+            int allocated = FileBasedConfiguration.fileBasedConfiguration.takeLastRangePort();
+            if (allocated >= 0 && allocated != port) {
+                FileBasedConfiguration.fileBasedConfiguration.releaseRangePort(allocated);
+            }
+            int previous = passivePort.getAndSet(port);
+            if (previous >= 0 && previous != port) {
+                FileBasedConfiguration.fileBasedConfiguration.releaseRangePort(previous);
+            }
+        }
         if (!(this.getFtpSession().getCurrentCommand() instanceof QUIT)
                 && this.dbR66Session != null) {
             long specialId =
@@ -241,12 +377,16 @@ public class ExecBusinessHandler extends BusinessHandler {
 
     @Override
     public void beforeRunCommand() throws CommandAbstractException {
+        commandStart = FtpEventRecorder.begin();
         long specialId = DbConstant.ILLEGALVALUE;
         // if Admin, do nothing
         if (getFtpSession() == null || getFtpSession().getAuth() == null) {
             return;
         }
         FileBasedAuth auth = (FileBasedAuth) getFtpSession().getAuth();
+        if (getFtpSession().getCurrentCommand().getCode() == FtpCommandCode.ALLO) {
+            checkAllocation(auth);
+        }
         if (auth.isAdmin()) {
             logger.debug("Admin user so all actions are allowed");
             return;
@@ -294,7 +434,7 @@ public class ExecBusinessHandler extends BusinessHandler {
                         getFtpSession().getCurrentCommand().getArg(),
                         this);
                 auth.setSpecialId(specialId);
-                // nothing to do now
+                transferStart = FtpEventRecorder.begin();
                 break;
             case RETR:
                 auth.setSpecialId(specialId);
@@ -324,11 +464,15 @@ public class ExecBusinessHandler extends BusinessHandler {
                 if (executor instanceof R66PreparedTransferExecutor) {
                     ((R66PreparedTransferExecutor) executor).setDbsession(dbR66Session);
                 }
+                long execStart = FtpEventRecorder.begin();
                 executor.run();
                 try {
                     futureCompletion.await();
                 } catch (InterruptedException e) {
                 }
+                FtpEventRecorder.end(execStart, EventType.PREEXEC,
+                        executor.getClass().getSimpleName(), args[3], 0,
+                        futureCompletion.isSuccess());
                 if (futureCompletion.isSuccess()) {
                     // File should be ready
                     if (!file.canRead()) {
@@ -344,6 +488,7 @@ public class ExecBusinessHandler extends BusinessHandler {
                     WaarpActionLogger.logAction(dbFtpSession, specialId,
                             "Pre-Command executed: OK", this, getFtpSession().getReplyCode(),
                             UpdatedInfo.RUNNING);
+                    transferStart = FtpEventRecorder.begin();
                 } else {
                     // File cannot be retrieved
                     logger.error("PreExecution in Error for Transfer since " +
@@ -361,6 +506,70 @@ public class ExecBusinessHandler extends BusinessHandler {
         }
     }
 
+    /**
+     * Check that the size announced by ALLO fits in the user's file system and keep it for the
+     * next upload
+     * 
+     * @param auth
+     * @throws Reply452Exception
+     *             if the file system cannot hold this size
+     */
+    private void checkAllocation(FileBasedAuth auth) throws Reply452Exception {
+        String arg = getFtpSession().getCurrentCommand().getArg();
+        if (arg == null) {
+            return;
+        }
+        long size;
+        try {
+            // ALLO size [R record-size]
+            size = Long.parseLong(arg.trim().split(" ")[0]);
+        } catch (NumberFormatException e) {
+            // the command itself will answer
+            return;
+        }
+        if (size <= 0) {
+            return;
+        }
+        File base = new File(auth.getBaseDirectory());
+        long usable = base.getUsableSpace();
+        if (usable > 0 && size > usable) {
+            logger.warn("Not enough space for " + size + " bytes: " + usable + " available");
+            throw new Reply452Exception("Insufficient storage space");
+        }
+        allocation.set(size);
+    }
+
+    /**
+     * 
+     * @param code
+     * @return True if the size announced by ALLO is kept after this command (ALLO itself and the
+     *         commands preparing the transfer)
+     */
+    private static boolean isAllocationKept(FtpCommandCode code) {
+        switch (code) {
+            case ALLO:
+            case REST:
+            case TYPE:
+            case MODE:
+            case STRU:
+            case PORT:
+            case EPRT:
+            case PASV:
+            case EPSV:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 
+     * @return the size announced by ALLO for this upload (0 if none), then forgotten
+     */
+    public long getAndResetAllocation() {
+        return allocation.getAndSet(0);
+    }
+
     @Override
     protected void cleanSession() {
     }
@@ -391,6 +600,12 @@ public class ExecBusinessHandler extends BusinessHandler {
 
     @Override
     public void executeChannelClosed() {
+        releasePassivePort();
+        SessionInfo info = sessionInfo;
+        if (info != null) {
+            sessionInfo = null;
+            FtpSessionRegistry.unregister(info);
+        }
         if (AbstractExecutor.useDatabase) {
             if (!internalDb) {
                 if (dbR66Session != null) {
@@ -407,6 +622,21 @@ public class ExecBusinessHandler extends BusinessHandler {
 
     @Override
     public void executeChannelConnected(Channel channel) {
+        SocketAddress address = channel.remoteAddress();
+        if (address instanceof InetSocketAddress) {
+            remoteAddress = ((InetSocketAddress) address).getAddress();
+        }
+        PreAuthLimiter limiter = FileBasedConfiguration.fileBasedConfiguration.preAuthLimiter;
+        if (limiter != null && limiter.isBlocked(remoteAddress)) {
+            // too many failed authentications: reject before allocating anything
+            logger.warn("Connection refused due to too many failed authentications from {}",
+                    remoteAddress);
+            QUIT command = (QUIT)
+                    FtpCommandCode.getFromLine(getFtpSession(), FtpCommandCode.QUIT.name());
+            this.getFtpSession().setNextCommand(command);
+            return;
+        }
+        sessionInfo = FtpSessionRegistry.register(getFtpSession(), channel);
         if (AbstractExecutor.useDatabase) {
             if (org.waarp.openr66.database.DbConstant.admin != null &&
                     org.waarp.openr66.database.DbConstant.admin.isActive()) {
@@ -435,6 +665,24 @@ public class ExecBusinessHandler extends BusinessHandler {
         }
     }
 
+    /**
+     * 
+     * @return the entry of this session in the session registry (null if not connected)
+     */
+    public SessionInfo getSessionInfo() {
+        return sessionInfo;
+    }
+
+    /**
+     * Release the passive port of this session if any (data connection or session closed)
+     */
+    public void releasePassivePort() {
+        int port = passivePort.getAndSet(-1);
+        if (port >= 0) {
+            FileBasedConfiguration.fileBasedConfiguration.releaseRangePort(port);
+        }
+    }
+
     @Override
     public FileBasedAuth getBusinessNewAuth() {
         return new FileBasedAuth(getFtpSession());
@@ -453,8 +701,9 @@ public class ExecBusinessHandler extends BusinessHandler {
     @Override
     public String getHelpMessage(String arg) {
         return "This FTP server is only intend as a Gateway. RETRieve actions may be unallowed.\n"
-                + "This FTP server refers to RFC 959, 775, 2389, 2428, 3659 and supports XCRC, XMD5 and XSHA1 commands.\n"
-                + "XCRC, XMD5 and XSHA1 take a simple filename as argument and return \"250 digest-value is the digest of filename\".";
+                + "This FTP server refers to RFC 959, 775, 2389, 2428, 3659 and supports XCRC, XMD5, XSHA1 and SITE XSHA256 commands.\n"
+                + "XCRC, XMD5, XSHA1 and SITE XSHA256 take a simple filename as argument and return \"250 digest-value is the digest of filename\".\n"
+                + "SITE XRESUME takes a simple filename as argument and returns \"213 position\", the verified position to give to REST to resume its upload.";
     }
 
     @Override
@@ -463,7 +712,9 @@ public class ExecBusinessHandler extends BusinessHandler {
         if (getFtpSession().getConfiguration().getFtpInternalConfiguration().isAcceptAuthProt()) {
             builder.append('\n').append(getSslFeatMessage());
         }
-        builder.append('\n').append(FtpCommandCode.SITE.name()).append(' ').append("AUTHUPDATE").append("\nEnd");
+        builder.append('\n').append(FtpCommandCode.SITE.name()).append(' ').append("AUTHUPDATE");
+        builder.append('\n').append(FtpCommandCode.SITE.name()).append(' ').append("XSHA256");
+        builder.append('\n').append(FtpCommandCode.SITE.name()).append(' ').append("XRESUME").append("\nEnd");
         return builder.toString();
     }
 
@@ -485,9 +736,6 @@ public class ExecBusinessHandler extends BusinessHandler {
         if (getFtpSession() == null || getFtpSession().getAuth() == null) {
             return null;
         }
-        if (!session.getAuth().isAdmin()) {
-            return null;
-        }
         String newline = line;
         if (newline == null) {
             return null;
@@ -505,10 +753,23 @@ public class ExecBusinessHandler extends BusinessHandler {
             }
         }
         String COMMAND = command.toUpperCase();
-        if (!COMMAND.equals("AUTHUPDATE")) {
+        AbstractCommand abstractCommand;
+        if (COMMAND.equals("XSHA256")) {
+            // for any identified user
+            if (!session.getAuth().isIdentified()) {
+                return null;
+            }
+            abstractCommand = new XSHA256();
+        } else if (COMMAND.equals("XRESUME")) {
+            if (!session.getAuth().isIdentified()) {
+                return null;
+            }
+            abstractCommand = new XRESUME();
+        } else if (COMMAND.equals("AUTHUPDATE") && session.getAuth().isAdmin()) {
+            abstractCommand = new AUTHUPDATE();
+        } else {
             return null;
         }
-        AbstractCommand abstractCommand = new AUTHUPDATE();
         abstractCommand.setArgs(session, COMMAND, arg, FtpCommandCode.SITE);
         return abstractCommand;
     }
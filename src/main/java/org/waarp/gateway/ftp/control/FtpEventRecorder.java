@@ -0,0 +1,294 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.control;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpStringUtils;
+
+/**
+ * Lightweight recorder of the FTP command and transfer lifecycle events (command, transfer, pre
+ * and post execution, transfer log database writes).<br>
+ * <br>
+ * Recording is enabled or disabled at runtime (through the administrator interface). When
+ * disabled, the cost for callers is one volatile read. When enabled, the last events are kept in a
+ * fixed size ring and statistics (count, errors, total and max duration) are computed per event
+ * type. Both can be dumped in a CSV file for later analysis.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class FtpEventRecorder {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpEventRecorder.class);
+
+    /**
+     * Type of events
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static enum EventType {
+        /**
+         * Command from start to end, name is the command, detail the reply code
+         */
+        COMMAND,
+        /**
+         * Transfer from start to end, name is the transfer command, detail the file
+         */
+        TRANSFER,
+        /**
+         * Pre execution (RETR), name is the executor type, detail the file
+         */
+        PREEXEC,
+        /**
+         * Post execution (STOR like), name is the executor type, detail the file
+         */
+        POSTEXEC,
+        /**
+         * Transfer log write into the database, name is the operation
+         */
+        DBWRITE,
+        /**
+         * Coalesced write of an uploaded file, name is the operation, detail the file
+         */
+        FILEWRITE;
+    }
+
+    /**
+     * One recorded event
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static class FtpEvent {
+        public final long time;
+        public final EventType type;
+        public final String name;
+        public final String detail;
+        public final long duration;
+        public final long bytes;
+        public final boolean success;
+
+        private FtpEvent(EventType type, String name, String detail, long duration,
+                long bytes, boolean success) {
+            this.time = System.currentTimeMillis();
+            this.type = type;
+            this.name = name;
+            this.detail = detail;
+            this.duration = duration;
+            this.bytes = bytes;
+            this.success = success;
+        }
+    }
+
+    /**
+     * Number of last events kept (power of 2)
+     */
+    private static final int CAPACITY = 8192;
+    private static final int STAT_COUNT = 0;
+    private static final int STAT_ERROR = 1;
+    private static final int STAT_TOTAL = 2;
+    private static final int STAT_MAX = 3;
+    private static final int STAT_SIZE = 4;
+
+    private static volatile boolean recording = false;
+    private static volatile long recordingStart = 0;
+    private static final AtomicReferenceArray<FtpEvent> events =
+            new AtomicReferenceArray<FtpEvent>(CAPACITY);
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final AtomicLongArray statistics =
+            new AtomicLongArray(EventType.values().length * STAT_SIZE);
+
+    private FtpEventRecorder() {
+    }
+
+    /**
+     *
+     * @return True if the recording is active
+     */
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Start or stop the recording. Starting the recording resets the previous events and
+     * statistics.
+     *
+     * @param record
+     */
+    public static synchronized void setRecording(boolean record) {
+        if (record && !recording) {
+            for (int i = 0; i < CAPACITY; i++) {
+                events.set(i, null);
+            }
+            for (int i = 0; i < statistics.length(); i++) {
+                statistics.set(i, 0);
+            }
+            sequence.set(0);
+            recordingStart = System.currentTimeMillis();
+        }
+        recording = record;
+        logger.warn("Event recording " + (record ? "started" : "stopped"));
+    }
+
+    /**
+     *
+     * @return the start time (in ns) to give to end(), or 0 if not recording
+     */
+    public static long begin() {
+        if (!recording) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the event started at start
+     *
+     * @param start
+     *            the value returned by begin(), 0 meaning not recorded
+     * @param type
+     * @param name
+     * @param detail
+     * @param bytes
+     * @param success
+     */
+    public static void end(long start, EventType type, String name, String detail,
+            long bytes, boolean success) {
+        if (start == 0 || !recording) {
+            return;
+        }
+        record(type, name, detail, System.nanoTime() - start, bytes, success);
+    }
+
+    /**
+     * Record one event
+     *
+     * @param type
+     * @param name
+     * @param detail
+     * @param duration
+     *            in ns
+     * @param bytes
+     * @param success
+     */
+    public static void record(EventType type, String name, String detail, long duration,
+            long bytes, boolean success) {
+        if (!recording) {
+            return;
+        }
+        long rank = sequence.getAndIncrement();
+        events.set((int) (rank & (CAPACITY - 1)), new FtpEvent(type, name, detail, duration,
+                bytes, success));
+        int base = type.ordinal() * STAT_SIZE;
+        statistics.incrementAndGet(base + STAT_COUNT);
+        if (!success) {
+            statistics.incrementAndGet(base + STAT_ERROR);
+        }
+        statistics.addAndGet(base + STAT_TOTAL, duration);
+        long max = statistics.get(base + STAT_MAX);
+        while (duration > max) {
+            if (statistics.compareAndSet(base + STAT_MAX, max, duration)) {
+                break;
+            }
+            max = statistics.get(base + STAT_MAX);
+        }
+    }
+
+    /**
+     *
+     * @return a short status of the recording with the statistics per event type
+     */
+    public static String getStatus() {
+        StringBuilder builder = new StringBuilder(recording ? "ON" : "OFF");
+        builder.append(" (").append(sequence.get()).append(" events)");
+        for (EventType type : EventType.values()) {
+            int base = type.ordinal() * STAT_SIZE;
+            long count = statistics.get(base + STAT_COUNT);
+            if (count == 0) {
+                continue;
+            }
+            builder.append(' ').append(type.name()).append(": ").append(count)
+                    .append(" err: ").append(statistics.get(base + STAT_ERROR))
+                    .append(" avg: ")
+                    .append(statistics.get(base + STAT_TOTAL) / count / 1000)
+                    .append("us max: ").append(statistics.get(base + STAT_MAX) / 1000)
+                    .append("us;");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Dump the statistics and the last recorded events into a CSV file
+     *
+     * @param filename
+     * @return the message to show
+     */
+    public static String dump(String filename) {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(filename), WaarpStringUtils.UTF8));
+            writer.write("# Recording started at " + recordingStart + "\n");
+            writer.write("type;count;errors;totalus;maxus\n");
+            for (EventType type : EventType.values()) {
+                int base = type.ordinal() * STAT_SIZE;
+                writer.write(type.name() + ';' + statistics.get(base + STAT_COUNT) + ';' +
+                        statistics.get(base + STAT_ERROR) + ';' +
+                        statistics.get(base + STAT_TOTAL) / 1000 + ';' +
+                        statistics.get(base + STAT_MAX) / 1000 + '\n');
+            }
+            writer.write("time;type;name;detail;durationus;bytes;success\n");
+            long last = sequence.get();
+            long first = last > CAPACITY ? last - CAPACITY : 0;
+            for (long rank = first; rank < last; rank++) {
+                FtpEvent event = events.get((int) (rank & (CAPACITY - 1)));
+                if (event == null) {
+                    continue;
+                }
+                writer.write(event.time + ";" + event.type.name() + ';' + event.name + ';' +
+                        (event.detail == null ? "" : event.detail.replace(';', ',')) + ';' +
+                        event.duration / 1000 + ';' + event.bytes + ';' + event.success + '\n');
+            }
+            writer.flush();
+        } catch (IOException e) {
+            logger.warn("Cannot dump recorded events into " + filename, e);
+            return "Cannot dump recorded events into " + filename;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return "Recorded events dumped into " + filename;
+    }
+}
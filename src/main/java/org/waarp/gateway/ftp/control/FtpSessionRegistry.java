@@ -0,0 +1,386 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.control;
+
+import io.netty.channel.Channel;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.TrafficCounter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.crypto.ssl.WaarpSslUtility;
+import org.waarp.ftp.core.command.AbstractCommand;
+import org.waarp.ftp.core.command.FtpCommandCode;
+import org.waarp.ftp.core.session.FtpSession;
+
+/**
+ * Registry of the active control sessions, with their current data connection and its traffic
+ * counter (for the administrator dashboard and actions).<br>
+ * <br>
+ * Sessions are registered when the control channel is connected and removed when it is closed.
+ * When the data pipeline has no channel traffic shaping handler, a counting one (without limit) is
+ * added so that bytes and throughput are available per data channel, and so that the bandwidth of
+ * one session can be changed at runtime by the administrator (applied to the current and next data
+ * connections of the session).
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class FtpSessionRegistry {
+    /**
+     * Name of the counting handler added to data pipelines
+     */
+    public static final String COUNTER_HANDLER = "sessionCounter";
+    /**
+     * Check interval in ms of the added counters
+     */
+    private static final long COUNTER_INTERVAL = 1000;
+
+    /**
+     * One active session
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static class SessionInfo {
+        private final long id;
+        private final FtpSession session;
+        private final Channel controlChannel;
+        private final String remoteAddress;
+        private final long connected;
+        private volatile Channel dataChannel = null;
+        private volatile ChannelTrafficShapingHandler dataHandler = null;
+        private volatile TrafficCounter dataCounter = null;
+        /**
+         * Limits of the data handler before any change by the administrator
+         */
+        private long defaultWriteLimit = 0;
+        private long defaultReadLimit = 0;
+        /**
+         * Limits set by the administrator in B/s (negative for the default ones)
+         */
+        private volatile long writeLimit = -1;
+        private volatile long readLimit = -1;
+        /**
+         * Bytes of the previous (closed) data connections
+         */
+        private final AtomicLong previousBytes = new AtomicLong();
+
+        private SessionInfo(long id, FtpSession session, Channel controlChannel) {
+            this.id = id;
+            this.session = session;
+            this.controlChannel = controlChannel;
+            this.remoteAddress = controlChannel.remoteAddress() != null ?
+                    controlChannel.remoteAddress().toString() : null;
+            this.connected = System.currentTimeMillis();
+        }
+
+        /**
+         * Attach the new data channel of this session
+         *
+         * @param channel
+         */
+        public void dataConnected(Channel channel) {
+            ChannelTrafficShapingHandler handler =
+                    channel.pipeline().get(ChannelTrafficShapingHandler.class);
+            if (handler == null) {
+                handler = new ChannelTrafficShapingHandler(COUNTER_INTERVAL);
+                channel.pipeline().addFirst(COUNTER_HANDLER, handler);
+            }
+            synchronized (this) {
+                defaultWriteLimit = handler.getWriteLimit();
+                defaultReadLimit = handler.getReadLimit();
+                dataChannel = channel;
+                dataHandler = handler;
+                dataCounter = handler.trafficCounter();
+                applyLimits();
+            }
+        }
+
+        /**
+         * Detach the data channel of this session
+         */
+        public void dataClosed() {
+            TrafficCounter counter;
+            synchronized (this) {
+                counter = dataCounter;
+                dataCounter = null;
+                dataHandler = null;
+                dataChannel = null;
+            }
+            if (counter != null) {
+                previousBytes.addAndGet(counter.cumulativeReadBytes() +
+                        counter.cumulativeWrittenBytes());
+            }
+        }
+
+        /**
+         * Add bytes sent outside of the traffic counter (zero-copy transfers)
+         *
+         * @param bytes
+         */
+        public void addBytes(long bytes) {
+            previousBytes.addAndGet(bytes);
+        }
+
+        /**
+         * Apply the current limits to the data handler (under lock)
+         */
+        private void applyLimits() {
+            if (dataHandler != null) {
+                dataHandler.configure(writeLimit >= 0 ? writeLimit : defaultWriteLimit,
+                        readLimit >= 0 ? readLimit : defaultReadLimit);
+            }
+        }
+
+        /**
+         * Change the bandwidth limits of this session (current and next data connections)
+         *
+         * @param writeLimit
+         *            limit in B/s of the data sent to the client (0 for no limit, negative for
+         *            the default one)
+         * @param readLimit
+         *            limit in B/s of the data received from the client (0 for no limit, negative
+         *            for the default one)
+         */
+        public synchronized void setLimits(long writeLimit, long readLimit) {
+            this.writeLimit = writeLimit;
+            this.readLimit = readLimit;
+            applyLimits();
+        }
+
+        /**
+         *
+         * @return the write limit set by the administrator (negative if default)
+         */
+        public long getWriteLimit() {
+            return writeLimit;
+        }
+
+        /**
+         *
+         * @return the read limit set by the administrator (negative if default)
+         */
+        public long getReadLimit() {
+            return readLimit;
+        }
+
+        /**
+         * Abort the current transfer by closing its data connection
+         *
+         * @return True if a data connection was open
+         */
+        public boolean abortTransfer() {
+            Channel channel = dataChannel;
+            if (channel == null) {
+                return false;
+            }
+            channel.close();
+            return true;
+        }
+
+        /**
+         * Close the session (control connection, then data connection by the FTP service)
+         */
+        public void close() {
+            WaarpSslUtility.closingSslChannel(controlChannel);
+        }
+
+        /**
+         *
+         * @return the unique id of this session in the registry
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         *
+         * @return the time of the connection
+         */
+        public long getConnected() {
+            return connected;
+        }
+
+        /**
+         *
+         * @return the remote address of the control connection
+         */
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        /**
+         *
+         * @return the user (null if not yet identified)
+         */
+        public String getUser() {
+            return session.getAuth() != null ? session.getAuth().getUser() : null;
+        }
+
+        /**
+         *
+         * @return the account (null if not yet identified)
+         */
+        public String getAccount() {
+            return session.getAuth() != null ? session.getAuth().getAccount() : null;
+        }
+
+        /**
+         *
+         * @return the current command (with its argument for transfer commands)
+         */
+        public String getCurrentCommand() {
+            AbstractCommand command = session.getCurrentCommand();
+            if (command == null) {
+                return null;
+            }
+            FtpCommandCode code = command.getCode();
+            if (FtpCommandCode.isStorOrRetrLikeCommand(code) && command.getArg() != null) {
+                // never the argument of other commands (PASS)
+                return code.name() + " " + command.getArg();
+            }
+            return code.name();
+        }
+
+        /**
+         *
+         * @return the current directory (null if not available)
+         */
+        public String getCurrentDir() {
+            try {
+                return session.getDir().getPwd();
+            } catch (CommandAbstractException e) {
+                return null;
+            }
+        }
+
+        /**
+         *
+         * @return True if a data connection is open
+         */
+        public boolean isDataConnected() {
+            return dataCounter != null;
+        }
+
+        /**
+         *
+         * @return the bytes transferred on all the data connections of this session
+         */
+        public long getBytes() {
+            long bytes = previousBytes.get();
+            TrafficCounter counter = dataCounter;
+            if (counter != null) {
+                bytes += counter.cumulativeReadBytes() + counter.cumulativeWrittenBytes();
+            }
+            return bytes;
+        }
+
+        /**
+         *
+         * @return the last read throughput in B/s of the current data connection
+         */
+        public long getReadThroughput() {
+            TrafficCounter counter = dataCounter;
+            return counter != null ? counter.lastReadThroughput() : 0;
+        }
+
+        /**
+         *
+         * @return the last write throughput in B/s of the current data connection
+         */
+        public long getWriteThroughput() {
+            TrafficCounter counter = dataCounter;
+            return counter != null ? counter.lastWriteThroughput() : 0;
+        }
+    }
+
+    private static final ConcurrentHashMap<Long, SessionInfo> sessions =
+            new ConcurrentHashMap<Long, SessionInfo>();
+    private static final AtomicLong ids = new AtomicLong();
+
+    private FtpSessionRegistry() {
+    }
+
+    /**
+     * Register a new control session
+     *
+     * @param session
+     * @param controlChannel
+     * @return the associated SessionInfo
+     */
+    public static SessionInfo register(FtpSession session, Channel controlChannel) {
+        SessionInfo info = new SessionInfo(ids.incrementAndGet(), session, controlChannel);
+        sessions.put(info.id, info);
+        return info;
+    }
+
+    /**
+     * Remove this session
+     *
+     * @param info
+     */
+    public static void unregister(SessionInfo info) {
+        info.dataClosed();
+        sessions.remove(info.id);
+    }
+
+    /**
+     *
+     * @param id
+     * @return the SessionInfo of this id or null
+     */
+    public static SessionInfo get(long id) {
+        return sessions.get(id);
+    }
+
+    /**
+     *
+     * @param user
+     * @return the active sessions of this user
+     */
+    public static List<SessionInfo> getByUser(String user) {
+        List<SessionInfo> list = new ArrayList<SessionInfo>();
+        for (SessionInfo info : sessions.values()) {
+            if (user.equals(info.getUser())) {
+                list.add(info);
+            }
+        }
+        return list;
+    }
+
+    /**
+     *
+     * @return the active sessions (weakly consistent view)
+     */
+    public static Collection<SessionInfo> getSessions() {
+        return sessions.values();
+    }
+
+    /**
+     *
+     * @return the number of active sessions
+     */
+    public static int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.control;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per source address limiter of failed authentications, checked when the control connection is
+ * opened, such that abusive sources are rejected before any database session or authentication
+ * is allocated.<br>
+ * <br>
+ * Failures are counted in a sliding window (approximated by the weighted count of the previous
+ * fixed window plus the count of the current one). Addresses are hashed into a fixed table of
+ * slots (two probes per address), so the memory is bounded whatever the number of sources: a slot
+ * is reused once its failures are out of the window, and when both slots of an address are in
+ * use by other sources, the address is not tracked (fail open: an address is never rejected for
+ * the failures of another one) and the event is counted.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class PreAuthLimiter {
+    /**
+     * Number of slots (power of 2)
+     */
+    private static final int SLOTS = 16384;
+    private static final int MASK = SLOTS - 1;
+    private static final long MAX_COUNT = 0xFFFFL;
+
+    private final int maxFailures;
+    private final long window;
+    /**
+     * Hash of the address of each slot (0 for an empty slot)
+     */
+    private final AtomicLongArray keys = new AtomicLongArray(SLOTS);
+    /**
+     * State of each slot: window number (32 bits), previous count (16 bits), current count (16 bits)
+     */
+    private final AtomicLongArray states = new AtomicLongArray(SLOTS);
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong untracked = new AtomicLong();
+
+    /**
+     *
+     * @param maxFailures
+     *            maximum number of failed authentications from one address in the window
+     * @param window
+     *            window in ms
+     */
+    public PreAuthLimiter(int maxFailures, long window) {
+        this.maxFailures = maxFailures;
+        this.window = window;
+    }
+
+    private static long hash(InetAddress address) {
+        // FNV-1a 64 bits
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : address.getAddress()) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long getWindow(long state) {
+        return state >>> 32;
+    }
+
+    private static long getPrevious(long state) {
+        return (state >>> 16) & MAX_COUNT;
+    }
+
+    private static long getCurrent(long state) {
+        return state & MAX_COUNT;
+    }
+
+    private static long getState(long win, long previous, long current) {
+        return (win << 32) | (previous << 16) | current;
+    }
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @return the estimated number of failures in the sliding window ending now
+     */
+    private long estimate(long state, long now) {
+        long win = (now / window) & 0xFFFFFFFFL;
+        long elapsed = now % window;
+        long slotWin = getWindow(state);
+        if (slotWin == win) {
+            return getPrevious(state) * (window - elapsed) / window + getCurrent(state);
+        }
+        if (slotWin == ((win - 1) & 0xFFFFFFFFL)) {
+            return getCurrent(state) * (window - elapsed) / window;
+        }
+        return 0;
+    }
+
+    /**
+     *
+     * @param key
+     * @return the slot already used by this key, or -1
+     */
+    private int findSlot(long key) {
+        int index = (int) (key ^ (key >>> 32)) & MASK;
+        if (keys.get(index) == key) {
+            return index;
+        }
+        int second = (index + 1) & MASK;
+        if (keys.get(second) == key) {
+            return second;
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param key
+     * @param now
+     * @return the slot to use for this key (allocated if necessary), or -1 if none is available
+     */
+    private int getSlot(long key, long now) {
+        int found = findSlot(key);
+        if (found >= 0) {
+            return found;
+        }
+        int index = (int) (key ^ (key >>> 32)) & MASK;
+        for (int i = 0; i < 2; i++) {
+            int slot = (index + i) & MASK;
+            long current = keys.get(slot);
+            if ((current == 0 || estimate(states.get(slot), now) == 0) &&
+                    keys.compareAndSet(slot, current, key)) {
+                states.set(slot, 0);
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param address
+     * @return True if this address has too many failed authentications and must be rejected
+     */
+    public boolean isBlocked(InetAddress address) {
+        if (address == null || maxFailures <= 0) {
+            return false;
+        }
+        long key = hash(address);
+        int slot = findSlot(key);
+        if (slot < 0) {
+            // no failure recorded, or not tracked (table full): fail open
+            return false;
+        }
+        if (estimate(states.get(slot), System.currentTimeMillis()) >= maxFailures) {
+            rejected.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record one failed authentication from this address
+     *
+     * @param address
+     */
+    public void recordFailure(InetAddress address) {
+        if (address == null || maxFailures <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long win = (now / window) & 0xFFFFFFFFL;
+        int slot = getSlot(hash(address), now);
+        if (slot < 0) {
+            // both slots used by other sources
+            untracked.incrementAndGet();
+            return;
+        }
+        for (;;) {
+            long state = states.get(slot);
+            long slotWin = getWindow(state);
+            long newState;
+            if (slotWin == win) {
+                newState = getState(win, getPrevious(state),
+                        Math.min(MAX_COUNT, getCurrent(state) + 1));
+            } else if (slotWin == ((win - 1) & 0xFFFFFFFFL)) {
+                newState = getState(win, getCurrent(state), 1);
+            } else {
+                newState = getState(win, 0, 1);
+            }
+            if (states.compareAndSet(slot, state, newState)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the number of rejected connections since startup
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     *
+     * @return the number of failures not tracked since both slots of the address were in use
+     */
+    public long getUntracked() {
+        return untracked.get();
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.control;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Broadcast buffer of the transfer lifecycle events (creation, update and error of transfer logs),
+ * for live feeds in the administrator interface.<br>
+ * <br>
+ * Events are written in a fixed size ring and never wait for readers: each subscriber keeps its
+ * own position and polls the ring, and a subscriber too slow to follow loses the overwritten
+ * events (it is told how many). When nobody subscribes, publishing costs one volatile read.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class TransferEventBus {
+    /**
+     * One transfer event
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static class TransferEvent {
+        public final long sequence;
+        public final long time;
+        /**
+         * create, action or error
+         */
+        public final String type;
+        public final long specialId;
+        public final String user;
+        public final String account;
+        public final String mode;
+        public final String file;
+        public final int status;
+        public final String info;
+        public final String message;
+
+        private TransferEvent(long sequence, String type, long specialId, String user,
+                String account, String mode, String file, int status, String info,
+                String message) {
+            this.sequence = sequence;
+            this.time = System.currentTimeMillis();
+            this.type = type;
+            this.specialId = specialId;
+            this.user = user;
+            this.account = account;
+            this.mode = mode;
+            this.file = file;
+            this.status = status;
+            this.info = info;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Position of one subscriber in the ring
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static class Subscription {
+        private long next;
+        private long lost = 0;
+        private boolean closed = false;
+
+        private Subscription(long next) {
+            this.next = next;
+        }
+
+        /**
+         *
+         * @return the number of events lost since the last call (then reset)
+         */
+        public long getAndResetLost() {
+            long result = lost;
+            lost = 0;
+            return result;
+        }
+
+        /**
+         *
+         * @return the sequence of the next event to read
+         */
+        public long getNext() {
+            return next;
+        }
+
+        /**
+         * Stop this subscription
+         */
+        public void close() {
+            if (!closed) {
+                closed = true;
+                subscribers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Number of events kept (power of 2)
+     */
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final AtomicReferenceArray<TransferEvent> events =
+            new AtomicReferenceArray<TransferEvent>(CAPACITY);
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final AtomicInteger subscribers = new AtomicInteger();
+
+    private TransferEventBus() {
+    }
+
+    /**
+     *
+     * @return True if at least one subscriber is listening
+     */
+    public static boolean isActive() {
+        return subscribers.get() > 0;
+    }
+
+    /**
+     * Publish an event (without waiting, even if subscribers are late)
+     *
+     * @param type
+     * @param specialId
+     * @param user
+     * @param account
+     * @param mode
+     * @param file
+     * @param status
+     * @param info
+     * @param message
+     */
+    public static void publish(String type, long specialId, String user, String account,
+            String mode, String file, int status, String info, String message) {
+        if (subscribers.get() == 0) {
+            return;
+        }
+        long seq = sequence.getAndIncrement();
+        events.set((int) (seq & MASK), new TransferEvent(seq, type, specialId, user, account,
+                mode, file, status, info, message));
+    }
+
+    /**
+     * Subscribe to the next events
+     *
+     * @param lastEventId
+     *            the last event already received (to resume after a reconnection), or -1
+     * @return the subscription
+     */
+    public static Subscription subscribe(long lastEventId) {
+        subscribers.incrementAndGet();
+        long current = sequence.get();
+        long next = current;
+        if (lastEventId >= 0 && lastEventId < current) {
+            next = Math.max(lastEventId + 1, current - CAPACITY);
+        }
+        return new Subscription(next);
+    }
+
+    /**
+     *
+     * @param subscription
+     * @return True if events were published since the last poll of this subscription
+     */
+    public static boolean hasNext(Subscription subscription) {
+        return subscription.next < sequence.get();
+    }
+
+    /**
+     * Poll the next event of this subscription
+     *
+     * @param subscription
+     * @return the next event or null if none yet
+     */
+    public static TransferEvent poll(Subscription subscription) {
+        long current = sequence.get();
+        while (subscription.next < current) {
+            if (current - subscription.next > CAPACITY) {
+                // overwritten
+                subscription.lost += current - CAPACITY - subscription.next;
+                subscription.next = current - CAPACITY;
+            }
+            TransferEvent event = events.get((int) (subscription.next & MASK));
+            if (event == null || event.sequence < subscription.next) {
+                // sequence taken but event not yet written
+                return null;
+            }
+            if (event.sequence > subscription.next) {
+                // overwritten meanwhile
+                subscription.lost++;
+                subscription.next++;
+                continue;
+            }
+            subscription.next++;
+            return event;
+        }
+        return null;
+    }
+}
@@ -29,6 +29,7 @@ import org.waarp.ftp.core.data.FtpTransfer;
 import org.waarp.ftp.core.exception.FtpNoFileException;
 import org.waarp.ftp.core.session.FtpSession;
 import org.waarp.gateway.ftp.config.FileBasedConfiguration;
+import org.waarp.gateway.ftp.control.FtpEventRecorder.EventType;
 import org.waarp.gateway.ftp.database.DbConstant;
 import org.waarp.gateway.ftp.database.data.DbTransferLog;
 
@@ -63,6 +64,7 @@ public class WaarpActionLogger {
             if (FtpCommandCode.isStorOrRetrLikeCommand(code)) {
                 boolean isSender =
                         FtpCommandCode.isRetrLikeCommand(code);
+                long start = FtpEventRecorder.begin();
                 try {
                     // Insert new one
                     DbTransferLog log =
@@ -74,7 +76,14 @@ public class WaarpActionLogger {
                                     code.name(),
                                     ReplyCode.REPLY_000_SPECIAL_NOSTATUS, message,
                                     UpdatedInfo.TOSUBMIT);
+                    FtpEventRecorder.end(start, EventType.DBWRITE, "insert", file, 0, true);
                     logger.debug("Create FS: " + log.toString());
+                    if (TransferEventBus.isActive()) {
+                        TransferEventBus.publish("create", log.getSpecialId(), log.getUser(),
+                                log.getAccount(), code.name(), file,
+                                ReplyCode.REPLY_000_SPECIAL_NOSTATUS.getCode(),
+                                UpdatedInfo.TOSUBMIT.name(), message);
+                    }
                     if (FileBasedConfiguration.fileBasedConfiguration.monitoring != null) {
                         if (isSender) {
                             FileBasedConfiguration.fileBasedConfiguration.monitoring
@@ -86,7 +95,7 @@ public class WaarpActionLogger {
                     }
                     return log.getSpecialId();
                 } catch (WaarpDatabaseException e1) {
-                    // Do nothing
+                    FtpEventRecorder.end(start, EventType.DBWRITE, "insert", file, 0, false);
                 }
             }
         }
@@ -106,12 +115,31 @@ public class WaarpActionLogger {
     public static long logAction(DbSession ftpSession, long specialId,
             String message, BusinessHandler handler, ReplyCode rcode,
             UpdatedInfo info) {
+        return logAction(ftpSession, specialId, message, handler, rcode, info, null);
+    }
+
+    /**
+     * Log the action with the digest of the transferred file
+     * 
+     * @param ftpSession
+     * @param specialId
+     * @param message
+     * @param handler
+     * @param rcode
+     * @param info
+     * @param digest
+     *            ALGORITHM:value or null if unchanged
+     */
+    public static long logAction(DbSession ftpSession, long specialId,
+            String message, BusinessHandler handler, ReplyCode rcode,
+            UpdatedInfo info, String digest) {
         FtpSession session = handler.getFtpSession();
         String sessionContexte = session.toString();
         logger.info(message + " " + sessionContexte);
         if (ftpSession != null && specialId != DbConstant.ILLEGALVALUE) {
             FtpCommandCode code = session.getCurrentCommand().getCode();
             if (FtpCommandCode.isStorOrRetrLikeCommand(code)) {
+                long start = FtpEventRecorder.begin();
                 try {
                     // Try load
                     DbTransferLog log =
@@ -121,11 +149,20 @@ public class WaarpActionLogger {
                     log.changeUpdatedInfo(info);
                     log.setInfotransf(message);
                     log.setReplyCodeExecutionStatus(rcode);
+                    if (digest != null) {
+                        log.setDigest(digest);
+                    }
                     log.update();
+                    FtpEventRecorder.end(start, EventType.DBWRITE, "update", message, 0, true);
                     logger.debug("Update FS: " + log.toString());
+                    if (TransferEventBus.isActive()) {
+                        TransferEventBus.publish("action", specialId, log.getUser(),
+                                log.getAccount(), code.name(), log.getFilename(),
+                                rcode.getCode(), info.name(), message);
+                    }
                     return log.getSpecialId();
                 } catch (WaarpDatabaseException e) {
-                    // Do nothing
+                    FtpEventRecorder.end(start, EventType.DBWRITE, "update", message, 0, false);
                 }
             } else {
                 if (FileBasedConfiguration.fileBasedConfiguration.monitoring != null) {
@@ -174,6 +211,7 @@ public class WaarpActionLogger {
                     file = null;
                 }
                 UpdatedInfo info = UpdatedInfo.INERROR;
+                long start = FtpEventRecorder.begin();
                 try {
                     // Try load
                     DbTransferLog log =
@@ -191,13 +229,19 @@ public class WaarpActionLogger {
                         log.setFilename(file);
                     }
                     log.update();
+                    FtpEventRecorder.end(start, EventType.DBWRITE, "error", message, 0, true);
+                    if (TransferEventBus.isActive()) {
+                        TransferEventBus.publish("error", specialId, log.getUser(),
+                                log.getAccount(), code.name(), log.getFilename(),
+                                log.getErrorInfo().getCode(), info.name(), message);
+                    }
                     if (FileBasedConfiguration.fileBasedConfiguration.ftpMib != null) {
                         FileBasedConfiguration.fileBasedConfiguration.ftpMib.
                                 notifyInfoTask(message, log);
                     }
                     logger.debug("Update FS: " + log.toString());
                 } catch (WaarpDatabaseException e) {
-                    // Do nothing
+                    FtpEventRecorder.end(start, EventType.DBWRITE, "error", message, 0, false);
                 }
             } else {
                 if (FileBasedConfiguration.fileBasedConfiguration.monitoring != null) {
@@ -18,6 +18,8 @@ package org.waarp.gateway.ftp.data;
 
 import io.netty.channel.Channel;
 import org.waarp.ftp.core.data.handler.DataBusinessHandler;
+import org.waarp.gateway.ftp.control.ExecBusinessHandler;
+import org.waarp.gateway.ftp.control.FtpSessionRegistry.SessionInfo;
 
 /**
  * DataBusinessHandler implementation based on Simple Filesystem : do nothing
@@ -36,9 +38,28 @@ public class FileSystemBasedDataBusinessHandler extends DataBusinessHandler {
 
     @Override
     public void executeChannelClosed() {
+        if (getFtpSession() != null &&
+                getFtpSession().getBusinessHandler() instanceof ExecBusinessHandler) {
+            ExecBusinessHandler handler = (ExecBusinessHandler) getFtpSession().getBusinessHandler();
+            // passive port is available again (after quarantine)
+            handler.releasePassivePort();
+            SessionInfo info = handler.getSessionInfo();
+            if (info != null) {
+                info.dataClosed();
+            }
+        }
     }
 
     @Override
     public void executeChannelConnected(Channel channel) {
+        if (getFtpSession() != null &&
+                getFtpSession().getBusinessHandler() instanceof ExecBusinessHandler) {
+            // per data channel counter for the session dashboard
+            SessionInfo info = ((ExecBusinessHandler) getFtpSession().getBusinessHandler())
+                    .getSessionInfo();
+            if (info != null) {
+                info.dataConnected(channel);
+            }
+        }
     }
 }
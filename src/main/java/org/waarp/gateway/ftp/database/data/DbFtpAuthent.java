@@ -0,0 +1,355 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.database.data;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.waarp.common.database.DbPreparedStatement;
+import org.waarp.common.database.DbRequest;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Authentication definition of one user stored in database (FTPUSERS and FTPACCOUNTS tables),
+ * with the same content as one entry of the authentication file.<br>
+ * <br>
+ * PASSWD is encrypted with the cryptokey as the passwd element of the authentication file,
+ * PASSWDHASH is as the passwdhash element. VERSION must be increased on every change of a user
+ * (or its accounts) such that all gateways sharing the database invalidate their cached entry.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class DbFtpAuthent {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbFtpAuthent.class);
+
+    /**
+     * Types of the columns in the SQL dialect of a database model
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static interface SqlTypes {
+        /**
+         *
+         * @param sqlType
+         *            one of java.sql.Types
+         * @return the definition of a column of this type
+         */
+        public String getType(int sqlType);
+    }
+
+    public static enum Columns {
+        USERID,
+        PASSWD,
+        PASSWDHASH,
+        ADMINROLE,
+        RETRCMD,
+        RETRDELAY,
+        STORCMD,
+        STORDELAY,
+        VERSION;
+    }
+
+    public static final int[] dbTypes = {
+            Types.NVARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER,
+            Types.VARCHAR, Types.BIGINT, Types.VARCHAR, Types.BIGINT, Types.BIGINT };
+
+    public static final boolean[] notNulls = {
+            true, false, false, true, false, true, false, true, true };
+
+    public static final String table = " FTPUSERS ";
+
+    public static final Columns[] indexes = {
+            Columns.VERSION
+    };
+
+    public static enum AccountColumns {
+        USERID,
+        ACCOUNTID;
+    }
+
+    public static final int[] accountDbTypes = {
+            Types.NVARCHAR, Types.NVARCHAR };
+
+    public static final String accountTable = " FTPACCOUNTS ";
+
+    protected static final String selectAllFields = Columns.USERID.name() + "," +
+            Columns.PASSWD.name() + "," + Columns.PASSWDHASH.name() + "," +
+            Columns.ADMINROLE.name() + "," +
+            Columns.RETRCMD.name() + "," + Columns.RETRDELAY.name() + "," +
+            Columns.STORCMD.name() + "," + Columns.STORDELAY.name() + "," +
+            Columns.VERSION.name();
+
+    // Values
+    private final String user;
+    private String passwd;
+    private String passwdHash;
+    private boolean isAdmin;
+    private String retrCmd;
+    private long retrDelay;
+    private String storCmd;
+    private long storDelay;
+    private long version;
+    private String[] accounts;
+
+    private DbFtpAuthent(String user) {
+        this.user = user;
+    }
+
+    /**
+     * Create the authentication tables (users and accounts) if they do not exist yet
+     *
+     * @param session
+     * @param createTable
+     *            the create table statement of the database ("CREATE TABLE " or with "IF NOT
+     *            EXISTS")
+     * @param createIndex
+     *            the create index statement of the database
+     * @param types
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public static void createTables(DbSession session, String createTable, String createIndex,
+            SqlTypes types) throws WaarpDatabaseNoConnectionException {
+        String primaryKey = " PRIMARY KEY ";
+        String notNull = " NOT NULL ";
+
+        // FTPUSERS
+        String action = createTable + table + "(";
+        Columns[] ucolumns = Columns.values();
+        for (int i = 0; i < ucolumns.length; i++) {
+            action += ucolumns[i].name() + types.getType(dbTypes[i]) +
+                    (notNulls[i] ? notNull : "") + ", ";
+        }
+        action += " CONSTRAINT FTPUSERS_PK " + primaryKey + "(" + Columns.USERID.name() + "))";
+        // FTPACCOUNTS
+        String actionAccount = createTable + accountTable + "(";
+        AccountColumns[] acolumns = AccountColumns.values();
+        for (int i = 0; i < acolumns.length; i++) {
+            actionAccount += acolumns[i].name() + types.getType(accountDbTypes[i]) + notNull +
+                    ", ";
+        }
+        actionAccount += " CONSTRAINT FTPACCOUNTS_PK " + primaryKey + "(" +
+                acolumns[0].name() + "," + acolumns[1].name() + "))";
+        // Index FTPUSERS
+        String actionIndex = createIndex + "IDX_FTPUSERS ON " + table + "(" +
+                indexes[0].name() + ")";
+        String[] actions = { action, actionAccount, actionIndex };
+        DbRequest request = new DbRequest(session);
+        for (String sql : actions) {
+            logger.debug(sql);
+            try {
+                request.query(sql);
+            } catch (WaarpDatabaseSqlException e) {
+                // already existing
+            } finally {
+                request.close();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param session
+     * @param user
+     * @return the definition of this user, or null if the user does not exist or has no account
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public static DbFtpAuthent getFromDb(DbSession session, String user)
+            throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException {
+        DbFtpAuthent authent = null;
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(session,
+                "SELECT " + selectAllFields + " FROM " + table + " WHERE " +
+                        Columns.USERID.name() + " = ?");
+        try {
+            preparedStatement.getPreparedStatement().setString(1, user);
+            preparedStatement.executeQuery();
+            if (!preparedStatement.getNext()) {
+                return null;
+            }
+            ResultSet resultSet = preparedStatement.getResultSet();
+            authent = new DbFtpAuthent(user);
+            authent.passwd = resultSet.getString(2);
+            authent.passwdHash = resultSet.getString(3);
+            authent.isAdmin = resultSet.getInt(4) != 0;
+            authent.retrCmd = resultSet.getString(5);
+            authent.retrDelay = resultSet.getLong(6);
+            authent.storCmd = resultSet.getString(7);
+            authent.storDelay = resultSet.getLong(8);
+            authent.version = resultSet.getLong(9);
+        } catch (SQLException e) {
+            throw new WaarpDatabaseSqlException(e);
+        } finally {
+            preparedStatement.realClose();
+        }
+        preparedStatement = new DbPreparedStatement(session,
+                "SELECT " + AccountColumns.ACCOUNTID.name() + " FROM " + accountTable +
+                        " WHERE " + AccountColumns.USERID.name() + " = ?");
+        List<String> list = new ArrayList<String>();
+        try {
+            preparedStatement.getPreparedStatement().setString(1, user);
+            preparedStatement.executeQuery();
+            while (preparedStatement.getNext()) {
+                list.add(preparedStatement.getResultSet().getString(1));
+            }
+        } catch (SQLException e) {
+            throw new WaarpDatabaseSqlException(e);
+        } finally {
+            preparedStatement.realClose();
+        }
+        if (list.isEmpty()) {
+            return null;
+        }
+        authent.accounts = list.toArray(new String[0]);
+        return authent;
+    }
+
+    /**
+     *
+     * @param session
+     * @return the current maximum version of all users (0 if none)
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public static long getMaxVersion(DbSession session)
+            throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException {
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(session,
+                "SELECT MAX(" + Columns.VERSION.name() + ") FROM " + table);
+        try {
+            preparedStatement.executeQuery();
+            if (preparedStatement.getNext()) {
+                return preparedStatement.getResultSet().getLong(1);
+            }
+            return 0;
+        } catch (SQLException e) {
+            throw new WaarpDatabaseSqlException(e);
+        } finally {
+            preparedStatement.realClose();
+        }
+    }
+
+    /**
+     *
+     * @param session
+     * @param version
+     * @return the users changed since the given version
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public static List<String> getUpdatedUsers(DbSession session, long version)
+            throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException {
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(session,
+                "SELECT " + Columns.USERID.name() + " FROM " + table + " WHERE " +
+                        Columns.VERSION.name() + " > ?");
+        List<String> list = new ArrayList<String>();
+        try {
+            preparedStatement.getPreparedStatement().setLong(1, version);
+            preparedStatement.executeQuery();
+            while (preparedStatement.getNext()) {
+                list.add(preparedStatement.getResultSet().getString(1));
+            }
+        } catch (SQLException e) {
+            throw new WaarpDatabaseSqlException(e);
+        } finally {
+            preparedStatement.realClose();
+        }
+        return list;
+    }
+
+    /**
+     * @return the user
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * @return the encrypted password (might be null)
+     */
+    public String getPasswd() {
+        return passwd;
+    }
+
+    /**
+     * @return the password hash (might be null)
+     */
+    public String getPasswdHash() {
+        return passwdHash;
+    }
+
+    /**
+     * @return True if this user is an administrator
+     */
+    public boolean isAdmin() {
+        return isAdmin;
+    }
+
+    /**
+     * @return the retrieve command (might be null)
+     */
+    public String getRetrCmd() {
+        return retrCmd;
+    }
+
+    /**
+     * @return the retrieve command delay
+     */
+    public long getRetrDelay() {
+        return retrDelay;
+    }
+
+    /**
+     * @return the store command (might be null)
+     */
+    public String getStorCmd() {
+        return storCmd;
+    }
+
+    /**
+     * @return the store command delay
+     */
+    public long getStorDelay() {
+        return storDelay;
+    }
+
+    /**
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the accounts
+     */
+    public String[] getAccounts() {
+        return accounts;
+    }
+}
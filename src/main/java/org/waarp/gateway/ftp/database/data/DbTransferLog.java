@@ -30,6 +30,7 @@ import java.util.Set;
 import org.dom4j.Document;
 import org.waarp.common.command.ReplyCode;
 import org.waarp.common.database.DbPreparedStatement;
+import org.waarp.common.database.DbRequest;
 import org.waarp.common.database.DbSession;
 import org.waarp.common.database.data.AbstractDbData;
 import org.waarp.common.database.data.DbValue;
@@ -70,6 +71,7 @@ public class DbTransferLog extends AbstractDbData {
         TRANSINFO,
         INFOSTATUS,
         UPDATEDINFO,
+        DIGEST,
         USERID,
         ACCOUNTID,
         HOSTID,
@@ -80,9 +82,16 @@ public class DbTransferLog extends AbstractDbData {
             Types.VARCHAR,
             Types.VARCHAR,
             Types.TIMESTAMP, Types.TIMESTAMP,
-            Types.LONGVARCHAR, Types.INTEGER, Types.INTEGER,
+            Types.LONGVARCHAR, Types.INTEGER, Types.INTEGER, Types.VARCHAR,
             Types.NVARCHAR, Types.NVARCHAR, Types.NVARCHAR, Types.BIGINT };
 
+    /**
+     * DIGEST may be null (added to existing tables, and empty string is null for some databases)
+     */
+    public static final boolean[] notNulls = {
+            true, true, true, true, true, true, true, false,
+            true, true, true, true };
+
     public static final String table = " TRANSFLOG ";
 
     public static final String fieldseq = "TRANSSEQ";
@@ -125,6 +134,11 @@ public class DbTransferLog extends AbstractDbData {
      */
     private int updatedInfo = UpdatedInfo.UNKNOWN.ordinal();
 
+    /**
+     * Digest of the file as ALGORITHM:value (empty if none)
+     */
+    private String digest = "";
+
     /**
      * Special For DbTransferLog
      */
@@ -136,6 +150,7 @@ public class DbTransferLog extends AbstractDbData {
             Columns.STARTTRANS.name() + "," + Columns.STOPTRANS.name() + "," +
             Columns.TRANSINFO.name() + "," +
             Columns.INFOSTATUS.name() + "," + Columns.UPDATEDINFO.name() + "," +
+            Columns.DIGEST.name() + "," +
             Columns.USERID.name() + "," + Columns.ACCOUNTID.name() + "," +
             Columns.HOSTID.name() + "," + Columns.SPECIALID.name();
 
@@ -144,9 +159,10 @@ public class DbTransferLog extends AbstractDbData {
                     Columns.MODETRANS.name() + "=?," +
                     Columns.STARTTRANS.name() + "=?," + Columns.STOPTRANS.name() + "=?," +
                     Columns.TRANSINFO.name() + "=?," +
-                    Columns.INFOSTATUS.name() + "=?," + Columns.UPDATEDINFO.name() + "=?";
+                    Columns.INFOSTATUS.name() + "=?," + Columns.UPDATEDINFO.name() + "=?," +
+                    Columns.DIGEST.name() + "=?";
 
-    protected static final String insertAllValues = " (?,?,?,?,?,?,?,?,?,?,?) ";
+    protected static final String insertAllValues = " (?,?,?,?,?,?,?,?,?,?,?,?) ";
 
     private static final Set<Long> clientNoDbSpecialId = new HashSet<Long>();
 
@@ -216,7 +232,7 @@ public class DbTransferLog extends AbstractDbData {
         otherFields = new DbValue[] {
                 // FILENAME, MODETRANS,
                 // STARTTRANS, STOPTRANS, TRANSINFO
-                // INFOSTATUS, UPDATEDINFO
+                // INFOSTATUS, UPDATEDINFO, DIGEST
                 new DbValue(filename, Columns.FILENAME.name()),
                 new DbValue(mode, Columns.MODETRANS.name()),
                 new DbValue(start, Columns.STARTTRANS.name()),
@@ -224,10 +240,11 @@ public class DbTransferLog extends AbstractDbData {
                 new DbValue(infotransf, Columns.TRANSINFO.name()),
                 new DbValue(ReplyCode.REPLY_000_SPECIAL_NOSTATUS.getCode(),
                         Columns.INFOSTATUS.name()), // infostatus.getCode()
-                new DbValue(updatedInfo, Columns.UPDATEDINFO.name()) };
+                new DbValue(updatedInfo, Columns.UPDATEDINFO.name()),
+                new DbValue(digest, Columns.DIGEST.name()) };
         allFields = new DbValue[] {
                 otherFields[0], otherFields[1], otherFields[2], otherFields[3],
-                otherFields[4], otherFields[5], otherFields[6],
+                otherFields[4], otherFields[5], otherFields[6], otherFields[7],
                 primaryKey[0], primaryKey[1], primaryKey[2], primaryKey[3] };
     }
 
@@ -255,7 +272,7 @@ public class DbTransferLog extends AbstractDbData {
     protected void setToArray() {
         // FILENAME, MODETRANS,
         // STARTTRANS, STOPTRANS, TRANSINFO
-        // INFOSTATUS, UPDATEDINFO
+        // INFOSTATUS, UPDATEDINFO, DIGEST
         // USERID, ACCOUNTID, SPECIALID
         allFields[Columns.FILENAME.ordinal()].setValue(filename);
         allFields[Columns.MODETRANS.ordinal()].setValue(mode);
@@ -265,6 +282,7 @@ public class DbTransferLog extends AbstractDbData {
         allFields[Columns.TRANSINFO.ordinal()].setValue(infotransf);
         allFields[Columns.INFOSTATUS.ordinal()].setValue(infostatus.getCode());
         allFields[Columns.UPDATEDINFO.ordinal()].setValue(updatedInfo);
+        allFields[Columns.DIGEST.ordinal()].setValue(digest);
         allFields[Columns.USERID.ordinal()].setValue(user);
         allFields[Columns.ACCOUNTID.ordinal()].setValue(account);
         allFields[Columns.HOSTID.ordinal()].setValue(hostid);
@@ -287,6 +305,10 @@ public class DbTransferLog extends AbstractDbData {
                 .getValue();
         updatedInfo = (Integer) allFields[Columns.UPDATEDINFO.ordinal()]
                 .getValue();
+        digest = (String) allFields[Columns.DIGEST.ordinal()].getValue();
+        if (digest == null) {
+            digest = "";
+        }
         user = (String) allFields[Columns.USERID.ordinal()]
                 .getValue();
         account = (String) allFields[Columns.ACCOUNTID.ordinal()]
@@ -596,6 +618,120 @@ public class DbTransferLog extends AbstractDbData {
         return preparedStatement;
     }
 
+    /**
+     * Search of TransferLogs with keyset paging: results are ordered by SPECIALID descending, the
+     * next page starting after the last SPECIALID of the previous one.
+     * 
+     * @param session
+     * @param user
+     *            exact user (null for all)
+     * @param account
+     *            exact account (null for all)
+     * @param mode
+     *            exact mode (command) (null for all)
+     * @param status
+     *            reply code (negative for all)
+     * @param info
+     *            updated info (null for all)
+     * @param start
+     *            minimal start time (null for none)
+     * @param stop
+     *            maximal start time (null for none)
+     * @param filePrefix
+     *            prefix of the filename (null for all)
+     * @param before
+     *            only SPECIALID strictly lower than this one (Long.MAX_VALUE for first page)
+     * @param limit
+     *            maximum number of rows (0 for no limit)
+     * @return the DbPreparedStatement, executed
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public static DbPreparedStatement getSearchPrepareStatement(DbSession session,
+            String user, String account, String mode, int status, UpdatedInfo info,
+            Timestamp start, Timestamp stop, String filePrefix, long before, int limit)
+            throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException {
+        StringBuilder request = new StringBuilder("SELECT ").append(selectAllFields)
+                .append(" FROM ").append(table).append(" WHERE ")
+                .append(getLimitWhereCondition()).append(" AND ")
+                .append(Columns.SPECIALID.name()).append(" < ? ");
+        if (user != null) {
+            request.append(" AND ").append(Columns.USERID.name()).append(" = ? ");
+        }
+        if (account != null) {
+            request.append(" AND ").append(Columns.ACCOUNTID.name()).append(" = ? ");
+        }
+        if (mode != null) {
+            request.append(" AND ").append(Columns.MODETRANS.name()).append(" = ? ");
+        }
+        if (status >= 0) {
+            request.append(" AND ").append(Columns.INFOSTATUS.name()).append(" = ? ");
+        }
+        if (info != null) {
+            request.append(" AND ").append(Columns.UPDATEDINFO.name()).append(" = ? ");
+        }
+        if (start != null) {
+            request.append(" AND ").append(Columns.STARTTRANS.name()).append(" >= ? ");
+        }
+        if (stop != null) {
+            request.append(" AND ").append(Columns.STARTTRANS.name()).append(" <= ? ");
+        }
+        if (filePrefix != null) {
+            request.append(" AND ").append(Columns.FILENAME.name())
+                    .append(" LIKE ? ESCAPE '!' ");
+        }
+        request.append(" ORDER BY ").append(Columns.SPECIALID.name()).append(" DESC ");
+        String sql = request.toString();
+        if (limit > 0) {
+            sql = session.getAdmin().getDbModel().limitRequest(selectAllFields, sql, limit);
+        }
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(session);
+        preparedStatement.createPrepareStatement(sql);
+        try {
+            int rank = 1;
+            preparedStatement.getPreparedStatement().setLong(rank++, before);
+            if (user != null) {
+                preparedStatement.getPreparedStatement().setString(rank++, user);
+            }
+            if (account != null) {
+                preparedStatement.getPreparedStatement().setString(rank++, account);
+            }
+            if (mode != null) {
+                preparedStatement.getPreparedStatement().setString(rank++, mode);
+            }
+            if (status >= 0) {
+                preparedStatement.getPreparedStatement().setInt(rank++, status);
+            }
+            if (info != null) {
+                preparedStatement.getPreparedStatement().setInt(rank++, info.ordinal());
+            }
+            if (start != null) {
+                preparedStatement.getPreparedStatement().setTimestamp(rank++, start);
+            }
+            if (stop != null) {
+                preparedStatement.getPreparedStatement().setTimestamp(rank++, stop);
+            }
+            if (filePrefix != null) {
+                String escaped = filePrefix.replace("!", "!!").replace("%", "!%")
+                        .replace("_", "!_");
+                preparedStatement.getPreparedStatement().setString(rank++, escaped + "%");
+            }
+        } catch (SQLException e) {
+            preparedStatement.realClose();
+            throw new WaarpDatabaseSqlException(e);
+        }
+        try {
+            preparedStatement.executeQuery();
+        } catch (WaarpDatabaseNoConnectionException e) {
+            preparedStatement.realClose();
+            throw e;
+        } catch (WaarpDatabaseSqlException e) {
+            preparedStatement.realClose();
+            throw e;
+        }
+        return preparedStatement;
+    }
+
     /**
      * 
      * @param session
@@ -819,6 +955,71 @@ public class DbTransferLog extends AbstractDbData {
         return prep;
     }
 
+    /**
+     * 
+     * @param session
+     * @return True if the table already has the DIGEST column (else an upgrade is needed)
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public static boolean hasDigestColumn(DbSession session)
+            throws WaarpDatabaseNoConnectionException {
+        DbRequest request = new DbRequest(session);
+        try {
+            request.select("SELECT " + Columns.DIGEST.name() + " FROM " + table + " WHERE 1 = 0");
+            return true;
+        } catch (WaarpDatabaseSqlException e) {
+            return false;
+        } finally {
+            request.close();
+        }
+    }
+
+    /**
+     * Add the DIGEST column to an existing table (upgrade from a previous version)
+     * 
+     * @param session
+     * @param columnType
+     *            the type of the column in the SQL dialect of the database
+     * @return True if the table has the DIGEST column
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public static boolean addDigestColumn(DbSession session, String columnType)
+            throws WaarpDatabaseNoConnectionException {
+        if (hasDigestColumn(session)) {
+            return true;
+        }
+        String action = "ALTER TABLE " + table + " ADD " + Columns.DIGEST.name() + columnType;
+        logger.warn("Upgrade of " + table + ": " + action);
+        DbRequest request = new DbRequest(session);
+        try {
+            request.query(action);
+        } catch (WaarpDatabaseSqlException e) {
+            logger.error("Cannot upgrade " + table, e);
+            return false;
+        } finally {
+            request.close();
+        }
+        return true;
+    }
+
+    /**
+     * 
+     * @param session
+     * @param columnType
+     *            the type of the DIGEST column in the SQL dialect of the database
+     * @param tryFix
+     *            True to add the missing column
+     * @return True if the table still needs an upgrade
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public static boolean needUpgrade(DbSession session, String columnType, boolean tryFix)
+            throws WaarpDatabaseNoConnectionException {
+        if (hasDigestColumn(session)) {
+            return false;
+        }
+        return !tryFix || !addDigestColumn(session, columnType);
+    }
+
     @Override
     public void changeUpdatedInfo(UpdatedInfo info) {
         updatedInfo = info.ordinal();
@@ -867,6 +1068,28 @@ public class DbTransferLog extends AbstractDbData {
         }
     }
 
+    /**
+     * @param digest
+     *            the digest of the file as ALGORITHM:value
+     */
+    public void setDigest(String digest) {
+        if (digest == null) {
+            digest = "";
+        }
+        if (!this.digest.equals(digest)) {
+            this.digest = digest;
+            allFields[Columns.DIGEST.ordinal()].setValue(this.digest);
+            isSaved = false;
+        }
+    }
+
+    /**
+     * @return the digest of the file as ALGORITHM:value (empty if none)
+     */
+    public String getDigest() {
+        return digest;
+    }
+
     /**
      * @return the isSender
      */
@@ -976,7 +1199,7 @@ public class DbTransferLog extends AbstractDbData {
 
     /*
      * XXXIDXXX XXXUSERXXX XXXACCTXXX XXXFILEXXX XXXMODEXXX XXXSTATUSXXX XXXINFOXXX XXXUPINFXXX
-     * XXXSTARTXXX XXXSTOPXXX
+     * XXXSTARTXXX XXXSTOPXXX XXXDIGESTXXX
      */
     private static final String XML_IDX = "IDX";
     private static final String XML_USER = "USER";
@@ -988,6 +1211,7 @@ public class DbTransferLog extends AbstractDbData {
     private static final String XML_UPDINFO = "UPDINFO";
     private static final String XML_START = "START";
     private static final String XML_STOP = "STOP";
+    private static final String XML_DIGEST = "DIGEST";
     private static final String XML_ROOT = "LOGS";
     private static final String XML_ENTRY = "LOG";
     /**
@@ -1006,6 +1230,7 @@ public class DbTransferLog extends AbstractDbData {
             new XmlDecl(XmlType.STRING, XML_UPDINFO),
             new XmlDecl(XmlType.STRING, XML_START),
             new XmlDecl(XmlType.STRING, XML_STOP),
+            new XmlDecl(XmlType.STRING, XML_DIGEST),
     };
     /**
      * Global Structure for Server Configuration
@@ -1035,6 +1260,7 @@ public class DbTransferLog extends AbstractDbData {
             values[7].setFromString(getUpdatedInfo().name());
             values[8].setFromString(start.toString());
             values[9].setFromString(stop.toString());
+            values[10].setFromString(digest);
         } catch (InvalidArgumentException e) {
             return null;
         }
@@ -1114,11 +1340,71 @@ public class DbTransferLog extends AbstractDbData {
      */
     public static String saveDbTransferLogFile(DbPreparedStatement preparedStatement,
             Writer outWriter, boolean purge) {
+        return saveDbTransferLogFile(preparedStatement, outWriter, purge, null);
+    }
+
+    /**
+     * Monitor of a long export (and purge) of DbTransferLogs
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static interface ExportMonitor {
+        /**
+         * Called after each exported (and purged) DbTransferLog
+         * 
+         * @param count
+         *            number of DbTransferLogs exported so far
+         * @return False if the export must stop (what was already purged is still exported)
+         */
+        public boolean exported(long count);
+
+        /**
+         * Called when the export (or purge) fails
+         * 
+         * @param message
+         *            the error message also returned by the export
+         */
+        public void failed(String message);
+    }
+
+    /**
+     * 
+     * @param monitor
+     *            (might be null)
+     * @param message
+     * @return the message, given to the monitor as a failure
+     */
+    private static String failed(ExportMonitor monitor, String message) {
+        if (monitor != null) {
+            monitor.failed(message);
+        }
+        return message;
+    }
+
+    /**
+     * Exports DbTransferLogs to a Writer object and optionally purges the corresponding
+     * DbTransferLogs, under the control of the monitor
+     * 
+     * @param preparedStatement
+     *            the DbTransferLog as SELECT command to export (and purge)
+     * @param outWriter
+     *            a Writer object where the DbLogs will be written
+     * @param purge
+     *            sets whether or not the selected results must be purged
+     * @param monitor
+     *            the monitor called after each DbTransferLog (might be null)
+     * @return The message for the HTTPS interface
+     */
+    public static String saveDbTransferLogFile(DbPreparedStatement preparedStatement,
+            Writer outWriter, boolean purge, ExportMonitor monitor) {
         Document document = XmlUtil.createEmptyDocument();
         XmlValue[] roots = new XmlValue[1];
         XmlValue root = new XmlValue(logsElements[0]);
         roots[0] = root;
         String message = null;
+        long count = 0;
+        boolean stopped = false;
         try {
             try {
                 preparedStatement.executeQuery();
@@ -1126,25 +1412,30 @@ public class DbTransferLog extends AbstractDbData {
                     DbTransferLog log = DbTransferLog.getFromStatement(preparedStatement);
                     XmlValue[] values = log.saveIntoXmlValue();
                     if (values == null) {
-                        return "Error during export";
+                        return failed(monitor, "Error during export");
                     }
                     try {
                         root.addValue(values);
                     } catch (InvalidObjectException e) {
                         logger.error("Error during Write DbTransferLog file", e);
-                        return "Error during purge";
+                        return failed(monitor, "Error during purge");
                     }
 
                     if (purge) {
                         log.delete();
                     }
+                    count++;
+                    if (monitor != null && !monitor.exported(count)) {
+                        stopped = true;
+                        break;
+                    }
                 }
             } catch (WaarpDatabaseNoConnectionException e) {
-                message = "Error during export or purge";
+                message = failed(monitor, "Error during export or purge");
             } catch (WaarpDatabaseSqlException e) {
-                message = "Error during export or purge";
+                message = failed(monitor, "Error during export or purge");
             } catch (WaarpDatabaseException e) {
-                message = "Error during export or purge";
+                message = failed(monitor, "Error during export or purge");
             }
         } finally {
             preparedStatement.realClose();
@@ -1153,11 +1444,16 @@ public class DbTransferLog extends AbstractDbData {
         XmlUtil.write(document, roots);
         try {
             XmlUtil.saveDocument(outWriter, document);
-            message = "Logs exported " + (purge ? "and purged" : "")
-                    + " successfully";
+            if (message == null) {
+                message = "Logs exported " + (purge ? "and purged" : "")
+                        + " successfully";
+            }
+            if (stopped) {
+                message += " (stopped after " + count + " logs)";
+            }
         } catch (IOException e1) {
             logger.error("Cannot write to file since {}", e1.getMessage());
-            return message + " but cannot save file as export";
+            return failed(monitor, message + " but cannot save file as export");
         }
         return message;
     }
@@ -26,6 +26,7 @@ import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
 import org.waarp.gateway.ftp.database.DbConstant;
+import org.waarp.gateway.ftp.database.data.DbFtpAuthent;
 import org.waarp.gateway.ftp.database.data.DbTransferLog;
 
 /**
@@ -48,9 +49,25 @@ public class DbModelH2 extends org.waarp.common.database.model.DbModelH2 {
         super(dbserver, dbuser, dbpasswd);
     }
 
+    /**
+     * Create the authentication tables (users and accounts) if they do not exist yet
+     * 
+     * @param session
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    private void createAuthentTables(DbSession session) throws WaarpDatabaseNoConnectionException {
+        DbFtpAuthent.createTables(session, "CREATE TABLE IF NOT EXISTS ", "CREATE INDEX IF NOT EXISTS ",
+                new DbFtpAuthent.SqlTypes() {
+                    public String getType(int sqlType) {
+                        return DBType.getType(sqlType);
+                    }
+                });
+    }
+
     @Override
     public void createTables(DbSession session) throws WaarpDatabaseNoConnectionException {
         // Create tables: configuration, hosts, rules, runner, cptrunner
+        createAuthentTables(session);
         String createTableH2 = "CREATE TABLE IF NOT EXISTS ";
         String primaryKey = " PRIMARY KEY ";
         String notNull = " NOT NULL ";
@@ -60,7 +77,8 @@ public class DbModelH2 extends org.waarp.common.database.model.DbModelH2 {
         DbTransferLog.Columns[] acolumns = DbTransferLog.Columns.values();
         for (int i = 0; i < acolumns.length; i++) {
             action += acolumns[i].name() +
-                    DBType.getType(DbTransferLog.dbTypes[i]) + notNull + ", ";
+                    DBType.getType(DbTransferLog.dbTypes[i]) +
+                    (DbTransferLog.notNulls[i] ? notNull : "") + ", ";
         }
         // Several columns for primary key
         action += " CONSTRAINT TRANSLOG_PK " + primaryKey + "(";
@@ -183,13 +201,23 @@ public class DbModelH2 extends org.waarp.common.database.model.DbModelH2 {
     @Override
     public boolean upgradeDb(DbSession session, String version)
             throws WaarpDatabaseNoConnectionException {
+        createAuthentTables(session);
+        DbTransferLog.addDigestColumn(session, getDigestType());
         return true;
     }
 
     @Override
     public boolean needUpgradeDb(DbSession session, String version, boolean tryFix)
             throws WaarpDatabaseNoConnectionException {
-        return false;
+        return DbTransferLog.needUpgrade(session, getDigestType(), tryFix);
+    }
+
+    /**
+     * 
+     * @return the type of the DIGEST column of DbTransferLog
+     */
+    private static String getDigestType() {
+        return DBType.getType(DbTransferLog.dbTypes[DbTransferLog.Columns.DIGEST.ordinal()]);
     }
 
 }
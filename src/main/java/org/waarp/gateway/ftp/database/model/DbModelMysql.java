@@ -27,6 +27,7 @@ import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
 import org.waarp.gateway.ftp.database.DbConstant;
+import org.waarp.gateway.ftp.database.data.DbFtpAuthent;
 import org.waarp.gateway.ftp.database.data.DbTransferLog;
 
 /**
@@ -51,9 +52,25 @@ public class DbModelMysql extends org.waarp.common.database.model.DbModelMysql {
 
     private final ReentrantLock lock = new ReentrantLock();
 
+    /**
+     * Create the authentication tables (users and accounts) if they do not exist yet
+     * 
+     * @param session
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    private void createAuthentTables(DbSession session) throws WaarpDatabaseNoConnectionException {
+        DbFtpAuthent.createTables(session, "CREATE TABLE IF NOT EXISTS ", "CREATE INDEX ",
+                new DbFtpAuthent.SqlTypes() {
+                    public String getType(int sqlType) {
+                        return DBType.getType(sqlType);
+                    }
+                });
+    }
+
     @Override
     public void createTables(DbSession session) throws WaarpDatabaseNoConnectionException {
         // Create tables: configuration, hosts, rules, runner, cptrunner
+        createAuthentTables(session);
         String createTableH2 = "CREATE TABLE IF NOT EXISTS ";
         String primaryKey = " PRIMARY KEY ";
         String notNull = " NOT NULL ";
@@ -64,7 +81,8 @@ public class DbModelMysql extends org.waarp.common.database.model.DbModelMysql {
         DbTransferLog.Columns[] acolumns = DbTransferLog.Columns.values();
         for (int i = 0; i < acolumns.length; i++) {
             action += acolumns[i].name() +
-                    DBType.getType(DbTransferLog.dbTypes[i]) + notNull + ", ";
+                    DBType.getType(DbTransferLog.dbTypes[i]) +
+                    (DbTransferLog.notNulls[i] ? notNull : "") + ", ";
         }
         // Several columns for primary key
         action += " CONSTRAINT TRANSLOG_PK " + primaryKey + "(";
@@ -215,12 +233,22 @@ public class DbModelMysql extends org.waarp.common.database.model.DbModelMysql {
     @Override
     public boolean upgradeDb(DbSession session, String version)
             throws WaarpDatabaseNoConnectionException {
+        createAuthentTables(session);
+        DbTransferLog.addDigestColumn(session, getDigestType());
         return true;
     }
 
     @Override
     public boolean needUpgradeDb(DbSession session, String version, boolean tryFix)
             throws WaarpDatabaseNoConnectionException {
-        return false;
+        return DbTransferLog.needUpgrade(session, getDigestType(), tryFix);
+    }
+
+    /**
+     * 
+     * @return the type of the DIGEST column of DbTransferLog
+     */
+    private static String getDigestType() {
+        return DBType.getType(DbTransferLog.dbTypes[DbTransferLog.Columns.DIGEST.ordinal()]);
     }
 }
@@ -26,6 +26,7 @@ import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
 import org.waarp.gateway.ftp.database.DbConstant;
+import org.waarp.gateway.ftp.database.data.DbFtpAuthent;
 import org.waarp.gateway.ftp.database.data.DbTransferLog;
 
 /**
@@ -44,9 +45,25 @@ public class DbModelPostgresql extends org.waarp.common.database.model.DbModelPo
         super();
     }
 
+    /**
+     * Create the authentication tables (users and accounts) if they do not exist yet
+     * 
+     * @param session
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    private void createAuthentTables(DbSession session) throws WaarpDatabaseNoConnectionException {
+        DbFtpAuthent.createTables(session, "CREATE TABLE ", "CREATE INDEX ",
+                new DbFtpAuthent.SqlTypes() {
+                    public String getType(int sqlType) {
+                        return DBType.getType(sqlType);
+                    }
+                });
+    }
+
     @Override
     public void createTables(DbSession session) throws WaarpDatabaseNoConnectionException {
         // Create tables: configuration, hosts, rules, runner, cptrunner
+        createAuthentTables(session);
         String createTableH2 = "CREATE TABLE ";
         String primaryKey = " PRIMARY KEY ";
         String notNull = " NOT NULL ";
@@ -57,7 +74,8 @@ public class DbModelPostgresql extends org.waarp.common.database.model.DbModelPo
         DbTransferLog.Columns[] acolumns = DbTransferLog.Columns.values();
         for (int i = 0; i < acolumns.length; i++) {
             action += acolumns[i].name() +
-                    DBType.getType(DbTransferLog.dbTypes[i]) + notNull + ", ";
+                    DBType.getType(DbTransferLog.dbTypes[i]) +
+                    (DbTransferLog.notNulls[i] ? notNull : "") + ", ";
         }
         // Several columns for primary key
         action += " CONSTRAINT TRANSLOG_PK " + primaryKey + "(";
@@ -166,12 +184,22 @@ public class DbModelPostgresql extends org.waarp.common.database.model.DbModelPo
     @Override
     public boolean upgradeDb(DbSession session, String version)
             throws WaarpDatabaseNoConnectionException {
+        createAuthentTables(session);
+        DbTransferLog.addDigestColumn(session, getDigestType());
         return true;
     }
 
     @Override
     public boolean needUpgradeDb(DbSession session, String version, boolean tryFix)
             throws WaarpDatabaseNoConnectionException {
-        return false;
+        return DbTransferLog.needUpgrade(session, getDigestType(), tryFix);
+    }
+
+    /**
+     * 
+     * @return the type of the DIGEST column of DbTransferLog
+     */
+    private static String getDigestType() {
+        return DBType.getType(DbTransferLog.dbTypes[DbTransferLog.Columns.DIGEST.ordinal()]);
     }
 }
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.file;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.waarp.common.digest.FilesystemBasedDigest;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpStringUtils;
+
+/**
+ * Bounded cache of recently verified credentials, such that a slow password hash is only computed
+ * once per (user, password) while the entry is kept.<br>
+ * <br>
+ * Entries are keyed by an HMAC-SHA256 of the user and the password with a random key generated
+ * per process (so no password is kept in clear in memory) and refer to the SimpleAuth which
+ * validated them: an entry is only valid for the very same SimpleAuth, so that a reload which
+ * changes or removes a user invalidates its entries. The least recently used entries are evicted
+ * first.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class CredentialCache {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(CredentialCache.class);
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final int maxSize;
+    private final SecretKeySpec key;
+    private final Map<String, SimpleAuth> verified;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                logger.error("Cannot initialize credential cache digest", e);
+                return null;
+            }
+        }
+    };
+
+    /**
+     *
+     * @param maxSize
+     *            maximum number of verified credentials kept
+     */
+    public CredentialCache(int maxSize) {
+        this.maxSize = maxSize;
+        byte[] bkey = new byte[32];
+        new SecureRandom().nextBytes(bkey);
+        key = new SecretKeySpec(bkey, ALGORITHM);
+        verified = new LinkedHashMap<String, SimpleAuth>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SimpleAuth> eldest) {
+                return size() > CredentialCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     *
+     * @param user
+     * @param password
+     * @return the keyed digest of this credential, or null if it cannot be computed
+     */
+    private String digest(String user, String password) {
+        Mac mac = macs.get();
+        if (mac == null) {
+            return null;
+        }
+        mac.update(user.getBytes(WaarpStringUtils.UTF8));
+        mac.update((byte) 0);
+        return FilesystemBasedDigest.getHex(mac.doFinal(password.getBytes(WaarpStringUtils.UTF8)));
+    }
+
+    /**
+     *
+     * @param auth
+     * @param password
+     * @return True if this password was recently verified for this SimpleAuth
+     */
+    public boolean isVerified(SimpleAuth auth, String password) {
+        String digest = digest(auth.getUser(), password);
+        if (digest == null) {
+            return false;
+        }
+        synchronized (verified) {
+            return verified.get(digest) == auth;
+        }
+    }
+
+    /**
+     * Remember this password as verified for this SimpleAuth
+     *
+     * @param auth
+     * @param password
+     */
+    public void setVerified(SimpleAuth auth, String password) {
+        String digest = digest(auth.getUser(), password);
+        if (digest == null) {
+            return;
+        }
+        synchronized (verified) {
+            verified.put(digest, auth);
+        }
+    }
+
+    /**
+     * Invalidate all entries
+     */
+    public void clear() {
+        synchronized (verified) {
+            verified.clear();
+        }
+    }
+
+    /**
+     *
+     * @return the current number of entries
+     */
+    public int size() {
+        synchronized (verified) {
+            return verified.size();
+        }
+    }
+}
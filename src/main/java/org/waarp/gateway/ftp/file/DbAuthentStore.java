@@ -0,0 +1,421 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.file;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.gateway.ftp.database.data.DbFtpAuthent;
+
+/**
+ * Authentication store based on the database (see DbFtpAuthent).<br>
+ * <br>
+ * Lookups go through a bounded LRU cache of known users (with a time to live) and a bounded
+ * negative cache of unknown users (with its own, usually shorter, time to live), such that login
+ * storms or user name scans do not reach the database. Entries of changed users are invalidated
+ * as soon as their VERSION increases in the database, checked periodically. Each database lookup
+ * uses its own session, taken from a small set of idle sessions, such that concurrent logins do not
+ * wait for each other. The number of open sessions is bounded (a lookup waits for a free one for a
+ * while, then fails), and concurrent lookups of the same user share one database request.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class DbAuthentStore implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbAuthentStore.class);
+
+    /**
+     * Builder of SimpleAuth from the database definition
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static interface SimpleAuthFactory {
+        /**
+         *
+         * @param definition
+         * @param previous
+         *            the previous SimpleAuth for this user if any, to be reused if unchanged
+         * @return the SimpleAuth or null if the definition is not valid
+         */
+        public SimpleAuth getSimpleAuth(DbFtpAuthent definition, SimpleAuth previous);
+    }
+
+    /**
+     * Cached SimpleAuth with its expiration time
+     *
+     * @author Frederic Bregier
+     *
+     */
+    private static class CachedAuth {
+        private final SimpleAuth auth;
+        private final long expire;
+
+        private CachedAuth(SimpleAuth auth, long expire) {
+            this.auth = auth;
+            this.expire = expire;
+        }
+    }
+
+    private final DbAdmin admin;
+    private final SimpleAuthFactory factory;
+    private final long ttl;
+    private final long negativeTtl;
+    private final Map<String, CachedAuth> known;
+    private final Map<String, Long> unknown;
+    /**
+     * Lookup of one user in progress, shared by the concurrent logins of this user
+     *
+     * @author Frederic Bregier
+     *
+     */
+    private static class Lookup {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile SimpleAuth auth = null;
+    }
+
+    /**
+     * Maximum number of database sessions open for the lookups
+     */
+    private static final int MAX_SESSIONS = 8;
+    /**
+     * Time in ms a lookup waits for a database session or for the same lookup in progress
+     */
+    private static final long LOOKUP_TIMEOUT = 5000;
+    private final Semaphore sessionPermits = new Semaphore(MAX_SESSIONS);
+    private final LinkedList<DbSession> idleSessions = new LinkedList<DbSession>();
+    private final ConcurrentHashMap<String, Lookup> lookups =
+            new ConcurrentHashMap<String, Lookup>();
+    private boolean released = false;
+    private long lastVersion = -1;
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     *
+     * @param admin
+     *            the database
+     * @param factory
+     * @param maxSize
+     *            maximum number of users kept in each cache (known and unknown)
+     * @param ttl
+     *            time to live in ms of known users
+     * @param negativeTtl
+     *            time to live in ms of unknown users
+     */
+    public DbAuthentStore(DbAdmin admin, SimpleAuthFactory factory, final int maxSize,
+            long ttl, long negativeTtl) {
+        this.admin = admin;
+        this.factory = factory;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        known = new LinkedHashMap<String, CachedAuth>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedAuth> eldest) {
+                return size() > maxSize;
+            }
+        };
+        unknown = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Start the periodic check of the VERSION column
+     *
+     * @param delay
+     *            delay in ms between two checks
+     */
+    public void startVersionCheck(long delay) {
+        synchronized (this) {
+            DbSession session = null;
+            boolean valid = true;
+            try {
+                session = takeDbSession();
+                lastVersion = DbFtpAuthent.getMaxVersion(session);
+            } catch (WaarpDatabaseNoConnectionException e) {
+                logger.warn("Cannot get authentication version from database: " + e.getMessage());
+                valid = false;
+            } catch (WaarpDatabaseSqlException e) {
+                logger.warn("Cannot get authentication version from database: " + e.getMessage());
+            } finally {
+                releaseDbSession(session, valid);
+            }
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new WaarpThreadFactory("DbAuthentVersion"));
+        scheduler.scheduleWithFixedDelay(this, delay, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @return an idle database session, or a new one if none (waiting if MAX_SESSIONS are in use)
+     * @throws WaarpDatabaseNoConnectionException
+     *             if no session can be used
+     */
+    private DbSession takeDbSession() throws WaarpDatabaseNoConnectionException {
+        try {
+            if (!sessionPermits.tryAcquire(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new WaarpDatabaseNoConnectionException(
+                        "Too many authentication lookups in progress");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WaarpDatabaseNoConnectionException("Interrupted while waiting for a session");
+        }
+        synchronized (idleSessions) {
+            if (!idleSessions.isEmpty()) {
+                return idleSessions.removeFirst();
+            }
+        }
+        try {
+            return new DbSession(admin, true);
+        } catch (WaarpDatabaseNoConnectionException e) {
+            sessionPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a database session taken by takeDbSession
+     *
+     * @param session
+     *            (might be null)
+     * @param valid
+     *            False if the connection was lost, such that the session is closed
+     */
+    private void releaseDbSession(DbSession session, boolean valid) {
+        if (session == null) {
+            return;
+        }
+        try {
+            if (valid) {
+                synchronized (idleSessions) {
+                    if (!released) {
+                        idleSessions.addFirst(session);
+                        return;
+                    }
+                }
+            }
+            session.disconnect();
+        } finally {
+            sessionPermits.release();
+        }
+    }
+
+    /**
+     *
+     * @param user
+     * @return the SimpleAuth for this user or null if unknown
+     */
+    public SimpleAuth getSimpleAuth(String user) {
+        long now = System.currentTimeMillis();
+        SimpleAuth previous = null;
+        synchronized (known) {
+            CachedAuth cached = known.get(user);
+            if (cached != null) {
+                if (cached.expire > now) {
+                    return cached.auth;
+                }
+                previous = cached.auth;
+            }
+        }
+        synchronized (unknown) {
+            Long expire = unknown.get(user);
+            if (expire != null) {
+                if (expire.longValue() > now) {
+                    return null;
+                }
+                unknown.remove(user);
+            }
+        }
+        Lookup lookup = new Lookup();
+        Lookup running = lookups.putIfAbsent(user, lookup);
+        if (running != null) {
+            // same user already looked up: wait for its result
+            try {
+                if (!running.done.await(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return running.auth;
+        }
+        try {
+            lookup.auth = lookup(user, previous, now);
+        } finally {
+            lookups.remove(user, lookup);
+            lookup.done.countDown();
+        }
+        return lookup.auth;
+    }
+
+    /**
+     * Get the definition of this user from the database and update the caches
+     *
+     * @param user
+     * @param previous
+     *            the expired SimpleAuth of this user if any
+     * @param now
+     * @return the SimpleAuth for this user or null if unknown
+     */
+    private SimpleAuth lookup(String user, SimpleAuth previous, long now) {
+        DbFtpAuthent definition;
+        DbSession session = null;
+        boolean valid = true;
+        try {
+            session = takeDbSession();
+            definition = DbFtpAuthent.getFromDb(session, user);
+        } catch (WaarpDatabaseNoConnectionException e) {
+            logger.warn("Cannot get authentication from database: " + e.getMessage());
+            valid = false;
+            return null;
+        } catch (WaarpDatabaseSqlException e) {
+            logger.warn("Cannot get authentication from database: " + e.getMessage());
+            return null;
+        } finally {
+            releaseDbSession(session, valid);
+        }
+        SimpleAuth auth = null;
+        if (definition != null) {
+            auth = factory.getSimpleAuth(definition, previous);
+        }
+        if (auth == null) {
+            synchronized (known) {
+                known.remove(user);
+            }
+            synchronized (unknown) {
+                unknown.put(user, now + negativeTtl);
+            }
+            return null;
+        }
+        synchronized (known) {
+            known.put(user, new CachedAuth(auth, now + ttl));
+        }
+        return auth;
+    }
+
+    /**
+     * Invalidate the cached entries of this user
+     *
+     * @param user
+     */
+    public void invalidate(String user) {
+        synchronized (known) {
+            known.remove(user);
+        }
+        synchronized (unknown) {
+            unknown.remove(user);
+        }
+    }
+
+    /**
+     * Invalidate all cached entries
+     */
+    public void clear() {
+        synchronized (known) {
+            known.clear();
+        }
+        synchronized (unknown) {
+            unknown.clear();
+        }
+    }
+
+    /**
+     * Check the VERSION column and invalidate the changed users
+     */
+    public void run() {
+        List<String> users;
+        long maxVersion;
+        synchronized (this) {
+            DbSession session = null;
+            boolean valid = true;
+            try {
+                session = takeDbSession();
+                maxVersion = DbFtpAuthent.getMaxVersion(session);
+                if (maxVersion == lastVersion) {
+                    return;
+                }
+                if (maxVersion < lastVersion || lastVersion < 0) {
+                    // versions were reset or unknown: invalidate everything
+                    lastVersion = maxVersion;
+                    clear();
+                    return;
+                }
+                users = DbFtpAuthent.getUpdatedUsers(session, lastVersion);
+            } catch (WaarpDatabaseNoConnectionException e) {
+                logger.warn("Cannot get authentication version from database: " + e.getMessage());
+                valid = false;
+                return;
+            } catch (WaarpDatabaseSqlException e) {
+                logger.warn("Cannot get authentication version from database: " + e.getMessage());
+                return;
+            } finally {
+                releaseDbSession(session, valid);
+            }
+            lastVersion = maxVersion;
+        }
+        logger.info("Authentications changed in database: " + users.size());
+        for (String user : users) {
+            invalidate(user);
+        }
+    }
+
+    /**
+     * Stop the version check and release the database sessions
+     */
+    public void release() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        synchronized (idleSessions) {
+            released = true;
+            for (DbSession session : idleSessions) {
+                session.disconnect();
+            }
+            idleSessions.clear();
+        }
+        clear();
+    }
+}
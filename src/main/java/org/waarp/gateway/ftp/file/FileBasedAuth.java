@@ -167,14 +167,39 @@ public class FileBasedAuth extends FilesystemBasedFtpAuth implements HttpAuthInt
             path = FtpDir.SEPARATOR + user + FtpDir.SEPARATOR +
                     account;
         }
+        if (currentAuth != null && currentAuth.isRootValidated(path)) {
+            return path;
+        }
         String fullpath = getAbsolutePath(path);
         File file = new File(fullpath);
         if (!file.isDirectory()) {
-            throw new Reply421Exception("Filesystem not ready");
+            // home directories are created on first login
+            file.mkdirs();
+            if (!file.isDirectory()) {
+                throw new Reply421Exception("Filesystem not ready");
+            }
+        }
+        if (currentAuth != null) {
+            currentAuth.setRootValidated(path);
         }
         return path;
     }
 
+    /**
+     * Forget the home directory of the current user and account as validated, such that it will be
+     * checked again on next login (to be called on filesystem errors)
+     */
+    public void invalidateBusinessRoot() {
+        if (currentAuth == null || user == null) {
+            return;
+        }
+        if (account == null) {
+            currentAuth.invalidateRoot(FtpDir.SEPARATOR + user);
+        } else {
+            currentAuth.invalidateRoot(FtpDir.SEPARATOR + user + FtpDir.SEPARATOR + account);
+        }
+    }
+
     public boolean isAdmin() {
         if (currentAuth == null)
             return false;
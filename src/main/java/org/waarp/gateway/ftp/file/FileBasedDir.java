@@ -16,13 +16,22 @@
  */
 package org.waarp.gateway.ftp.file;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply550Exception;
 import org.waarp.ftp.core.file.FtpFile;
 import org.waarp.ftp.core.session.FtpSession;
 import org.waarp.ftp.filesystembased.FilesystemBasedFtpDir;
+import org.waarp.gateway.ftp.config.FileBasedConfiguration;
+import org.waarp.gateway.ftp.file.StreamDigest.Algorithm;
 
 /**
- * FtpFile implementation based on true directories and files
+ * FtpFile implementation based on true directories and files<br>
+ * <br>
+ * Digests of files are taken from the ones computed during their upload (see StreamDigest) while
+ * the files are unchanged, and are computed by reading the file otherwise.
  * 
  * @author Frederic Bregier
  * 
@@ -39,4 +48,73 @@ public class FileBasedDir extends FilesystemBasedFtpDir {
             throws CommandAbstractException {
         return new FileBasedFile((FtpSession) getSession(), this, path, append);
     }
+
+    @Override
+    public long getCRC(String path) throws CommandAbstractException {
+        File file = getFileFromPath(path);
+        byte[] value = StreamDigest.getCached(file, Algorithm.CRC32);
+        if (value != null) {
+            return StreamDigest.getCrc(value);
+        }
+        return super.getCRC(path);
+    }
+
+    @Override
+    public byte[] getMD5(String path) throws CommandAbstractException {
+        File file = getFileFromPath(path);
+        byte[] value = StreamDigest.getCached(file, Algorithm.MD5);
+        if (value != null) {
+            return value;
+        }
+        return super.getMD5(path);
+    }
+
+    /**
+     * 
+     * @param path
+     * @return the SHA-256 digest of the file
+     * @throws CommandAbstractException
+     */
+    public byte[] getSHA256(String path) throws CommandAbstractException {
+        File file = getFileFromPath(path);
+        if (!file.isFile() || !file.canRead()) {
+            throw new Reply550Exception("File not found: " + path);
+        }
+        byte[] value = StreamDigest.getCached(file, Algorithm.SHA256);
+        if (value != null) {
+            return value;
+        }
+        try {
+            return StreamDigest.compute(file, Algorithm.SHA256);
+        } catch (IOException e) {
+            throw new Reply550Exception("Error while reading the file: " + path);
+        }
+    }
+
+    /**
+     * 
+     * @param path
+     * @return the verified resume point of the incomplete upload of this file
+     * @throws CommandAbstractException
+     *             if the file has no restart journal
+     */
+    public long getResumePoint(String path) throws CommandAbstractException {
+        if (FileBasedConfiguration.fileBasedConfiguration.restartJournalBlock <= 0) {
+            throw new Reply550Exception("No restart journal");
+        }
+        File file = getFileFromPath(path);
+        if (!file.isFile()) {
+            throw new Reply550Exception("File not found: " + path);
+        }
+        long verified;
+        try {
+            verified = RestartJournal.verify(file);
+        } catch (IOException e) {
+            throw new Reply550Exception("Error while reading the restart journal of: " + path);
+        }
+        if (verified < 0) {
+            throw new Reply550Exception("No restart journal for: " + path);
+        }
+        return verified;
+    }
 }
@@ -16,20 +16,159 @@
  */
 package org.waarp.gateway.ftp.file;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply451Exception;
+import org.waarp.common.command.exception.Reply452Exception;
+import org.waarp.common.command.exception.Reply501Exception;
+import org.waarp.common.exception.FileEndOfTransferException;
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
+import org.waarp.ftp.core.data.FtpDataAsyncConn;
+import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.file.FtpFile;
 import org.waarp.ftp.core.session.FtpSession;
 import org.waarp.ftp.filesystembased.FilesystemBasedFtpFile;
+import org.waarp.gateway.ftp.config.FileBasedConfiguration;
+import org.waarp.gateway.ftp.control.ExecBusinessHandler;
+import org.waarp.gateway.ftp.control.FtpEventRecorder;
+import org.waarp.gateway.ftp.control.FtpEventRecorder.EventType;
+import org.waarp.gateway.ftp.control.FtpSessionRegistry.SessionInfo;
+import org.waarp.gateway.ftp.file.StreamDigest.Algorithm;
 
 /**
- * FtpFile implementation based on true directories and files
+ * FtpFile implementation based on true directories and files<br>
+ * <br>
+ * RETR is sent by zero-copy (sendfile through a FileRegion) when the data connection is not
+ * encrypted, in binary stream mode with file structure and without bandwidth limitation; otherwise
+ * the file is read by blocks as usual.<br>
+ * <br>
+ * When a store buffer size is configured, STOR blocks are coalesced into a pooled direct buffer
+ * and written by large writes, with the configured durability policy (see StoreSync) and the write
+ * latency of each upload measured. With this write path, when the size of the upload was announced
+ * by ALLO, the file is pre-allocated (see Preallocation) before the transfer starts, answering 452
+ * if the disk cannot hold it, and truncated to the written size at the end.<br>
+ * <br>
+ * When a store digest is configured, the digest of a complete upload (not restarted) is computed
+ * as the blocks are written (see StreamDigest) and given to the post-upload command.<br>
+ * <br>
+ * When a restart journal block size is configured, the CRC32 of each block of a STOR is written in
+ * a journal (see RestartJournal) while the upload is incomplete: a restarted STOR is then refused
+ * if its position is beyond the verified resume point of the file. The journal is removed when the
+ * file is deleted or appended, and follows the file when it is renamed.
  * 
  * @author Frederic Bregier
  * 
  */
 public class FileBasedFile extends FilesystemBasedFtpFile {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FileBasedFile.class);
+
+    /**
+     * Durability policy of the uploaded files (when a store buffer is used)
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static enum StoreSync {
+        /**
+         * No explicit sync (the system writes back when it wants)
+         */
+        NONE,
+        /**
+         * Sync once when the file is closed
+         */
+        CLOSE,
+        /**
+         * Sync every storesyncsize MB and when the file is closed
+         */
+        PERIODIC;
+    }
+
+    /**
+     * Pre-allocation mode of the uploaded files when their size is announced
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static enum Preallocation {
+        /**
+         * No pre-allocation
+         */
+        NONE,
+        /**
+         * Extend the file to its final length (sparse file on most file systems)
+         */
+        EXTEND,
+        /**
+         * Allocate every block of the file (as posix_fallocate emulation does)
+         */
+        FULL;
+    }
+
+    /**
+     * Block size used for the full pre-allocation
+     */
+    private static final int ALLOCATION_BLOCK = 4096;
+
+    private final FtpSession ftpSession;
+    private final boolean append;
+    private final ReentrantLock zeroCopyLock = new ReentrantLock();
+    /**
+     * Bytes written or read by the transfer of this file (not the file length: a restarted or
+     * appended upload only counts its own bytes)
+     */
+    private final AtomicLong transferred = new AtomicLong(0);
+
+    /**
+     * Write path of STOR when a store buffer is used (all under storeLock)
+     */
+    private final Object storeLock = new Object();
+    private ByteBuf storeBuffer = null;
+    private FileChannel storeChannel = null;
+    private String storePath = null;
+    private long unsyncedBytes = 0;
+    private long storeWrites = 0;
+    private long storeWriteTime = 0;
+    private long storeMaxWriteTime = 0;
+    private long storeSyncTime = 0;
+    private boolean preallocated = false;
+    /**
+     * Digest of the current upload (null if none or no more possible)
+     */
+    private StreamDigest streamDigest = null;
+    private boolean digestChecked = false;
+    private String digestResult = null;
+    /**
+     * Restart journal of the current upload (null if none)
+     */
+    private RestartJournal journal = null;
+
     /**
      * @param session
      * @param fileBasedDir
@@ -41,6 +180,562 @@ public class FileBasedFile extends FilesystemBasedFtpFile {
     public FileBasedFile(FtpSession session, FileBasedDir fileBasedDir,
             String path, boolean append) throws CommandAbstractException {
         super(session, fileBasedDir, path, append);
+        this.ftpSession = session;
+        this.append = append;
+    }
+
+    /**
+     * 
+     * @return the number of bytes written or read by the transfer of this file
+     */
+    public long getTransferred() {
+        return transferred.get();
+    }
+
+    @Override
+    public DataBlock readDataBlock() throws FileTransferException, FileEndOfTransferException {
+        DataBlock dataBlock = super.readDataBlock();
+        if (dataBlock != null) {
+            transferred.addAndGet(dataBlock.getByteCount());
+        }
+        return dataBlock;
+    }
+
+    @Override
+    public void writeDataBlock(DataBlock dataBlock) throws FileTransferException {
+        int bufferSize = FileBasedConfiguration.fileBasedConfiguration.storeBufferSize;
+        if (bufferSize <= 0) {
+            ByteBuf block = dataBlock.getBlock();
+            if (isReady && block != null) {
+                transferred.addAndGet(block.readableBytes());
+                synchronized (storeLock) {
+                    if (!digestChecked) {
+                        File file = getTrueFile();
+                        startDigest(append ? (file != null ? file.length() : -1) : position);
+                    }
+                    if (streamDigest != null) {
+                        streamDigest.update(block, block.readerIndex(), block.readableBytes());
+                    }
+                    updateJournal(block, block.readerIndex(), block.readableBytes());
+                }
+            }
+            super.writeDataBlock(dataBlock);
+            return;
+        }
+        if (!isReady) {
+            throw new FileTransferException("No file is ready");
+        }
+        ByteBuf block = dataBlock.getBlock();
+        synchronized (storeLock) {
+            try {
+                if (storeChannel == null) {
+                    openStore();
+                }
+                if (block != null) {
+                    transferred.addAndGet(block.readableBytes());
+                    if (storeBuffer == null) {
+                        storeBuffer = PooledByteBufAllocator.DEFAULT.directBuffer(bufferSize,
+                                bufferSize);
+                    }
+                    while (block.isReadable()) {
+                        storeBuffer.writeBytes(block,
+                                Math.min(block.readableBytes(), storeBuffer.writableBytes()));
+                        if (!storeBuffer.isWritable()) {
+                            flushStore();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                releaseStore();
+                throw new FileTransferException("Cannot write file: " + e.getMessage());
+            } finally {
+                if (block != null) {
+                    block.release();
+                }
+            }
+        }
+        if (dataBlock.isEOF()) {
+            try {
+                closeFile();
+            } catch (CommandAbstractException e) {
+                throw new FileTransferException("Cannot close file: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public boolean store() throws CommandAbstractException {
+        boolean ready = super.store();
+        if (ready && getTrueFile() != null) {
+            // the file is going to change: its known digest must not be used anymore
+            StreamDigest.invalidate(getTrueFile());
+        }
+        int journalBlock = FileBasedConfiguration.fileBasedConfiguration.restartJournalBlock;
+        if (ready && journalBlock > 0 && !append) {
+            synchronized (storeLock) {
+                openJournal(journalBlock);
+            }
+        } else if (ready && append) {
+            // the journal does not describe an appended file
+            File file = getTrueFile();
+            if (file != null) {
+                RestartJournal.delete(file);
+            }
+        }
+        long size = 0;
+        if (ftpSession.getBusinessHandler() instanceof ExecBusinessHandler) {
+            size = ((ExecBusinessHandler) ftpSession.getBusinessHandler()).getAndResetAllocation();
+        }
+        FileBasedConfiguration config = FileBasedConfiguration.fileBasedConfiguration;
+        if (!ready || size <= 0 || config.preallocation == Preallocation.NONE ||
+                config.storeBufferSize <= 0) {
+            return ready;
+        }
+        synchronized (storeLock) {
+            try {
+                if (storeChannel == null) {
+                    openStore();
+                }
+                // ALLO announces the size of the whole file, restarted or not
+                preallocate(Math.max(size, position), config.preallocation);
+            } catch (IOException e) {
+                logger.warn("Cannot allocate " + size + " bytes for " + storePath + ": " +
+                        e.getMessage());
+                releaseStore();
+                throw new Reply452Exception("Insufficient storage space");
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Check the restart position against the journal and open the journal (under storeLock)
+     * 
+     * @param blockSize
+     * @throws CommandAbstractException
+     *             if the position is beyond the verified resume point
+     */
+    private void openJournal(int blockSize) throws CommandAbstractException {
+        File file = getTrueFile();
+        if (file == null) {
+            return;
+        }
+        try {
+            if (position > 0) {
+                long verified = RestartJournal.verify(file);
+                if (verified < 0) {
+                    // no journal: the position is trusted as is and not journaled
+                    return;
+                }
+                if (position > verified) {
+                    // a journal of another block size verifies nothing: the upload restarts from 0
+                    closeFile();
+                    throw new Reply501Exception("Restart position " + position +
+                            " is beyond the verified resume point " + verified);
+                }
+            }
+            journal = RestartJournal.open(file, blockSize, position);
+        } catch (IOException e) {
+            logger.warn("Cannot use the restart journal of " + file.getPath() + ": " +
+                    e.getMessage());
+            journal = null;
+        }
+    }
+
+    /**
+     * Add the written bytes to the journal (under storeLock), dropped if it cannot be written
+     * 
+     * @param buffer
+     * @param index
+     * @param length
+     */
+    private void updateJournal(ByteBuf buffer, int index, int length) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.update(buffer, index, length);
+        } catch (IOException e) {
+            logger.warn("Cannot write the restart journal: " + e.getMessage());
+            journal.delete();
+            journal = null;
+        }
+    }
+
+    /**
+     * Close the journal (under storeLock)
+     * 
+     * @param complete
+     *            True if the upload is complete, such that the journal is removed
+     */
+    private void closeJournal(boolean complete) {
+        if (journal == null) {
+            return;
+        }
+        if (complete) {
+            journal.delete();
+        } else {
+            journal.close();
+        }
+        journal = null;
+    }
+
+    /**
+     * Pre-allocate the file up to this length (the channel position is not changed)
+     * 
+     * @param length
+     * @param mode
+     * @throws IOException
+     */
+    private void preallocate(long length, Preallocation mode) throws IOException {
+        long current = storeChannel.size();
+        if (length <= current) {
+            return;
+        }
+        long start = System.nanoTime();
+        preallocated = true;
+        ByteBuffer zero = ByteBuffer.allocate(1);
+        if (mode == Preallocation.FULL) {
+            // one byte per block forces the allocation of each block
+            long offset = ((current + ALLOCATION_BLOCK - 1) / ALLOCATION_BLOCK) * ALLOCATION_BLOCK;
+            for (; offset < length - 1; offset += ALLOCATION_BLOCK) {
+                zero.clear();
+                storeChannel.write(zero, offset);
+            }
+        }
+        zero.clear();
+        storeChannel.write(zero, length - 1);
+        logger.debug("Pre-allocated {} up to {} bytes in {}us", storePath, length,
+                (System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Open the file for the coalesced writes, at the end if append, else at the restart position
+     * 
+     * @throws IOException
+     */
+    private void openStore() throws IOException {
+        File file = getTrueFile();
+        if (file == null) {
+            throw new IOException("No file");
+        }
+        storePath = file.getPath();
+        storeChannel = new RandomAccessFile(file, "rw").getChannel();
+        if (append) {
+            position = storeChannel.size();
+        } else {
+            storeChannel.truncate(position);
+        }
+        storeChannel.position(position);
+        if (!digestChecked) {
+            startDigest(position);
+        }
+    }
+
+    /**
+     * Start the digest of this upload if configured and if the upload starts at the beginning of
+     * the file (under storeLock)
+     * 
+     * @param start
+     *            position of the first written byte
+     */
+    private void startDigest(long start) {
+        digestChecked = true;
+        Algorithm algorithm = FileBasedConfiguration.fileBasedConfiguration.storeDigest;
+        if (algorithm == Algorithm.NONE || start != 0) {
+            // restarted or appended upload: the digest would not be the one of the file
+            return;
+        }
+        try {
+            streamDigest = new StreamDigest(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("Digest not available: " + algorithm.name());
+        }
+    }
+
+    /**
+     * Finish the digest of this upload and keep it for the file (under storeLock)
+     */
+    private void finishDigest() {
+        if (streamDigest == null) {
+            return;
+        }
+        byte[] value = streamDigest.finish();
+        Algorithm algorithm = streamDigest.getAlgorithm();
+        streamDigest = null;
+        digestResult = algorithm.name() + ":" + StreamDigest.getHex(value);
+        File file = getTrueFile();
+        if (file != null) {
+            StreamDigest.put(file, algorithm, value);
+        }
+    }
+
+    /**
+     * 
+     * @return the digest of the upload as ALGORITHM:hexvalue, or null if not computed
+     */
+    public String getDigest() {
+        synchronized (storeLock) {
+            return digestResult;
+        }
+    }
+
+    /**
+     * Write the coalesced buffer to the file (and sync if periodic sync is due)
+     * 
+     * @throws IOException
+     */
+    private void flushStore() throws IOException {
+        int length = storeBuffer.readableBytes();
+        if (length == 0) {
+            return;
+        }
+        if (streamDigest != null) {
+            streamDigest.update(storeBuffer, storeBuffer.readerIndex(), length);
+        }
+        long record = FtpEventRecorder.begin();
+        long start = System.nanoTime();
+        ByteBuffer buffer = storeBuffer.nioBuffer();
+        while (buffer.hasRemaining()) {
+            storeChannel.write(buffer);
+        }
+        // only written data is journaled
+        updateJournal(storeBuffer, storeBuffer.readerIndex(), length);
+        storeBuffer.clear();
+        position += length;
+        unsyncedBytes += length;
+        FileBasedConfiguration config = FileBasedConfiguration.fileBasedConfiguration;
+        if (config.storeSync == StoreSync.PERIODIC &&
+                unsyncedBytes >= config.storeSyncSize * 1048576L) {
+            syncStore();
+        }
+        long duration = System.nanoTime() - start;
+        storeWrites++;
+        storeWriteTime += duration;
+        if (duration > storeMaxWriteTime) {
+            storeMaxWriteTime = duration;
+        }
+        FtpEventRecorder.end(record, EventType.FILEWRITE, "write", storePath, length, true);
+    }
+
+    private void syncStore() throws IOException {
+        long start = System.nanoTime();
+        storeChannel.force(false);
+        storeSyncTime += System.nanoTime() - start;
+        unsyncedBytes = 0;
+    }
+
+    /**
+     * Release the buffer and the file of the coalesced writes (a pre-allocated file being
+     * truncated to the written size)
+     */
+    private void releaseStore() {
+        if (storeBuffer != null) {
+            storeBuffer.release();
+            storeBuffer = null;
+        }
+        if (storeChannel != null) {
+            if (preallocated) {
+                try {
+                    storeChannel.truncate(position);
+                } catch (IOException e) {
+                    logger.warn("Cannot truncate pre-allocated file " + storePath + ": " +
+                            e.getMessage());
+                }
+                preallocated = false;
+            }
+            try {
+                storeChannel.close();
+            } catch (IOException e) {
+            }
+            storeChannel = null;
+        }
+    }
+
+    @Override
+    public boolean closeFile() throws CommandAbstractException {
+        synchronized (storeLock) {
+            if (storeChannel != null) {
+                try {
+                    if (storeBuffer != null) {
+                        flushStore();
+                    }
+                    if (preallocated) {
+                        storeChannel.truncate(position);
+                        preallocated = false;
+                    }
+                    if (FileBasedConfiguration.fileBasedConfiguration.storeSync != StoreSync.NONE &&
+                            unsyncedBytes > 0) {
+                        syncStore();
+                    }
+                } catch (IOException e) {
+                    logger.warn("Cannot write file " + storePath + ": " + e.getMessage());
+                    streamDigest = null;
+                    closeJournal(false);
+                    releaseStore();
+                    super.closeFile();
+                    throw new Reply451Exception("Cannot write file");
+                }
+                if (storeWrites > 0) {
+                    logger.debug("Upload {} written in {} writes, avg {}us max {}us, sync {}us",
+                            storePath, storeWrites, storeWriteTime / storeWrites / 1000,
+                            storeMaxWriteTime / 1000, storeSyncTime / 1000);
+                }
+                releaseStore();
+            }
+        }
+        boolean closed = super.closeFile();
+        synchronized (storeLock) {
+            finishDigest();
+            closeJournal(true);
+        }
+        return closed;
+    }
+
+    @Override
+    public boolean abortFile() throws CommandAbstractException {
+        synchronized (storeLock) {
+            streamDigest = null;
+            closeJournal(false);
+            releaseStore();
+        }
+        boolean aborted = super.abortFile();
+        File file = getTrueFile();
+        if (file != null && !file.exists()) {
+            // deleted on abort
+            RestartJournal.delete(file);
+        }
+        return aborted;
+    }
+
+    @Override
+    public boolean delete() throws CommandAbstractException {
+        File file = getTrueFile();
+        boolean deleted = super.delete();
+        if (deleted && file != null) {
+            StreamDigest.invalidate(file);
+            RestartJournal.delete(file);
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean renameTo(String path) throws CommandAbstractException {
+        File from = getTrueFile();
+        boolean renamed = super.renameTo(path);
+        if (renamed && from != null) {
+            File to = getTrueFile();
+            if (to != null && !to.getAbsolutePath().equals(from.getAbsolutePath())) {
+                StreamDigest.invalidate(from);
+                StreamDigest.invalidate(to);
+                RestartJournal.move(from, to);
+            }
+        }
+        return renamed;
+    }
+
+    /**
+     * 
+     * @param channel
+     *            the data channel
+     * @return True if the file can be sent by zero-copy on this data channel
+     */
+    private boolean isZeroCopyPossible(Channel channel) {
+        if (!FileBasedConfiguration.fileBasedConfiguration.zeroCopyRetrieve) {
+            return false;
+        }
+        FtpDataAsyncConn dataConn = ftpSession.getDataConn();
+        if (dataConn.getType() != TransferType.IMAGE ||
+                dataConn.getMode() != TransferMode.STREAM ||
+                dataConn.getStructure() != TransferStructure.FILE) {
+            // data must go through the codecs
+            return false;
+        }
+        if (channel.pipeline().get(SslHandler.class) != null) {
+            return false;
+        }
+        // traffic shaping does not apply to FileRegion
+        ChannelTrafficShapingHandler channelHandler =
+                channel.pipeline().get(ChannelTrafficShapingHandler.class);
+        if (channelHandler != null && channelHandler.getWriteLimit() > 0) {
+            return false;
+        }
+        GlobalTrafficShapingHandler globalHandler =
+                FileBasedConfiguration.fileBasedConfiguration.getFtpInternalConfiguration()
+                        .getGlobalTrafficShapingHandler();
+        return globalHandler == null || globalHandler.getWriteLimit() == 0;
+    }
+
+    @Override
+    public void trueRetrieve() {
+        if (!FileBasedConfiguration.fileBasedConfiguration.zeroCopyRetrieve || !isReady) {
+            super.trueRetrieve();
+            return;
+        }
+        FtpDataAsyncConn dataConn = ftpSession.getDataConn();
+        try {
+            dataConn.getFtpTransferControl().waitForDataNetworkHandlerReady();
+        } catch (InterruptedException e) {
+            logger.warn("DataNetworkHandler was not ready", e);
+            return;
+        }
+        Channel channel;
+        try {
+            channel = dataConn.getCurrentDataChannel();
+        } catch (FtpNoConnectionException e) {
+            // let the standard retrieve handle it
+            super.trueRetrieve();
+            return;
+        }
+        if (!isZeroCopyPossible(channel)) {
+            super.trueRetrieve();
+            return;
+        }
+        zeroCopyLock.lock();
+        try {
+            File file = getTrueFile();
+            if (file == null) {
+                dataConn.getFtpTransferControl().setTransferAbortedFromInternal(true);
+                return;
+            }
+            long start = position;
+            long count = file.length() - start;
+            ChannelFuture future;
+            if (count > 0) {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                // the region closes the file once sent or released
+                future = channel.writeAndFlush(new DefaultFileRegion(raf.getChannel(), start,
+                        count));
+            } else {
+                count = 0;
+                future = channel.newSucceededFuture();
+            }
+            future.awaitUninterruptibly();
+            closeFile();
+            if (future.isSuccess()) {
+                position = start + count;
+                transferred.addAndGet(count);
+                if (ftpSession.getBusinessHandler() instanceof ExecBusinessHandler) {
+                    SessionInfo info = ((ExecBusinessHandler) ftpSession.getBusinessHandler())
+                            .getSessionInfo();
+                    if (info != null) {
+                        info.addBytes(count);
+                    }
+                }
+                dataConn.getFtpTransferControl().setPreEndOfTransfer();
+            } else {
+                logger.debug("Zero-copy retrieve failed", future.cause());
+                dataConn.getFtpTransferControl().setTransferAbortedFromInternal(true);
+            }
+        } catch (IOException e) {
+            logger.warn("Zero-copy retrieve failed: " + e.getMessage());
+            dataConn.getFtpTransferControl().setTransferAbortedFromInternal(true);
+        } catch (CommandAbstractException e) {
+            logger.warn("Zero-copy retrieve failed: " + e.getMessage());
+            dataConn.getFtpTransferControl().setTransferAbortedFromInternal(true);
+        } finally {
+            zeroCopyLock.unlock();
+        }
     }
 
     /**
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.file;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.waarp.common.digest.FilesystemBasedDigest;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Salted slow hash of passwords (PBKDF2 with HMAC-SHA1) as stored in the "passwdhash" element of
+ * the authentication file.<br>
+ * <br>
+ * Format: {PBKDF2}iterations$salt$hash with salt and hash in hexadecimal.<br>
+ * <br>
+ * The main method produces the hash of the given password(s), to be copied into the
+ * authentication file.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class PasswordHash {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(PasswordHash.class);
+
+    /**
+     * Prefix of the hashed password
+     */
+    public static final String PREFIX = "{PBKDF2}";
+    /**
+     * Default number of iterations
+     */
+    public static final int DEFAULT_ITERATIONS = 20000;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 20;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private PasswordHash() {
+    }
+
+    /**
+     *
+     * @param password
+     * @param iterations
+     * @return the hashed password in the stored format
+     * @throws GeneralSecurityException
+     */
+    public static String hash(String password, int iterations)
+            throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] hash = pbkdf2(password.toCharArray(), salt, iterations, HASH_LENGTH);
+        return PREFIX + iterations + '$' + FilesystemBasedDigest.getHex(salt) + '$' +
+                FilesystemBasedDigest.getHex(hash);
+    }
+
+    /**
+     *
+     * @param stored
+     * @return True if the stored value has a valid hashed password format
+     */
+    public static boolean isValidFormat(String stored) {
+        if (stored == null || !stored.startsWith(PREFIX)) {
+            return false;
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3 || !isHex(parts[1]) || !isHex(parts[2])) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(parts[0]) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param value
+     * @return True if the value is a non empty sequence of hexadecimal bytes
+     */
+    private static boolean isHex(String value) {
+        if (value.length() == 0 || value.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verify the password against the stored hash (slow by design)
+     *
+     * @param password
+     * @param stored
+     * @return True if the password matches the stored hash
+     */
+    public static boolean verify(String password, String stored) {
+        if (password == null || !isValidFormat(stored)) {
+            return false;
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        byte[] expected;
+        byte[] hash;
+        try {
+            int iterations = Integer.parseInt(parts[0]);
+            byte[] salt = FilesystemBasedDigest.getFromHex(parts[1]);
+            expected = FilesystemBasedDigest.getFromHex(parts[2]);
+            hash = pbkdf2(password.toCharArray(), salt, iterations, expected.length);
+        } catch (GeneralSecurityException e) {
+            logger.error("Cannot compute password hash", e);
+            return false;
+        } catch (RuntimeException e) {
+            // invalid stored value: the login fails
+            logger.error("Invalid password hash", e);
+            return false;
+        }
+        // constant time comparison
+        int diff = hash.length ^ expected.length;
+        for (int i = 0; i < hash.length && i < expected.length; i++) {
+            diff |= hash[i] ^ expected[i];
+        }
+        return diff == 0;
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations, int length)
+            throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Print the hashed form of the given passwords
+     *
+     * @param args
+     *            [-iter iterations] password [password...]
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: " + PasswordHash.class.getName() +
+                    " [-iter iterations] password [password...]");
+            System.exit(1);
+            return;
+        }
+        int iterations = DEFAULT_ITERATIONS;
+        int first = 0;
+        if (args[0].equalsIgnoreCase("-iter") && args.length > 2) {
+            iterations = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        for (int i = first; i < args.length; i++) {
+            try {
+                System.out.println(hash(args[i], iterations));
+            } catch (GeneralSecurityException e) {
+                System.err.println("Cannot hash password: " + e.getMessage());
+                System.exit(2);
+            }
+        }
+    }
+}
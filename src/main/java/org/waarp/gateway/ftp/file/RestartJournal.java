@@ -0,0 +1,340 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.file;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import org.waarp.gateway.ftp.config.FileBasedConfiguration;
+
+/**
+ * Restart journal of an upload: a file with the CRC32 of each complete block of the uploaded file,
+ * written as the blocks are written.<br>
+ * <br>
+ * Journals are kept out of the user directories, in the restart journal directory, named by the
+ * MD5 of the path of the uploaded file: users cannot list, read or forge them. Format: magic (int),
+ * block size (int), then one CRC32 (int) per block. A journal whose block size is not the
+ * configured one verifies nothing (resume point 0), such that the upload restarts from the beginning
+ * with a new journal. While the upload is incomplete, the resume point is the end of the
+ * last block whose data matches its CRC32: only the last blocks are read to check it, such that a
+ * resume is verified without reading the whole file. The journal is removed when the upload
+ * completes or the file is deleted or appended, and follows the file when it is renamed.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class RestartJournal {
+    /**
+     * Extension of the journal files
+     */
+    public static final String EXTENSION = ".journal";
+    /**
+     * Maximum block size (64 MB)
+     */
+    public static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+    private static final int MAGIC = 0x57474A01;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 4;
+    /**
+     * Number of last blocks checked before the journal is considered as not reliable
+     */
+    private static final int MAX_CHECKED_BLOCKS = 4;
+    private static final int COPY_SIZE = 65536;
+
+    private final File journalFile;
+    private final FileChannel channel;
+    private final int blockSize;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private byte[] scratch = null;
+    /**
+     * Number of complete blocks recorded
+     */
+    private long blocks = 0;
+    /**
+     * Bytes of the current block already in the CRC
+     */
+    private int inBlock = 0;
+
+    private RestartJournal(File journalFile, int blockSize) throws IOException {
+        this.journalFile = journalFile;
+        this.blockSize = blockSize;
+        this.channel = new RandomAccessFile(journalFile, "rw").getChannel();
+    }
+
+    /**
+     *
+     * @return the directory of the journals: the configured one, else a directory next to the
+     *         FTP home (never inside a user directory)
+     */
+    private static File getJournalDirectory() {
+        FileBasedConfiguration config = FileBasedConfiguration.fileBasedConfiguration;
+        if (config.restartJournalPath != null) {
+            return new File(config.restartJournalPath);
+        }
+        File home = new File(config.getBaseDirectory()).getAbsoluteFile();
+        File parent = home.getParentFile();
+        if (parent == null) {
+            parent = new File(System.getProperty("java.io.tmpdir"));
+        }
+        return new File(parent, home.getName() + EXTENSION);
+    }
+
+    /**
+     *
+     * @param file
+     * @return the journal file of this file
+     */
+    public static File getJournalFile(File file) {
+        String name;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            name = StreamDigest.getHex(digest.digest(file.getAbsolutePath().getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            name = Integer.toHexString(file.getAbsolutePath().hashCode());
+        } catch (IOException e) {
+            name = Integer.toHexString(file.getAbsolutePath().hashCode());
+        }
+        return new File(getJournalDirectory(), name + EXTENSION);
+    }
+
+    /**
+     * Remove the journal of this file (deleted, appended or overwritten)
+     *
+     * @param file
+     */
+    public static void delete(File file) {
+        File journalFile = getJournalFile(file);
+        if (journalFile.exists()) {
+            journalFile.delete();
+        }
+    }
+
+    /**
+     * Move the journal of a renamed file
+     *
+     * @param from
+     * @param to
+     */
+    public static void move(File from, File to) {
+        File journalFile = getJournalFile(from);
+        if (!journalFile.exists()) {
+            return;
+        }
+        File target = getJournalFile(to);
+        target.delete();
+        if (!journalFile.renameTo(target)) {
+            journalFile.delete();
+        }
+    }
+
+    /**
+     *
+     * @param blockSize
+     * @return True if this block size can be used for a journal
+     */
+    private static boolean isValidBlockSize(int blockSize) {
+        return blockSize > 0 && blockSize <= MAX_BLOCK_SIZE &&
+                blockSize == FileBasedConfiguration.fileBasedConfiguration.restartJournalBlock;
+    }
+
+    /**
+     * Open the journal of an upload
+     *
+     * @param file
+     *            the uploaded file
+     * @param blockSize
+     *            the block size (the configured one)
+     * @param start
+     *            the position of the first written byte: 0 for a new journal, else the journal
+     *            must exist and cover this position (see verify)
+     * @return the journal
+     * @throws IOException
+     */
+    public static RestartJournal open(File file, int blockSize, long start) throws IOException {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IOException("Invalid block size: " + blockSize);
+        }
+        File journalFile = getJournalFile(file);
+        File directory = journalFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory.getPath());
+        }
+        RestartJournal journal = new RestartJournal(journalFile, blockSize);
+        try {
+            journal.init(file, start);
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    private void init(File file, long start) throws IOException {
+        blocks = start / blockSize;
+        inBlock = (int) (start % blockSize);
+        if (start == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(blockSize).flip();
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, HEADER_SIZE - header.remaining());
+            }
+            return;
+        }
+        channel.truncate(HEADER_SIZE + blocks * RECORD_SIZE);
+        if (inBlock > 0) {
+            // the start of the current block is already in the file
+            byte[] prefix = new byte[inBlock];
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(blocks * blockSize);
+                raf.readFully(prefix);
+            } finally {
+                raf.close();
+            }
+            crc.update(prefix, 0, inBlock);
+        }
+    }
+
+    /**
+     * Add the written bytes (the indexes of the buffer are not changed)
+     *
+     * @param buffer
+     * @param index
+     * @param len
+     * @throws IOException
+     */
+    public void update(ByteBuf buffer, int index, int len) throws IOException {
+        while (len > 0) {
+            int size = Math.min(len, blockSize - inBlock);
+            if (buffer.hasArray()) {
+                crc.update(buffer.array(), buffer.arrayOffset() + index, size);
+            } else {
+                if (scratch == null) {
+                    scratch = new byte[COPY_SIZE];
+                }
+                int done = 0;
+                while (done < size) {
+                    int copy = Math.min(size - done, scratch.length);
+                    buffer.getBytes(index + done, scratch, 0, copy);
+                    crc.update(scratch, 0, copy);
+                    done += copy;
+                }
+            }
+            inBlock += size;
+            index += size;
+            len -= size;
+            if (inBlock == blockSize) {
+                record.clear();
+                record.putInt((int) crc.getValue()).flip();
+                long offset = HEADER_SIZE + blocks * RECORD_SIZE;
+                while (record.hasRemaining()) {
+                    channel.write(record, offset + record.position());
+                }
+                blocks++;
+                inBlock = 0;
+                crc.reset();
+            }
+        }
+    }
+
+    /**
+     * Close the journal (kept for a later resume)
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Close and remove the journal (upload complete or journal not reliable)
+     */
+    public void delete() {
+        close();
+        journalFile.delete();
+    }
+
+    /**
+     *
+     * @param file
+     * @return the verified resume point of this file (a multiple of the block size, 0 if the journal
+     *         has another block size), or -1 if no journal exists for it
+     * @throws IOException
+     */
+    public static long verify(File file) throws IOException {
+        File journalFile = getJournalFile(file);
+        if (!journalFile.isFile()) {
+            return -1;
+        }
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "r");
+        RandomAccessFile data = null;
+        try {
+            if (journal.length() < HEADER_SIZE || journal.readInt() != MAGIC) {
+                return -1;
+            }
+            int blockSize = journal.readInt();
+            if (!isValidBlockSize(blockSize)) {
+                // written with another configuration: nothing can be verified, the journal is
+                // replaced when the upload restarts from 0
+                return 0;
+            }
+            long blocks = Math.min((journal.length() - HEADER_SIZE) / RECORD_SIZE,
+                    file.length() / blockSize);
+            if (blocks <= 0) {
+                return 0;
+            }
+            data = new RandomAccessFile(file, "r");
+            byte[] buffer = new byte[COPY_SIZE];
+            CRC32 check = new CRC32();
+            long last = Math.max(0, blocks - MAX_CHECKED_BLOCKS);
+            for (long k = blocks; k > last; k--) {
+                journal.seek(HEADER_SIZE + (k - 1) * RECORD_SIZE);
+                int expected = journal.readInt();
+                data.seek((k - 1) * blockSize);
+                check.reset();
+                int remaining = blockSize;
+                while (remaining > 0) {
+                    int size = Math.min(remaining, buffer.length);
+                    data.readFully(buffer, 0, size);
+                    check.update(buffer, 0, size);
+                    remaining -= size;
+                }
+                if ((int) check.getValue() == expected) {
+                    return k * blockSize;
+                }
+            }
+            // too many bad blocks: nothing is trusted
+            return 0;
+        } finally {
+            journal.close();
+            if (data != null) {
+                data.close();
+            }
+        }
+    }
+}
@@ -16,6 +16,12 @@
  */
 package org.waarp.gateway.ftp.file;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.gateway.kernel.exec.AbstractExecutor.CommandExecutor;
@@ -33,6 +39,11 @@ public class SimpleAuth {
     private static final WaarpLogger logger = WaarpLoggerFactory
             .getLogger(SimpleAuth.class);
 
+    /**
+     * Number of accounts from which a hashed index is used to check an account
+     */
+    private static final int ACCOUNT_INDEX_THRESHOLD = 8;
+
     /**
      * User name
      */
@@ -43,11 +54,32 @@ public class SimpleAuth {
      */
     private String password = null;
 
+    /**
+     * Salted hash of the password (see PasswordHash), replacing the password if set
+     */
+    private String passwordHash = null;
+
+    /**
+     * Cache of verified credentials, only used with passwordHash
+     */
+    private CredentialCache credentialCache = null;
+
     /**
      * Multiple accounts
      */
     private String[] accounts = null;
 
+    /**
+     * Hashed index of accounts (null if few accounts)
+     */
+    private Set<String> accountIndex = null;
+
+    /**
+     * Home directories (relative paths) already checked as existing
+     */
+    private final Set<String> validatedRoots = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     /**
      * Is the current user an administrator (which can shutdown or change bandwidth limitation)
      */
@@ -104,6 +136,21 @@ public class SimpleAuth {
      * @return True if the password is valid (or any password is valid)
      */
     public boolean isPasswordValid(String newpassword) {
+        if (passwordHash != null) {
+            if (newpassword == null) {
+                return false;
+            }
+            if (credentialCache != null && credentialCache.isVerified(this, newpassword)) {
+                return true;
+            }
+            if (PasswordHash.verify(newpassword, passwordHash)) {
+                if (credentialCache != null) {
+                    credentialCache.setVerified(this, newpassword);
+                }
+                return true;
+            }
+            return false;
+        }
         if (getPassword() == null) {
             return true;
         }
@@ -113,6 +160,31 @@ public class SimpleAuth {
         return getPassword().equals(newpassword);
     }
 
+    /**
+     * Used on reload to keep unchanged entries (and their CommandExecutor)
+     * 
+     * @param password
+     * @param passwordHash
+     * @param accounts
+     * @param isAdmin
+     * @param storCmd
+     * @param storDelay
+     * @param retrCmd
+     * @param retrDelay
+     * @return True if this SimpleAuth has exactly the given definition
+     */
+    public boolean isSameDefinition(String password, String passwordHash, String[] accounts,
+            boolean isAdmin, String storCmd, long storDelay, String retrCmd, long retrDelay) {
+        return this.isAdmin == isAdmin && this.storDelay == storDelay &&
+                this.retrDelay == retrDelay && isSame(this.password, password) &&
+                isSame(this.passwordHash, passwordHash) && Arrays.equals(this.accounts, accounts) &&
+                isSame(this.storCmd, storCmd) && isSame(this.retrCmd, retrCmd);
+    }
+
+    private static boolean isSame(String value1, String value2) {
+        return value1 == null ? value2 == null : value1.equals(value2);
+    }
+
     /**
      * Is the given account a valid one
      * 
@@ -128,6 +200,14 @@ public class SimpleAuth {
             logger.debug("No account given");
             return false;
         }
+        if (accountIndex != null) {
+            if (accountIndex.contains(account)) {
+                logger.debug("Account found");
+                return true;
+            }
+            logger.debug("No account found");
+            return false;
+        }
         for (String acct : getAccounts()) {
             if (acct.equals(account)) {
                 logger.debug("Account found");
@@ -138,6 +218,41 @@ public class SimpleAuth {
         return false;
     }
 
+    /**
+     * 
+     * @param path
+     *            the home directory (relative path) of this user and one of its accounts
+     * @return True if this home directory was already checked as existing
+     */
+    public boolean isRootValidated(String path) {
+        return validatedRoots.contains(path);
+    }
+
+    /**
+     * Remember this home directory as existing
+     * 
+     * @param path
+     */
+    public void setRootValidated(String path) {
+        validatedRoots.add(path);
+    }
+
+    /**
+     * Forget this home directory, such that it is checked again on next login
+     * 
+     * @param path
+     */
+    public void invalidateRoot(String path) {
+        validatedRoots.remove(path);
+    }
+
+    /**
+     * Forget all home directories of this user (on authentication reload)
+     */
+    public void invalidateRoots() {
+        validatedRoots.clear();
+    }
+
     /**
      * 
      * @param isAdmin
@@ -175,6 +290,24 @@ public class SimpleAuth {
         this.password = password;
     }
 
+    /**
+     * @return the password hash (null if the password is not hashed)
+     */
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    /**
+     * @param passwordHash
+     *            the salted hash of the password (see PasswordHash)
+     * @param credentialCache
+     *            the cache of verified credentials to use (might be null)
+     */
+    public void setPasswordHash(String passwordHash, CredentialCache credentialCache) {
+        this.passwordHash = passwordHash;
+        this.credentialCache = credentialCache;
+    }
+
     /**
      * @return the accounts
      */
@@ -187,6 +320,11 @@ public class SimpleAuth {
      */
     private void setAccounts(String[] accounts) {
         this.accounts = accounts;
+        if (accounts != null && accounts.length > ACCOUNT_INDEX_THRESHOLD) {
+            accountIndex = new HashSet<String>(Arrays.asList(accounts));
+        } else {
+            accountIndex = null;
+        }
     }
 
     /**
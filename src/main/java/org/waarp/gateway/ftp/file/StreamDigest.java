@@ -0,0 +1,312 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.file;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Digest of an upload, computed on its data as the blocks are written. The file does not need to
+ * be read again to know its digest.<br>
+ * <br>
+ * The last computed digests are kept by file path. XCRC, XMD5 and XSHA256 on a recently uploaded
+ * file are answered from there without reading it. An entry is dropped when a STOR, DELE or rename
+ * changes the file, and it is not used if the length or the modification time of the file is not
+ * the one it was computed on (file changed outside of the server).
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class StreamDigest {
+    /**
+     * Digest algorithms of the uploads
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static enum Algorithm {
+        /**
+         * No digest computed
+         */
+        NONE(null),
+        CRC32(null),
+        MD5("MD5"),
+        SHA256("SHA-256");
+
+        /**
+         * Name for MessageDigest (null if not a MessageDigest)
+         */
+        public final String jdkName;
+
+        private Algorithm(String jdkName) {
+            this.jdkName = jdkName;
+        }
+    }
+
+    /**
+     * Number of digests kept
+     */
+    private static final int CACHE_SIZE = 1024;
+    /**
+     * Size of the buffers used when a file has to be read
+     */
+    private static final int READ_SIZE = 65536;
+
+    /**
+     * One digest kept for a file
+     *
+     * @author Frederic Bregier
+     *
+     */
+    private static class CachedDigest {
+        private final long length;
+        private final long lastModified;
+        private final Algorithm algorithm;
+        private final byte[] value;
+
+        private CachedDigest(long length, long lastModified, Algorithm algorithm, byte[] value) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.algorithm = algorithm;
+            this.value = value;
+        }
+    }
+
+    private static final Map<String, CachedDigest> cache =
+            new LinkedHashMap<String, CachedDigest>(CACHE_SIZE, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedDigest> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final Algorithm algorithm;
+    private final CRC32 crc;
+    private final MessageDigest digest;
+    /**
+     * Copy buffer for CRC32 of direct buffers (no update from a ByteBuffer in Java 6)
+     */
+    private byte[] scratch = null;
+    private long length = 0;
+
+    /**
+     *
+     * @param algorithm
+     *            (not NONE)
+     * @throws NoSuchAlgorithmException
+     */
+    public StreamDigest(Algorithm algorithm) throws NoSuchAlgorithmException {
+        this.algorithm = algorithm;
+        if (algorithm == Algorithm.CRC32) {
+            crc = new CRC32();
+            digest = null;
+        } else if (algorithm.jdkName != null) {
+            crc = null;
+            digest = MessageDigest.getInstance(algorithm.jdkName);
+        } else {
+            throw new NoSuchAlgorithmException("No digest for " + algorithm.name());
+        }
+    }
+
+    /**
+     * Update the digest with the bytes of the buffer (the indexes of the buffer are not changed)
+     *
+     * @param buffer
+     * @param index
+     * @param len
+     */
+    public void update(ByteBuf buffer, int index, int len) {
+        if (len <= 0) {
+            return;
+        }
+        length += len;
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + index, len);
+        } else if (digest != null) {
+            digest.update(buffer.nioBuffer(index, len));
+        } else {
+            if (scratch == null) {
+                scratch = new byte[READ_SIZE];
+            }
+            while (len > 0) {
+                int size = Math.min(len, scratch.length);
+                buffer.getBytes(index, scratch, 0, size);
+                crc.update(scratch, 0, size);
+                index += size;
+                len -= size;
+            }
+        }
+    }
+
+    private void update(byte[] bytes, int offset, int len) {
+        if (digest != null) {
+            digest.update(bytes, offset, len);
+        } else {
+            crc.update(bytes, offset, len);
+        }
+    }
+
+    /**
+     *
+     * @return the number of bytes in the digest
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     *
+     * @return the algorithm of this digest
+     */
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Finish the digest (this object must not be used afterwards)
+     *
+     * @return the digest value (4 bytes big endian for CRC32)
+     */
+    public byte[] finish() {
+        if (digest != null) {
+            return digest.digest();
+        }
+        long value = crc.getValue();
+        return new byte[] {
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
+                (byte) value };
+    }
+
+    /**
+     *
+     * @param value
+     * @return the value in lower case hexadecimal
+     */
+    public static String getHex(byte[] value) {
+        char[] hex = new char[value.length * 2];
+        for (int i = 0; i < value.length; i++) {
+            hex[i * 2] = Character.forDigit((value[i] >> 4) & 0x0F, 16);
+            hex[i * 2 + 1] = Character.forDigit(value[i] & 0x0F, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     *
+     * @param value
+     *            CRC32 value as given by finish
+     * @return the CRC32 as a long
+     */
+    public static long getCrc(byte[] value) {
+        return ((value[0] & 0xFFL) << 24) | ((value[1] & 0xFFL) << 16) |
+                ((value[2] & 0xFFL) << 8) | (value[3] & 0xFFL);
+    }
+
+    /**
+     * Keep the digest of this file as it is now
+     *
+     * @param file
+     * @param algorithm
+     * @param value
+     */
+    public static void put(File file, Algorithm algorithm, byte[] value) {
+        put(file, file.length(), file.lastModified(), algorithm, value);
+    }
+
+    private static void put(File file, long length, long lastModified, Algorithm algorithm,
+            byte[] value) {
+        CachedDigest cached = new CachedDigest(length, lastModified, algorithm, value);
+        synchronized (cache) {
+            cache.put(file.getAbsolutePath(), cached);
+        }
+    }
+
+    /**
+     * Forget the digest of this file (about to be changed)
+     *
+     * @param file
+     */
+    public static void invalidate(File file) {
+        synchronized (cache) {
+            cache.remove(file.getAbsolutePath());
+        }
+    }
+
+    /**
+     *
+     * @param file
+     * @param algorithm
+     * @return the digest of this file if it is known and the file is unchanged, else null
+     */
+    public static byte[] getCached(File file, Algorithm algorithm) {
+        CachedDigest cached;
+        synchronized (cache) {
+            cached = cache.get(file.getAbsolutePath());
+        }
+        if (cached == null || cached.algorithm != algorithm ||
+                cached.length != file.length() || cached.lastModified != file.lastModified()) {
+            return null;
+        }
+        return cached.value;
+    }
+
+    /**
+     * Compute the digest by reading the file, and keep it
+     *
+     * @param file
+     * @param algorithm
+     * @return the digest value
+     * @throws IOException
+     */
+    public static byte[] compute(File file, Algorithm algorithm) throws IOException {
+        StreamDigest streamDigest;
+        try {
+            streamDigest = new StreamDigest(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Digest not available: " + algorithm.name());
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                streamDigest.update(buffer.array(), 0, buffer.limit());
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        byte[] value = streamDigest.finish();
+        put(file, length, lastModified, algorithm, value);
+        return value;
+    }
+}
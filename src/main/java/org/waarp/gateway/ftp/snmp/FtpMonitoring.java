@@ -27,6 +27,7 @@ import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.gateway.ftp.adminssl.HttpSessionStore;
 import org.waarp.gateway.ftp.config.FileBasedConfiguration;
 import org.waarp.gateway.ftp.database.DbConstant;
 import org.waarp.gateway.ftp.database.data.DbTransferLog;
@@ -54,6 +55,7 @@ public class FtpMonitoring implements WaarpInterfaceMonitor {
 
     // global informations
     public long nbNetworkConnection = 0;
+    public long nbAdminSessions = 0;
     public long secondsRunning = 0;
     public long nbThread = 0;
     public long bandwidthIn = 0;
@@ -418,6 +420,12 @@ public class FtpMonitoring implements WaarpInterfaceMonitor {
                                 .getFtpInternalConfiguration().getNumberSessions();
                         updateGlobalValue(entry.ordinal(), nbNetworkConnection);
                         return;
+                    case nbAdminSessions:
+                        HttpSessionStore store =
+                                FileBasedConfiguration.fileBasedConfiguration.httpSessionStore;
+                        nbAdminSessions = store != null ? store.size() : 0;
+                        updateGlobalValue(entry.ordinal(), nbAdminSessions);
+                        return;
                 }
             } catch (WaarpDatabaseNoConnectionException e) {
             } catch (WaarpDatabaseSqlException e) {
@@ -175,6 +175,11 @@ public class FtpPrivateMib implements WaarpInterfaceMib {
      */
     public WaarpSnmpAgent agent;
 
+    /**
+     * Trap aggregator (deduplication and rate limit), null if none
+     */
+    private FtpTrapAggregator trapAggregator = null;
+
     /**
      * 
      * @param port
@@ -348,6 +353,38 @@ public class FtpPrivateMib implements WaarpInterfaceMib {
         }
     }
 
+    /**
+     * 
+     * @param trapAggregator
+     *            the trap aggregator to use for Error, Warning, Overloaded and InfoTask
+     *            notifications (null for none)
+     */
+    public void setTrapAggregator(FtpTrapAggregator trapAggregator) {
+        this.trapAggregator = trapAggregator;
+    }
+
+    /**
+     * Release the trap aggregator if any
+     */
+    public void releaseResources() {
+        if (trapAggregator != null) {
+            trapAggregator.release();
+            trapAggregator = null;
+        }
+    }
+
+    /**
+     * 
+     * @param element
+     * @param key
+     * @param message2
+     * @return True if the notification has to be sent now
+     */
+    private boolean isToBeSent(NotificationElements element, String key, String message2) {
+        FtpTrapAggregator aggregator = trapAggregator;
+        return aggregator == null || aggregator.accept(element, key, message2);
+    }
+
     /**
      * Send a notification (trap or inform) for Shutdown event
      * 
@@ -369,6 +406,8 @@ public class FtpPrivateMib implements WaarpInterfaceMib {
     public void notifyError(String message, String message2) {
         if (!TrapLevel.Alert.isLevelValid(agent.getTrapLevel()))
             return;
+        if (!isToBeSent(NotificationElements.TrapError, message, message2))
+            return;
         notify(NotificationElements.TrapError, message, message2);
     }
 
@@ -381,6 +420,8 @@ public class FtpPrivateMib implements WaarpInterfaceMib {
     public void notifyOverloaded(String message, String message2) {
         if (!TrapLevel.Warning.isLevelValid(agent.getTrapLevel()))
             return;
+        if (!isToBeSent(NotificationElements.TrapOverloaded, message, message2))
+            return;
         notify(NotificationElements.TrapOverloaded, message, message2);
     }
 
@@ -393,6 +434,8 @@ public class FtpPrivateMib implements WaarpInterfaceMib {
     public void notifyWarning(String message, String message2) {
         if (!TrapLevel.Warning.isLevelValid(agent.getTrapLevel()))
             return;
+        if (!isToBeSent(NotificationElements.TrapWarning, message, message2))
+            return;
         notify(NotificationElements.TrapWarning, message, message2);
     }
 
@@ -405,6 +448,9 @@ public class FtpPrivateMib implements WaarpInterfaceMib {
     public void notifyInfoTask(String message, DbTransferLog runner) {
         if (!TrapLevel.All.isLevelValid(agent.getTrapLevel()))
             return;
+        if (!isToBeSent(NotificationElements.InfoTask, runner.getErrorInfo().getMesg() +
+                " " + runner.getUser() + "/" + runner.getAccount(), message))
+            return;
         if (logger.isDebugEnabled())
             logger.debug("Notify: " + NotificationElements.InfoTask + ":" +
                     message + ":" + runner);
@@ -473,13 +519,13 @@ public class FtpPrivateMib implements WaarpInterfaceMib {
     }
 
     /**
-     * Trap/Notification
+     * Trap/Notification (package visibility for summary traps from FtpTrapAggregator)
      * 
      * @param element
      * @param message
      * @param message2
      */
-    private void notify(NotificationElements element, String message,
+    void notify(NotificationElements element, String message,
             String message2) {
         if (logger.isDebugEnabled())
             logger.debug("Notify: " + element + ":" + message + ":" + message2);
@@ -639,7 +685,8 @@ public class FtpPrivateMib implements WaarpInterfaceMib {
         memoryFree,
         memoryUsed,
         nbThreads,
-        nbNetworkConnection;
+        nbNetworkConnection,
+        nbAdminSessions;
 
         public int getOID() {
             return this.ordinal() + 1;
@@ -729,6 +776,9 @@ public class FtpPrivateMib implements WaarpInterfaceMib {
             new WaarpEntry(SMIConstants.SYNTAX_GAUGE32,
                     MOAccessImpl.ACCESS_READ_ONLY),
             // nbNetworkConnection
+            new WaarpEntry(SMIConstants.SYNTAX_GAUGE32,
+                    MOAccessImpl.ACCESS_READ_ONLY),
+            // nbAdminSessions
             new WaarpEntry(SMIConstants.SYNTAX_GAUGE32,
                     MOAccessImpl.ACCESS_READ_ONLY) };
 
@@ -0,0 +1,251 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.gateway.ftp.snmp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.gateway.ftp.snmp.FtpPrivateMib.NotificationElements;
+
+/**
+ * Trap aggregator: deduplicates notifications by trap type and message key within a time window,
+ * emits one summary trap per key with the number of suppressed notifications at the end of each
+ * window, and applies a global rate limit (traps per second) on top of it.<br>
+ * <br>
+ * The first notification of a key within a window is sent immediately (if the rate limit allows
+ * it), the following ones are only counted.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class FtpTrapAggregator implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpTrapAggregator.class);
+
+    /**
+     * Maximum number of distinct keys kept within one window. Beyond, notifications are counted
+     * within one overflow key per trap type.
+     */
+    private static final int MAX_KEYS = 1000;
+
+    private static final String OVERFLOW_KEY = "\0overflow";
+
+    /**
+     * Counter of one key within the current window
+     *
+     * @author Frederic Bregier
+     *
+     */
+    private static class TrapCounter {
+        /**
+         * Value of suppressed once the counter is flushed
+         */
+        private static final int FLUSHED = Integer.MIN_VALUE;
+        private final NotificationElements element;
+        private final String message;
+        private final AtomicInteger suppressed = new AtomicInteger();
+        private volatile String lastMessage2;
+
+        private TrapCounter(NotificationElements element, String message) {
+            this.element = element;
+            this.message = message;
+        }
+
+        /**
+         *
+         * @param message2
+         * @return False if this counter is already flushed (the notification is not counted)
+         */
+        private boolean suppress(String message2) {
+            lastMessage2 = message2;
+            for (;;) {
+                int nb = suppressed.get();
+                if (nb == FLUSHED) {
+                    return false;
+                }
+                if (suppressed.compareAndSet(nb, nb + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         *
+         * @return the number of suppressed notifications, no more counted afterwards
+         */
+        private int flush() {
+            return suppressed.getAndSet(FLUSHED);
+        }
+    }
+
+    private final FtpPrivateMib mib;
+    /**
+     * Window in ms (0 meaning no deduplication)
+     */
+    private final long window;
+    /**
+     * Max number of traps per second (0 meaning no limit)
+     */
+    private final int maxPerSecond;
+    private final ConcurrentHashMap<String, TrapCounter> counters =
+            new ConcurrentHashMap<String, TrapCounter>();
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicInteger sentInSecond = new AtomicInteger();
+    /**
+     * Notifications neither sent nor attached to a key (rate limit without deduplication)
+     */
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     *
+     * @param mib
+     *            the MIB used to send the traps
+     * @param window
+     *            the deduplication window in ms (0 meaning no deduplication)
+     * @param maxPerSecond
+     *            the global rate limit in traps per second (0 meaning no limit)
+     */
+    public FtpTrapAggregator(FtpPrivateMib mib, long window, int maxPerSecond) {
+        this.mib = mib;
+        this.window = window > 0 ? window : 0;
+        this.maxPerSecond = maxPerSecond > 0 ? maxPerSecond : 0;
+        long period = this.window > 0 ? this.window : 1000;
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new WaarpThreadFactory("SnmpTrapAggregator"));
+        scheduler.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @param element
+     * @param key
+     *            the message key used for deduplication
+     * @param message2
+     *            the detailed message
+     * @return True if the notification must be sent now, False if it is counted for the next
+     *         summary
+     */
+    public boolean accept(NotificationElements element, String key, String message2) {
+        if (window == 0) {
+            if (tryAcquire()) {
+                return true;
+            }
+            dropped.incrementAndGet();
+            return false;
+        }
+        String fullKey = element.name() + ':' + key;
+        for (;;) {
+            String counterKey = fullKey;
+            TrapCounter counter = counters.get(counterKey);
+            if (counter == null) {
+                String message = key;
+                if (counters.size() >= MAX_KEYS) {
+                    counterKey = element.name() + OVERFLOW_KEY;
+                    message = element.name() + " (various)";
+                }
+                TrapCounter newCounter = new TrapCounter(element, message);
+                counter = counters.putIfAbsent(counterKey, newCounter);
+                if (counter == null) {
+                    // First one within this window
+                    if (tryAcquire()) {
+                        return true;
+                    }
+                    counter = newCounter;
+                }
+            }
+            if (counter.suppress(message2)) {
+                return false;
+            }
+            // flushed meanwhile: belongs to the next window
+            counters.remove(counterKey, counter);
+        }
+    }
+
+    /**
+     *
+     * @return True if one more trap is allowed within the current second
+     */
+    private boolean tryAcquire() {
+        if (maxPerSecond == 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        long second = currentSecond.get();
+        if (second != now && currentSecond.compareAndSet(second, now)) {
+            sentInSecond.set(0);
+        }
+        return sentInSecond.incrementAndGet() <= maxPerSecond;
+    }
+
+    /**
+     * Flush the current window: send one summary trap per key that suppressed notifications
+     */
+    public void run() {
+        int notSent = dropped.getAndSet(0);
+        for (String key : counters.keySet()) {
+            TrapCounter counter = counters.remove(key);
+            if (counter == null) {
+                continue;
+            }
+            int nb = counter.flush();
+            if (nb == 0) {
+                continue;
+            }
+            if (tryAcquire()) {
+                try {
+                    mib.notify(counter.element, counter.message + " (repeated)",
+                            nb + " similar notifications suppressed in the last " + window +
+                                    " ms, last one: " + counter.lastMessage2);
+                } catch (Exception e) {
+                    logger.warn("Cannot send summary trap", e);
+                }
+            } else {
+                notSent += nb;
+            }
+        }
+        if (notSent > 0) {
+            // Always sent, at most once per period
+            try {
+                mib.notify(NotificationElements.TrapWarning, "Notifications rate limited",
+                        notSent + " notifications suppressed by the trap rate limit of " +
+                                maxPerSecond + "/s");
+            } catch (Exception e) {
+                logger.warn("Cannot send summary trap", e);
+            }
+        }
+    }
+
+    /**
+     * Stop the aggregator
+     */
+    public void release() {
+        scheduler.shutdownNow();
+        counters.clear();
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.utils;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * Polling watcher of one file: the listener is called once the last modification time or the size
+ * of the file changed since the last successful call.<br>
+ * <br>
+ * If the file is a directory, the most recent modification time and the total size of the
+ * directory and its files (not recursively) are used.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class FileWatcher implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FileWatcher.class);
+
+    /**
+     * Listener of the changes of the watched file
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static interface FileChangeListener {
+        /**
+         *
+         * @param file
+         * @return True if the change was handled, False to retry at next check
+         */
+        public boolean fileChanged(File file);
+    }
+
+    private final File file;
+    private final FileChangeListener listener;
+    private final ScheduledExecutorService scheduler;
+    private long lastModified;
+    private long length;
+
+    /**
+     * The current state of the file is considered as already handled.
+     *
+     * @param name
+     *            name of the watching thread
+     * @param file
+     * @param delay
+     *            delay in ms between two checks
+     * @param listener
+     */
+    public FileWatcher(String name, File file, long delay, FileChangeListener listener) {
+        this.file = file;
+        this.listener = listener;
+        this.lastModified = getLastModified(file);
+        this.length = getLength(file);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new WaarpThreadFactory(name));
+        scheduler.scheduleWithFixedDelay(this, delay, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static long getLastModified(File file) {
+        long modified = file.lastModified();
+        if (modified != 0 && file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    modified = Math.max(modified, child.lastModified());
+                }
+            }
+        }
+        return modified;
+    }
+
+    private static long getLength(File file) {
+        if (file.isDirectory()) {
+            long length = 0;
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    length += child.length();
+                }
+            }
+            return length;
+        }
+        return file.length();
+    }
+
+    public void run() {
+        long newModified = getLastModified(file);
+        if (newModified == 0) {
+            // file is missing, ignore until it comes back
+            return;
+        }
+        long newLength = getLength(file);
+        if (newModified == lastModified && newLength == length) {
+            return;
+        }
+        logger.info("File changed: " + file.getPath());
+        try {
+            if (!listener.fileChanged(file)) {
+                return;
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Error while handling change of " + file.getPath(), e);
+            return;
+        }
+        lastModified = newModified;
+        length = newLength;
+    }
+
+    /**
+     * Stop the watcher
+     */
+    public void release() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it under the terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either version 3.0 of the
+ * License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.waarp.gateway.ftp.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * Runner of initialization stages with explicit dependencies: each stage is started as soon as
+ * all its dependencies succeeded, independent stages running in parallel. A stage whose dependency
+ * failed is not run (and is considered as failed).<br>
+ * <br>
+ * The duration of each stage (and the time spent waiting for its dependencies) is kept for the
+ * timing report.
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class StartupStages {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(StartupStages.class);
+
+    /**
+     * One initialization stage
+     *
+     * @author Frederic Bregier
+     *
+     */
+    public static interface Stage {
+        /**
+         *
+         * @return True if the stage succeeded
+         */
+        public boolean run();
+    }
+
+    /**
+     * Execution of one stage
+     *
+     * @author Frederic Bregier
+     *
+     */
+    private static class StageRun implements Callable<Boolean> {
+        private final String name;
+        private final Stage stage;
+        private final List<StageRun> dependencies;
+        private volatile Future<Boolean> future = null;
+        private volatile long wait = 0;
+        private volatile long duration = -1;
+
+        private StageRun(String name, Stage stage, List<StageRun> dependencies) {
+            this.name = name;
+            this.stage = stage;
+            this.dependencies = dependencies;
+        }
+
+        public Boolean call() throws Exception {
+            long start = System.currentTimeMillis();
+            for (StageRun dependency : dependencies) {
+                if (!dependency.isSuccess()) {
+                    logger.warn("Startup stage " + name + " not run since " + dependency.name +
+                            " failed");
+                    return Boolean.FALSE;
+                }
+            }
+            long begin = System.currentTimeMillis();
+            wait = begin - start;
+            boolean result;
+            try {
+                result = stage.run();
+            } catch (RuntimeException e) {
+                logger.error("Startup stage " + name + " in error", e);
+                result = false;
+            } finally {
+                duration = System.currentTimeMillis() - begin;
+            }
+            return Boolean.valueOf(result);
+        }
+
+        private boolean isSuccess() {
+            try {
+                return future.get().booleanValue();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+    }
+
+    private final String name;
+    private final Map<String, StageRun> stages = new LinkedHashMap<String, StageRun>();
+    private final ExecutorService executor;
+    private final long start = System.currentTimeMillis();
+    private long end = 0;
+
+    /**
+     *
+     * @param name
+     *            name of this set of stages (for threads and report)
+     */
+    public StartupStages(String name) {
+        this.name = name;
+        executor = Executors.newCachedThreadPool(new WaarpThreadFactory(name));
+    }
+
+    /**
+     * Add and start a stage once its dependencies are done (dependencies must be already added)
+     *
+     * @param stageName
+     * @param stage
+     * @param dependencies
+     *            names of the stages this one depends on
+     */
+    public void add(String stageName, Stage stage, String... dependencies) {
+        List<StageRun> list = new ArrayList<StageRun>(dependencies.length);
+        for (String dependency : dependencies) {
+            StageRun run = stages.get(dependency);
+            if (run == null) {
+                throw new IllegalArgumentException("Unknown startup stage: " + dependency);
+            }
+            list.add(run);
+        }
+        StageRun run = new StageRun(stageName, stage, list);
+        stages.put(stageName, run);
+        run.future = executor.submit(run);
+    }
+
+    /**
+     * Wait for all stages to be done and log the timing report
+     *
+     * @return True if all stages succeeded
+     */
+    public boolean await() {
+        boolean result = true;
+        for (StageRun run : stages.values()) {
+            if (!run.isSuccess()) {
+                result = false;
+            }
+        }
+        executor.shutdown();
+        end = System.currentTimeMillis();
+        logger.warn(getReport());
+        return result;
+    }
+
+    /**
+     *
+     * @param stageName
+     * @return True if this stage succeeded (waiting for it if necessary)
+     */
+    public boolean isSuccess(String stageName) {
+        StageRun run = stages.get(stageName);
+        return run != null && run.isSuccess();
+    }
+
+    /**
+     *
+     * @return the timing report of all stages
+     */
+    public String getReport() {
+        StringBuilder builder = new StringBuilder("Startup timing of ").append(name)
+                .append(": ").append(end - start).append(" ms");
+        for (StageRun run : stages.values()) {
+            builder.append("\n  ").append(run.name).append(": ");
+            if (run.duration < 0) {
+                builder.append("not run");
+            } else {
+                builder.append(run.duration).append(" ms (waited ").append(run.wait)
+                        .append(" ms)");
+            }
+        }
+        return builder.toString();
+    }
+}